@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.koherent.collection.Accumulator;
+import org.koherent.collection.Merger;
+
+/**
+ * Aggregates values of a <tt>DatastoreMap</tt> in parallel. The kind is split
+ * into key ranges with <tt>splitKeyRanges()</tt>, each range is read, decoded
+ * and accumulated into a partial result by a task on the executor of the
+ * options (or of the map), and the partial results are merged in the order
+ * of the ranges.
+ */
+class Aggregator<K, V> {
+	private DatastoreMap<K, V> map;
+	private ScanOptions options;
+
+	public Aggregator(DatastoreMap<K, V> map, ScanOptions options) {
+		this.map = map;
+		this.options = options;
+	}
+
+	public <R> R reduce(final R identity, final Accumulator<R, V> accumulator,
+			Merger<R> combiner) throws IllegalStateException {
+		Executor executor = options.getExecutor();
+		if (executor == null) {
+			executor = map.getRpcExecutor();
+		}
+
+		List<FutureTask<R>> tasks = new ArrayList<FutureTask<R>>();
+		for (final KeyRange range : map.splitKeyRanges(options
+				.getNumberOfPartitions())) {
+			FutureTask<R> task = new FutureTask<R>(new Callable<R>() {
+				@Override
+				public R call() throws Exception {
+					R result = identity;
+					for (V value : map.values(range)) {
+						if (value != null) {
+							result = accumulator.accumulate(result, value);
+						}
+					}
+
+					return result;
+				}
+			});
+			tasks.add(task);
+			executor.execute(task);
+		}
+
+		R result = identity;
+		boolean first = true;
+		for (FutureTask<R> task : tasks) {
+			R partialResult;
+			try {
+				partialResult = task.get();
+			} catch (InterruptedException e) {
+				for (FutureTask<R> anotherTask : tasks) {
+					anotherTask.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+
+				throw new IllegalStateException("Interrupted while scanning.");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+
+				throw new IllegalStateException(e.getCause());
+			}
+
+			result = first ? partialResult : combiner.merge(result,
+					partialResult);
+			first = false;
+		}
+
+		return result;
+	}
+}
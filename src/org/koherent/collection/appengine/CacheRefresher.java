@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * Reloads cached values of a <tt>DatastoreMap</tt> asynchronously before they
+ * expire. This class is shared by {@link CachedDatastoreMap} and
+ * {@link FastCachedDatastoreMap}.
+ */
+class CacheRefresher<K, V> {
+	private DatastoreMap<K, V> map;
+	private MemcacheMap<K, V> memcacheMap;
+	private long window;
+	private Executor executor;
+
+	private ConcurrentMap<Key, Boolean> refreshingKeys;
+
+	public CacheRefresher(DatastoreMap<K, V> map,
+			MemcacheMap<K, V> memcacheMap, long window, Executor executor) {
+		this.map = map;
+		this.memcacheMap = memcacheMap;
+		this.window = window;
+		this.executor = executor;
+
+		refreshingKeys = new ConcurrentHashMap<Key, Boolean>();
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Schedules a reload of the key if the cached value expires within the
+	 * window. The cached value stays valid, so a refresh rejected by the
+	 * executor is skipped and does not fail the caller.
+	 * 
+	 * @param key
+	 *            the key of the cached value
+	 * @param cachedValue
+	 *            the cached value read by the caller
+	 */
+	public void refreshIfExpiring(final K key, CachedValue<V> cachedValue) {
+		long expirationTime = cachedValue.getExpirationTime();
+		if (expirationTime == 0L
+				|| System.currentTimeMillis() < expirationTime - window) {
+			return;
+		}
+
+		// deduplicates refreshes on this instance first, and then on all
+		// instances with a lease in Memcache
+		final Key datastoreKey = map.createDatastoreKey(key);
+		if (refreshingKeys.putIfAbsent(datastoreKey, Boolean.TRUE) != null) {
+			return;
+		}
+
+		boolean submitted = false;
+		try {
+			if (!memcacheMap.lease(key, window)) {
+				return;
+			}
+
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							refresh(key);
+						} finally {
+							refreshingKeys.remove(datastoreKey);
+						}
+					}
+				});
+				submitted = true;
+			} catch (RejectedExecutionException e) {
+				memcacheMap.release(key);
+			}
+		} finally {
+			if (!submitted) {
+				refreshingKeys.remove(datastoreKey);
+			}
+		}
+	}
+
+	private void refresh(K key) {
+		IdentifiableValue cachedValue = memcacheMap.getIdentifiable(key);
+
+		V value;
+		try {
+			value = map.getOrNotFound(key);
+		} catch (EntityNotFoundException e) {
+			memcacheMap.delete(key);
+
+			return;
+		}
+
+		// never overwrites a value written while reloading
+		if (cachedValue == null) {
+			memcacheMap.put(key, value, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		} else {
+			memcacheMap.putIfUntouched(key, cachedValue, value);
+		}
+	}
+}
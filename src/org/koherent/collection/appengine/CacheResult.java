@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.HashMap;
+
+/**
+ * A map of values read through Memcache, which also reports how many keys
+ * were found in Memcache and how many had to be read from Datastore.
+ * 
+ * @param <K>
+ *            the type of keys maintained by this map
+ * @param <V>
+ *            the type of mapped values
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see CachedDatastoreMap#getAll(java.util.Collection)
+ * @see FastCachedDatastoreMap#getAll(java.util.Collection)
+ */
+public class CacheResult<K, V> extends HashMap<K, V> {
+	private static final long serialVersionUID = -2951839542173340266L;
+
+	private int numberOfHits;
+	private int numberOfMisses;
+
+	public CacheResult(int numberOfHits, int numberOfMisses) {
+		this.numberOfHits = numberOfHits;
+		this.numberOfMisses = numberOfMisses;
+	}
+
+	/**
+	 * @return the number of keys found in Memcache
+	 */
+	public int getNumberOfHits() {
+		return numberOfHits;
+	}
+
+	/**
+	 * @return the number of keys not found in Memcache, which were read from
+	 *         Datastore
+	 */
+	public int getNumberOfMisses() {
+		return numberOfMisses;
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * Loads values of a <tt>DatastoreMap</tt> into its Memcache. This class is
+ * shared by {@link CachedDatastoreMap} and {@link FastCachedDatastoreMap}.
+ */
+class CacheWarmer<K, V> {
+	private DatastoreMap<K, V> map;
+	private MemcacheMap<K, V> memcacheMap;
+	private WarmUpOptions options;
+
+	private int numberOfLoadedEntities;
+	private long startTime;
+
+	public CacheWarmer(DatastoreMap<K, V> map, MemcacheMap<K, V> memcacheMap,
+			WarmUpOptions options) {
+		this.map = map;
+		this.memcacheMap = memcacheMap;
+		this.options = options;
+	}
+
+	public Cursor warmUp(K fromKey, K toKey)
+			throws UnsupportedOperationException {
+		if (map.keyParser == null) {
+			throw new UnsupportedOperationException(
+					"Give a Parser object to parse stringified keys.");
+		}
+
+		Query query = new Query(map.kind);
+		if (fromKey != null) {
+			query.addFilter(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.GREATER_THAN_OR_EQUAL, map
+							.createDatastoreKey(fromKey));
+		}
+		if (toKey != null) {
+			query.addFilter(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.LESS_THAN, map.createDatastoreKey(toKey));
+		}
+
+		FetchOptions fetchOptions = FetchOptions.Builder
+				.withChunkSize(options.getBatchSize());
+		if (options.getStartCursor() != null) {
+			fetchOptions.startCursor(options.getStartCursor());
+		}
+
+		QueryResultIterator<Entity> iterator = getService().prepare(query)
+				.asQueryResultIterator(fetchOptions);
+
+		start();
+
+		List<Entity> entities = new ArrayList<Entity>(options.getBatchSize());
+		// resumes an interrupted batch from its start
+		Cursor batchCursor = iterator.getCursor();
+		while (iterator.hasNext()) {
+			if (options.getLimit() > 0
+					&& numberOfLoadedEntities + entities.size() == options
+							.getLimit()) {
+				return load(entities) ? iterator.getCursor() : batchCursor;
+			}
+
+			entities.add(iterator.next());
+
+			if (entities.size() == options.getBatchSize()) {
+				if (!load(entities)) {
+					return batchCursor;
+				}
+				entities.clear();
+				batchCursor = iterator.getCursor();
+
+				if (!throttle()) {
+					return batchCursor;
+				}
+			}
+		}
+
+		return load(entities) ? null : batchCursor;
+	}
+
+	/**
+	 * @return <tt>true</tt> if all the keys are loaded, or <tt>false</tt> if
+	 *         loading stopped because of an interrupt
+	 */
+	public boolean warmUp(Collection<? extends K> keys) {
+		start();
+
+		List<Key> datastoreKeys = new ArrayList<Key>(options.getBatchSize());
+		Map<Key, K> keyMap = new HashMap<Key, K>();
+		for (K key : keys) {
+			Key datastoreKey = map.createDatastoreKey(key);
+			if (keyMap.put(datastoreKey, key) == null) {
+				datastoreKeys.add(datastoreKey);
+			}
+
+			if (datastoreKeys.size() == options.getBatchSize()) {
+				boolean loaded = load(datastoreKeys, keyMap);
+				datastoreKeys.clear();
+				keyMap.clear();
+
+				if (!loaded || !throttle()) {
+					return false;
+				}
+			}
+		}
+
+		return load(datastoreKeys, keyMap);
+	}
+
+	/**
+	 * Returns the service to read values to be stored to Memcache. Values
+	 * which never expire are read with the service for writes, because the
+	 * read service may return stale values.
+	 */
+	private DatastoreService getService() {
+		return memcacheMap.expiration != null ? map.getReadService()
+				: map.service;
+	}
+
+	private void start() {
+		numberOfLoadedEntities = 0;
+		startTime = System.currentTimeMillis();
+	}
+
+	private boolean load(List<Key> datastoreKeys, Map<Key, K> keyMap) {
+		if (datastoreKeys.isEmpty()) {
+			return true;
+		}
+
+		Map<Key, Entity> entities = getService().get(datastoreKeys);
+
+		Map<K, Entity> keyedEntities = new LinkedHashMap<K, Entity>();
+		for (Entity entity : entities.values()) {
+			keyedEntities.put(keyMap.get(entity.getKey()), entity);
+		}
+
+		return store(keyedEntities);
+	}
+
+	private boolean load(List<Entity> entities) {
+		if (entities.isEmpty()) {
+			return true;
+		}
+
+		Map<K, Entity> keyedEntities = new LinkedHashMap<K, Entity>();
+		for (Entity entity : entities) {
+			keyedEntities.put(map.createKey(entity), entity);
+		}
+
+		return store(keyedEntities);
+	}
+
+	/**
+	 * Decodes the values of the entities and stores them to Memcache. If the
+	 * current thread is interrupted while waiting for the executor, the
+	 * remaining tasks are cancelled, only the values decoded so far are
+	 * stored and the interrupt status is restored.
+	 * 
+	 * @return <tt>false</tt> if loading is to stop because of an interrupt
+	 */
+	private boolean store(Map<K, Entity> entities) {
+		Map<K, V> values = new HashMap<K, V>();
+		boolean interrupted = false;
+
+		Executor executor = options.getExecutor();
+		if (executor == null) {
+			for (Map.Entry<K, Entity> entry : entities.entrySet()) {
+				values.put(entry.getKey(), map.createValue(entry.getValue()));
+			}
+		} else {
+			Map<K, FutureTask<V>> tasks = new LinkedHashMap<K, FutureTask<V>>();
+			for (Map.Entry<K, Entity> entry : entities.entrySet()) {
+				final Entity entity = entry.getValue();
+				FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+					@Override
+					public V call() throws Exception {
+						return map.createValue(entity);
+					}
+				});
+				executor.execute(task);
+				tasks.put(entry.getKey(), task);
+			}
+
+			for (Map.Entry<K, FutureTask<V>> entry : tasks.entrySet()) {
+				try {
+					values.put(entry.getKey(), entry.getValue().get());
+				} catch (InterruptedException e) {
+					interrupted = true;
+					for (FutureTask<V> task : tasks.values()) {
+						task.cancel(false);
+					}
+
+					break;
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		}
+
+		memcacheMap.putAll(values, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		numberOfLoadedEntities += values.size();
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		return !interrupted;
+	}
+
+	private boolean throttle() {
+		if (options.getMaxEntitiesPerSecond() == 0) {
+			return true;
+		}
+
+		long expectedTime = startTime + numberOfLoadedEntities * 1000L
+				/ options.getMaxEntitiesPerSecond();
+		long waitingTime = expectedTime - System.currentTimeMillis();
+		if (waitingTime > 0) {
+			try {
+				Thread.sleep(waitingTime);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
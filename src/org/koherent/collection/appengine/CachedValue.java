@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.io.Serializable;
+
+/**
+ * A value stored by a timestamped {@link MemcacheMap} with the time when it
+ * was stored and the time when it expires.
+ * 
+ * @param <V>
+ *            the type of the value
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see MemcacheMap#getCachedValue(Object)
+ */
+public class CachedValue<V> implements Serializable {
+	private static final long serialVersionUID = -6302757419568312964L;
+
+	private V value;
+	private long loadTime;
+	private long expirationTime;
+
+	public CachedValue(V value, long loadTime, long expirationTime) {
+		this.value = value;
+		this.loadTime = loadTime;
+		this.expirationTime = expirationTime;
+	}
+
+	public V getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the time in milliseconds when the value was stored, or 0 if it
+	 *         is unknown
+	 */
+	public long getLoadTime() {
+		return loadTime;
+	}
+
+	/**
+	 * @return the time in milliseconds when the value expires, or 0 if it
+	 *         never expires or it is unknown
+	 */
+	public long getExpirationTime() {
+		return expirationTime;
+	}
+}
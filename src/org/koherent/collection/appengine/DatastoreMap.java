@@ -22,19 +22,42 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.koherent.collection.Accumulator;
+import org.koherent.collection.Filter;
+import org.koherent.collection.Merger;
 import org.koherent.collection.UpdatableMap;
 import org.koherent.collection.Updater;
+import org.koherent.collection.appengine.MapStatistics.Operation;
+import org.koherent.concurrent.BoundedExecutor;
+import org.koherent.concurrent.Publisher;
+import org.koherent.math.Integers;
+import org.koherent.math.LongSummary;
+import org.koherent.math.Measurer;
 import org.koherent.object.Parser;
+import org.koherent.rpc.RpcExecutors;
+import org.koherent.rpc.RpcInterceptor;
+import org.koherent.rpc.RpcInterceptors;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.DatastoreTimeoutException;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
@@ -44,6 +67,10 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 
 /**
  * A wrapper class of Datastore used on Google App Engine for Java. It is able
@@ -69,28 +96,84 @@ import com.google.appengine.api.datastore.Transaction;
  * objects using Memcache.
  * </p>
  * 
+ * <p>
+ * The methods of <tt>java.util.concurrent.ConcurrentMap</tt>,
+ * {@link DatastoreMap#update(Object, Updater)} and the <tt>compute</tt> and
+ * <tt>merge</tt> methods read, modify and write a value in one transaction,
+ * which is retried on contention. <tt>null</tt> values are treated as absent
+ * by these methods.
+ * </p>
+ * 
+ * <p>
+ * Each entity carries a version, which is changed by every write through this
+ * map. {@link DatastoreMap#getVersioned(Object)} reads a value with its
+ * version without a transaction, and
+ * {@link DatastoreMap#compareAndSet(Object, long, Object)} writes a new value
+ * only if the version is unchanged. They make optimistic read-modify-writes
+ * which do not hold a transaction while the new value is computed.
+ * </p>
+ * 
  * @param <K>
  *            the type of keys maintained by this map
  * @param <V>
  *            the type of mapped values
  * 
  * @author koher
- * @version 0.1
+ * @version 0.3
  * @since 0.1
  * @see Parser
  * @see MemcacheMap
  * @see CachedDatastoreMap
+ * @see MapStatistics
  */
-public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
+public class DatastoreMap<K, V> implements UpdatableMap<K, V>,
+		ConcurrentMap<K, V> {
 	public static final int DEFAULT_NUMBER_OF_RETRIES = 4;
+	public static final int DEFAULT_MAX_COALESCED_KEYS = 100;
+	public static final long NO_VERSION = 0L;
+	public static final int MAX_KEYS_PER_TRANSACTION = 25;
 
 	protected static final String PROPERTY_NAME = "value";
+	protected static final String VERSION_PROPERTY_NAME = "version";
+	protected static final String SCATTER_PROPERTY_NAME = "__scatter__";
+	protected static final int SCATTER_OVERSAMPLING_FACTOR = 32;
+	protected static final String VERSION_HINT_NAMESPACE = DatastoreMap.class
+			.getName() + ".version";
+	protected static final Expiration VERSION_HINT_EXPIRATION = Expiration
+			.byDeltaSeconds(60 * 60);
 	protected static final int MAX_NUMBER_OF_ENTITIES_TO_DELETE_ONCE = 500;
+	protected static final int MAX_NUMBER_OF_ENTITIES_TO_GET_ONCE = 1000;
+	protected static final int MAX_NUMBER_OF_ENTITIES_TO_PUT_ONCE = 500;
 
 	protected DatastoreService service;
+	protected DatastoreService readService;
+	protected MemcacheService versionHints;
 	protected String kind;
 	protected Parser<K> keyParser;
 	protected int numberOfRetries;
+	protected int maxEntitiesPerGet;
+	protected int maxEntitiesPerPut;
+	protected int maxEntitiesPerDelete;
+	protected MapStatistics statistics;
+	protected long coalescingWindow;
+	protected int maxCoalescedKeys;
+	protected boolean requestScoped;
+	protected boolean groupCommit;
+	protected Executor executor;
+
+	private int chunkSize;
+	private int prefetchSize;
+	private List<RpcInterceptor> interceptors;
+	private GetBatcher<K, V> batcher;
+	private GroupCommitter<K, V> committer;
+
+	private static final Random versionGenerator = new Random();
+	private static final Merger<Long> SUM = new Merger<Long>() {
+		@Override
+		public Long merge(Long oldValue, Long value) {
+			return oldValue + value;
+		}
+	};
 
 	public DatastoreMap(String kind) throws IllegalArgumentException {
 		this(kind, null, DEFAULT_NUMBER_OF_RETRIES);
@@ -108,14 +191,104 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 
 	public DatastoreMap(String kind, Parser<K> keyParser, int numberOfRetries)
 			throws IllegalArgumentException {
+		this(kind, keyParser, DatastoreMapConfig.Builder
+				.withNumberOfRetries(numberOfRetries));
+	}
+
+	/**
+	 * Constructs a map with the given configuration of services, queries,
+	 * batch sizes and retries.
+	 * 
+	 * @param kind
+	 *            the kind of entities which store the mappings
+	 * @param keyParser
+	 *            the parser of stringified keys, or <tt>null</tt>
+	 * @param config
+	 *            the configuration, or <tt>null</tt> to use the default one
+	 * @throws IllegalArgumentException
+	 *             if <tt>kind</tt> is <tt>null</tt>
+	 */
+	public DatastoreMap(String kind, Parser<K> keyParser,
+			DatastoreMapConfig config) throws IllegalArgumentException {
 		if (kind == null) {
 			throw new IllegalArgumentException("\"kind\" cannot be null.");
 		}
+		if (config == null) {
+			config = DatastoreMapConfig.Builder.withDefaults();
+		}
 
-		this.service = DatastoreServiceFactory.getDatastoreService();
+		this.service = config.createService();
+		DatastoreService readService = config.createReadService();
+		this.readService = readService != null ? readService : this.service;
+		this.versionHints = MemcacheServiceFactory
+				.getMemcacheService(VERSION_HINT_NAMESPACE);
 		this.kind = kind;
 		this.keyParser = keyParser;
-		this.numberOfRetries = DEFAULT_NUMBER_OF_RETRIES;
+		this.numberOfRetries = config.getNumberOfRetries();
+		this.chunkSize = config.getChunkSize();
+		this.prefetchSize = config.getPrefetchSize();
+		this.maxEntitiesPerGet = config.getMaxEntitiesPerGet();
+		this.maxEntitiesPerPut = config.getMaxEntitiesPerPut();
+		this.maxEntitiesPerDelete = config.getMaxEntitiesPerDelete();
+		this.statistics = MapStatistics.DISABLED;
+		this.maxCoalescedKeys = DEFAULT_MAX_COALESCED_KEYS;
+		this.batcher = new GetBatcher<K, V>(this);
+		this.committer = new GroupCommitter<K, V>(this);
+		this.executor = new BoundedExecutor(RpcExecutors.getDefaultExecutor(),
+				RpcExecutors.DEFAULT_MAX_CONCURRENT_RPCS);
+	}
+
+	public MapStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Starts recording statistics of this map to the given
+	 * <tt>MapStatistics</tt>.
+	 * 
+	 * @param statistics
+	 *            the statistics, or <tt>null</tt> to stop recording
+	 */
+	public void setStatistics(MapStatistics statistics) {
+		this.statistics = statistics != null ? statistics
+				: MapStatistics.DISABLED;
+	}
+
+	/**
+	 * Adds an interceptor of calls from this map to <tt>DatastoreService</tt>
+	 * and to <tt>MemcacheService</tt> for the hints of versions. Interceptors
+	 * run in the order they were added. Operations of transactions like
+	 * <tt>commit()</tt> and of query results are not intercepted. Interceptors
+	 * should be added before this map is shared between threads.
+	 * 
+	 * @param interceptor
+	 *            the interceptor
+	 * @throws IllegalArgumentException
+	 *             if <tt>interceptor</tt> is <tt>null</tt>
+	 * @see RpcInterceptor
+	 */
+	public synchronized void addInterceptor(RpcInterceptor interceptor)
+			throws IllegalArgumentException {
+		if (interceptor == null) {
+			throw new IllegalArgumentException(
+					"\"interceptor\" cannot be null.");
+		}
+
+		if (interceptors == null) {
+			interceptors = new CopyOnWriteArrayList<RpcInterceptor>();
+			boolean sharingService = readService == service;
+			service = RpcInterceptors.intercept(DatastoreService.class, service,
+					interceptors);
+			readService = sharingService ? service : RpcInterceptors.intercept(
+					DatastoreService.class, readService, interceptors);
+			versionHints = RpcInterceptors.intercept(MemcacheService.class,
+					versionHints, interceptors);
+		}
+		interceptors.add(interceptor);
+	}
+
+	public synchronized boolean removeInterceptor(RpcInterceptor interceptor) {
+		return interceptors != null && interceptors.remove(interceptor);
 	}
 
 	protected Key createDatastoreKey(Object key) throws NullPointerException {
@@ -132,6 +305,7 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 
 	protected Entity createEntity(Key datastoreKey, V value) {
 		Entity entity = new Entity(datastoreKey);
+		entity.setUnindexedProperty(VERSION_PROPERTY_NAME, newVersion());
 		if (value == null) {
 			entity.setProperty(PROPERTY_NAME, null);
 			return entity;
@@ -142,7 +316,10 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 			ObjectOutputStream objectOut = new ObjectOutputStream(byteOut);
 			objectOut.writeObject(value);
 
-			Blob blob = new Blob(byteOut.toByteArray());
+			byte[] bytes = byteOut.toByteArray();
+			statistics.recordBytesWritten(bytes.length);
+
+			Blob blob = new Blob(bytes);
 			entity.setProperty(PROPERTY_NAME, blob);
 
 			// no need to close ByteArrayOutputStreams
@@ -154,6 +331,40 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 		return entity;
 	}
 
+	protected long newVersion() {
+		long version;
+		do {
+			version = versionGenerator.nextLong();
+		} while (version == NO_VERSION);
+
+		return version;
+	}
+
+	/**
+	 * @return the version of the entity, or {@link DatastoreMap#NO_VERSION} if
+	 *         <tt>entity</tt> is <tt>null</tt> or was written without a version
+	 */
+	protected long getVersion(Entity entity) {
+		if (entity == null) {
+			return NO_VERSION;
+		}
+
+		Object version = entity.getProperty(VERSION_PROPERTY_NAME);
+
+		return version instanceof Long ? (Long) version : NO_VERSION;
+	}
+
+	/**
+	 * Returns the expiration of the version hints written by
+	 * {@link DatastoreMap#compareAndSet(Object, long, Object)}. The hints are
+	 * also deleted when their mappings are removed.
+	 * 
+	 * @return the expiration of the version hints
+	 */
+	protected Expiration getVersionHintExpiration() {
+		return VERSION_HINT_EXPIRATION;
+	}
+
 	protected K createKey(Entity entity) {
 		return keyParser.parse(entity.getKey().getName());
 	}
@@ -170,8 +381,10 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 				return null;
 			}
 
-			ByteArrayInputStream byteIn = new ByteArrayInputStream(blob
-					.getBytes());
+			byte[] bytes = blob.getBytes();
+			statistics.recordBytesRead(bytes.length);
+
+			ByteArrayInputStream byteIn = new ByteArrayInputStream(bytes);
 			ObjectInputStream objectIn = new ObjectInputStream(byteIn);
 
 			return (V) objectIn.readObject();
@@ -191,210 +404,1874 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 		if (keysOnly) {
 			query = query.setKeysOnly();
 		}
-		return service.prepare(query);
+		return getReadService().prepare(query);
 	}
 
 	protected Iterable<Entity> getAllEntitiesAsIterable(boolean keysOnly) {
-		return getPreparedQueryForAllEntities(keysOnly).asIterable();
+		return getPreparedQueryForAllEntities(keysOnly).asIterable(
+				createFetchOptions());
 	}
 
 	protected Iterator<Entity> getAllEntitiesAsIterator(boolean keysOnly) {
-		return getPreparedQueryForAllEntities(keysOnly).asIterator();
+		return getPreparedQueryForAllEntities(keysOnly).asIterator(
+				createFetchOptions());
+	}
+
+	protected PreparedQuery getPreparedQuery(KeyRange range, boolean keysOnly) {
+		return getReadService().prepare(range.createQuery(kind, keysOnly));
+	}
+
+	protected Iterator<Entity> getEntitiesAsIterator(KeyRange range,
+			boolean keysOnly) {
+		return getPreparedQuery(range, keysOnly).asIterator(
+				createFetchOptions());
 	}
 
 	protected List<Entity> getAllEntitiesAsList(boolean keysOnly) {
 		return getPreparedQueryForAllEntities(keysOnly).asList(
-				FetchOptions.Builder.withOffset(0));
+				createFetchOptions());
 	}
 
-	@Override
-	public void clear() {
-		List<Key> keys = new ArrayList<Key>(
-				MAX_NUMBER_OF_ENTITIES_TO_DELETE_ONCE);
-		Iterable<Entity> entities = getAllEntitiesAsIterable(true);
-		for (Entity entity : entities) {
-			keys.add(entity.getKey());
+	/**
+	 * Creates the fetch options of queries with the chunk size and the
+	 * prefetch size of the configuration of this map.
+	 * 
+	 * @return new fetch options
+	 */
+	protected FetchOptions createFetchOptions() {
+		FetchOptions fetchOptions = FetchOptions.Builder.withDefaults();
+		if (chunkSize > 0) {
+			fetchOptions.chunkSize(chunkSize);
+		}
+		if (prefetchSize > 0) {
+			fetchOptions.prefetchSize(prefetchSize);
+		}
+
+		return fetchOptions;
+	}
+
+	/**
+	 * Reads the entities of the given keys with batch gets of at most
+	 * <tt>maxEntitiesPerGet</tt> keys each, which run on the executor returned
+	 * by {@link DatastoreMap#getRpcExecutor()} with the service returned by
+	 * {@link DatastoreMap#getReadService()}.
+	 * 
+	 * @param datastoreKeys
+	 *            the keys of the entities to be read
+	 * @return a map from the keys of the entities found to the entities
+	 */
+	protected Map<Key, Entity> getEntities(Collection<Key> datastoreKeys) {
+		final DatastoreService readService = getReadService();
+		List<Callable<Map<Key, Entity>>> tasks;
+		tasks = new ArrayList<Callable<Map<Key, Entity>>>();
+		for (final List<Key> chunk : split(datastoreKeys, maxEntitiesPerGet)) {
+			tasks.add(new Callable<Map<Key, Entity>>() {
+				@Override
+				public Map<Key, Entity> call() {
+					return readService.get(chunk);
+				}
+			});
+		}
+
+		Map<Key, Entity> entities = new HashMap<Key, Entity>();
+		for (Map<Key, Entity> chunkEntities : RpcExecutors.invokeAll(
+				getRpcExecutor(), tasks)) {
+			entities.putAll(chunkEntities);
+		}
+
+		return entities;
+	}
+
+	/**
+	 * Removes the mappings for the given keys with batch deletes of at most
+	 * <tt>maxEntitiesPerDelete</tt> keys each, which run on the executor
+	 * returned by {@link DatastoreMap#getRpcExecutor()}. Unlike
+	 * {@link DatastoreMap#remove(Object)}, the old values are not read and the
+	 * deletes are not transactional.
+	 * 
+	 * @param keys
+	 *            the keys whose mappings are to be removed
+	 */
+	protected void removeAllKeys(Collection<?> keys) {
+		List<Key> datastoreKeys = new ArrayList<Key>(keys.size());
+		for (Object key : keys) {
+			datastoreKeys.add(createDatastoreKey(key));
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (List<Key> chunk : split(datastoreKeys, maxEntitiesPerDelete)) {
+			tasks.add(createDeletion(chunk, false));
+		}
+		RpcExecutors.invokeAll(getRpcExecutor(), tasks);
+
+		for (Object key : keys) {
+			memoize(key, null);
+		}
+	}
 
-			if (keys.size() == MAX_NUMBER_OF_ENTITIES_TO_DELETE_ONCE) {
+	private Callable<Void> createDeletion(final List<Key> datastoreKeys,
+			final boolean ignoringTimeout) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() {
 				try {
-					service.delete(keys);
+					service.delete(datastoreKeys);
 				} catch (DatastoreTimeoutException e) {
+					if (!ignoringTimeout) {
+						throw e;
+					}
+
+					return null;
 				}
+				versionHints.deleteAll(datastoreKeys);
+
+				return null;
+			}
+		};
+	}
+
+	private static <E> List<List<E>> split(Collection<? extends E> elements,
+			int chunkSize) {
+		List<List<E>> chunks = new ArrayList<List<E>>();
+		List<E> chunk = null;
+		for (E element : elements) {
+			if (chunk == null || chunk.size() == chunkSize) {
+				chunk = new ArrayList<E>(Math.min(chunkSize, elements.size()));
+				chunks.add(chunk);
+			}
+			chunk.add(element);
+		}
+
+		return chunks;
+	}
 
-				keys.clear();
+	/**
+	 * Scans all entities of this map and removes the mappings of the entities
+	 * accepted by the filter with batch deletes, so that the whole kind is
+	 * read with one query instead of one transaction per mapping.
+	 * 
+	 * @param filter
+	 *            accepts the entities whose mappings are to be removed
+	 * @param keysOnly
+	 *            <tt>true</tt> if the filter needs only the keys of the
+	 *            entities
+	 * @return <tt>true</tt> if any mapping is removed
+	 */
+	protected boolean removeEntities(Filter<Entity> filter, boolean keysOnly) {
+		boolean modified = false;
+
+		List<K> keys = new ArrayList<K>();
+		for (Entity entity : getAllEntitiesAsIterable(keysOnly)) {
+			if (filter.accept(entity)) {
+				keys.add(createKey(entity));
+				modified = true;
+
+				if (keys.size() == maxEntitiesPerDelete) {
+					removeAllKeys(keys);
+					keys.clear();
+				}
 			}
 		}
 		if (keys.size() > 0) {
-			service.delete(keys);
+			removeAllKeys(keys);
+		}
+
+		return modified;
+	}
+
+	/**
+	 * Removes all of the mappings from this map. Keys are read with a
+	 * keys-only query and deleted with batch deletes, which run on the
+	 * executor of this map while the query goes on.
+	 */
+	@Override
+	public void clear() {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+			List<Key> keys = new ArrayList<Key>(maxEntitiesPerDelete);
+			Executor executor = getRpcExecutor();
+			Iterable<Entity> entities = getAllEntitiesAsIterable(true);
+			for (Entity entity : entities) {
+				keys.add(entity.getKey());
+
+				if (keys.size() == maxEntitiesPerDelete) {
+					FutureTask<Void> task = new FutureTask<Void>(
+							createDeletion(keys, true));
+					tasks.add(task);
+					executor.execute(task);
+
+					keys = new ArrayList<Key>(maxEntitiesPerDelete);
+				}
+			}
+			if (keys.size() > 0) {
+				FutureTask<Void> task = new FutureTask<Void>(createDeletion(
+						keys, false));
+				tasks.add(task);
+				executor.execute(task);
+			}
+			RpcExecutors.getAll(tasks);
+
+			RequestScope scope = getRequestScope();
+			if (scope != null) {
+				scope.forgetKind(kind);
+			}
+		} finally {
+			statistics.end(Operation.CLEAR, startTime);
 		}
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
 		try {
-			service.get(createDatastoreKey(key));
+			getReadService().get(createDatastoreKey(key));
 
 			return true;
 		} catch (EntityNotFoundException e) {
 			return false;
+		} finally {
+			statistics.end(Operation.CONTAINS_KEY, startTime);
+		}
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Iterable<Entity> entities = getAllEntitiesAsIterable(false);
+
+			for (Entity entity : entities) {
+				V v = createValue(entity);
+				if (v != null && v.equals(value)) {
+					return true;
+				}
+			}
+
+			return false;
+		} finally {
+			statistics.end(Operation.CONTAINS_VALUE, startTime);
+		}
+	}
+
+	/**
+	 * Splits the keys of this map into ranges of about the same number of
+	 * entities. Split points are picked from keys sampled in the order of the
+	 * <tt>__scatter__</tt> property, which Datastore sets to a random value on
+	 * some of the entities, so that the ranges can be read with their own
+	 * queries in parallel by {@link DatastoreMap#entries(KeyRange)},
+	 * {@link DatastoreMap#keys(KeyRange)} and
+	 * {@link DatastoreMap#values(KeyRange)}.
+	 * 
+	 * <p>
+	 * Fewer ranges are returned when there are not enough samples, for
+	 * example for small kinds or on the development server, which does not
+	 * set <tt>__scatter__</tt>. The ranges cover all keys in any case.
+	 * </p>
+	 * 
+	 * @param numberOfRanges
+	 *            the desired number of ranges
+	 * @return the ranges in the order of keys
+	 * @throws IllegalArgumentException
+	 *             if <tt>numberOfRanges</tt> is not positive
+	 */
+	public List<KeyRange> splitKeyRanges(int numberOfRanges)
+			throws IllegalArgumentException {
+		if (numberOfRanges <= 0) {
+			throw new IllegalArgumentException(
+					"\"numberOfRanges\" must be positive.");
+		}
+
+		List<KeyRange> ranges = new ArrayList<KeyRange>();
+		if (numberOfRanges == 1) {
+			ranges.add(KeyRange.ALL);
+			return ranges;
+		}
+
+		Query query = new Query(kind).setKeysOnly().addSort(
+				SCATTER_PROPERTY_NAME);
+		List<Key> samples = new ArrayList<Key>();
+		for (Entity entity : getReadService().prepare(query).asList(
+				FetchOptions.Builder.withLimit(numberOfRanges
+						* SCATTER_OVERSAMPLING_FACTOR))) {
+			samples.add(entity.getKey());
+		}
+		Collections.sort(samples);
+
+		Key fromKey = null;
+		for (int i = 1; i < numberOfRanges && samples.size() > 0; i++) {
+			Key toKey = samples.get(i * samples.size() / numberOfRanges);
+			if (fromKey == null || fromKey.compareTo(toKey) < 0) {
+				ranges.add(new KeyRange(fromKey, toKey));
+				fromKey = toKey;
+			}
+		}
+		ranges.add(new KeyRange(fromKey, null));
+
+		return ranges;
+	}
+
+	/**
+	 * Returns the mappings in the given range with one query, which reads the
+	 * values together with the keys. <tt>setValue()</tt> of the entries and
+	 * <tt>remove()</tt> of the iterators write through to this map.
+	 * 
+	 * @param range
+	 *            the range of keys
+	 * @return the mappings in the range in the order of keys
+	 * @throws UnsupportedOperationException
+	 *             if <tt>keyParser</tt> is null or not given
+	 * @see DatastoreMap#splitKeyRanges(int)
+	 */
+	public Iterable<Entry<K, V>> entries(final KeyRange range)
+			throws UnsupportedOperationException {
+		if (keyParser == null) {
+			throw new UnsupportedOperationException(
+					"Give a Parser object to parse stringified keys.");
+		}
+
+		return new Iterable<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return new RangeIterator<Entry<K, V>>(range, false) {
+					@Override
+					protected Entry<K, V> create(Entity entity) {
+						return new LoadedEntry(createKey(entity),
+								createValue(entity));
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Returns the keys in the given range with one keys-only query.
+	 * 
+	 * @param range
+	 *            the range of keys
+	 * @return the keys in the range in the order of keys
+	 * @throws UnsupportedOperationException
+	 *             if <tt>keyParser</tt> is null or not given
+	 * @see DatastoreMap#splitKeyRanges(int)
+	 */
+	public Iterable<K> keys(final KeyRange range)
+			throws UnsupportedOperationException {
+		if (keyParser == null) {
+			throw new UnsupportedOperationException(
+					"Give a Parser object to parse stringified keys.");
+		}
+
+		return new Iterable<K>() {
+			@Override
+			public Iterator<K> iterator() {
+				return new RangeIterator<K>(range, true) {
+					@Override
+					protected K create(Entity entity) {
+						return createKey(entity);
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Returns the values in the given range with one query. <tt>remove()</tt>
+	 * of the iterators is supported only if <tt>keyParser</tt> is given.
+	 * 
+	 * @param range
+	 *            the range of keys
+	 * @return the values in the range in the order of keys
+	 * @see DatastoreMap#splitKeyRanges(int)
+	 */
+	public Iterable<V> values(final KeyRange range) {
+		return new Iterable<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new RangeIterator<V>(range, false) {
+					@Override
+					protected V create(Entity entity) {
+						return createValue(entity);
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Returns a publisher of the mappings in the given range. Each
+	 * subscription reads entities with queries of at most <tt>pageSize</tt>
+	 * entities continued by cursors, and reads only as many entities as the
+	 * subscriber has requested, so that a slow subscriber throttles the reads
+	 * and at most one page is held in memory however large the kind is.
+	 * Pages are read and decoded on the executor of this map, which runs them
+	 * on the thread calling <tt>request()</tt> by default on JVMs without
+	 * virtual threads.
+	 * 
+	 * @param range
+	 *            the range of keys
+	 * @param pageSize
+	 *            the maximum number of entities read with one query
+	 * @return the publisher of the mappings in the order of keys
+	 * @throws UnsupportedOperationException
+	 *             if <tt>keyParser</tt> is null or not given
+	 * @throws IllegalArgumentException
+	 *             if <tt>range</tt> is <tt>null</tt> or <tt>pageSize</tt> is
+	 *             not positive
+	 * @see DatastoreMap#setExecutor(Executor, int)
+	 */
+	public Publisher<Entry<K, V>> entryPublisher(KeyRange range, int pageSize)
+			throws UnsupportedOperationException, IllegalArgumentException {
+		if (keyParser == null) {
+			throw new UnsupportedOperationException(
+					"Give a Parser object to parse stringified keys.");
+		}
+		checkPublisherArguments(range, pageSize);
+
+		return new ScanPublisher<K, V, Entry<K, V>>(this, range, false,
+				pageSize) {
+			@Override
+			protected Entry<K, V> create(Entity entity) {
+				return new LoadedEntry(createKey(entity), createValue(entity));
+			}
+		};
+	}
+
+	/**
+	 * Returns a publisher of the values in the given range in the same way as
+	 * {@link DatastoreMap#entryPublisher(KeyRange, int)}. Mappings to
+	 * <tt>null</tt> are skipped because publishers cannot emit
+	 * <tt>null</tt>.
+	 * 
+	 * @param range
+	 *            the range of keys
+	 * @param pageSize
+	 *            the maximum number of entities read with one query
+	 * @return the publisher of the values in the order of keys
+	 * @throws IllegalArgumentException
+	 *             if <tt>range</tt> is <tt>null</tt> or <tt>pageSize</tt> is
+	 *             not positive
+	 */
+	public Publisher<V> valuePublisher(KeyRange range, int pageSize)
+			throws IllegalArgumentException {
+		checkPublisherArguments(range, pageSize);
+
+		return new ScanPublisher<K, V, V>(this, range, false, pageSize) {
+			@Override
+			protected V create(Entity entity) {
+				return createValue(entity);
+			}
+		};
+	}
+
+	private void checkPublisherArguments(KeyRange range, int pageSize)
+			throws IllegalArgumentException {
+		if (range == null) {
+			throw new IllegalArgumentException("\"range\" cannot be null.");
+		}
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException(
+					"\"pageSize\" must be positive.");
+		}
+	}
+
+	/**
+	 * Reduces all values of this map in parallel. The kind is split into key
+	 * ranges, the values of each range are read, decoded and accumulated from
+	 * <tt>identity</tt> by a task on the executor of the options, and the
+	 * partial results are merged by <tt>combiner</tt> in the order of the
+	 * ranges. Values which cannot be decoded are skipped.
+	 * 
+	 * <pre>
+	 * Long total = orders.reduce(0L, new Accumulator&lt;Long, Order&gt;() {
+	 * 	public Long accumulate(Long result, Order order) {
+	 * 		return result + order.getAmount();
+	 * 	}
+	 * }, new Merger&lt;Long&gt;() {
+	 * 	public Long merge(Long oldValue, Long value) {
+	 * 		return oldValue + value;
+	 * 	}
+	 * }, ScanOptions.Builder.withExecutor(executor));
+	 * </pre>
+	 * 
+	 * @param <R>
+	 *            the type of the result
+	 * @param identity
+	 *            the initial value of each partial result, which is shared by
+	 *            the tasks and must not be modified
+	 * @param accumulator
+	 *            the accumulator to add a value to a partial result, which
+	 *            is called by the tasks concurrently
+	 * @param combiner
+	 *            the merger to merge two partial results
+	 * @param options
+	 *            options of the number of partitions and the executor
+	 * @return the result, or <tt>identity</tt> if this map is empty
+	 * @throws IllegalStateException
+	 *             if the calling thread is interrupted or a task fails with a
+	 *             checked exception
+	 * @see DatastoreMap#splitKeyRanges(int)
+	 */
+	public <R> R reduce(R identity, Accumulator<R, V> accumulator,
+			Merger<R> combiner, ScanOptions options)
+			throws IllegalStateException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return new Aggregator<K, V>(this, options).reduce(identity,
+					accumulator, combiner);
+		} finally {
+			statistics.end(Operation.AGGREGATE, startTime);
+		}
+	}
+
+	/**
+	 * Counts the values which are accepted by the given filter in parallel in
+	 * the same way as
+	 * {@link DatastoreMap#reduce(Object, Accumulator, Merger, ScanOptions)}.
+	 * Use {@link DatastoreMap#size()} to count all entries without decoding
+	 * values.
+	 * 
+	 * @param filter
+	 *            the filter, which is called by the tasks concurrently
+	 * @param options
+	 *            options of the number of partitions and the executor
+	 * @return the number of accepted values
+	 * @throws IllegalStateException
+	 *             if the calling thread is interrupted
+	 */
+	public long count(final Filter<V> filter, ScanOptions options)
+			throws IllegalStateException {
+		return reduce(0L, new Accumulator<Long, V>() {
+			@Override
+			public Long accumulate(Long result, V object) {
+				return filter.accept(object) ? result + 1L : result;
+			}
+		}, SUM, options);
+	}
+
+	/**
+	 * Computes the count, the sum, the minimum and the maximum of the numbers
+	 * measured from the values in parallel in the same way as
+	 * {@link DatastoreMap#reduce(Object, Accumulator, Merger, ScanOptions)}.
+	 * 
+	 * @param measurer
+	 *            the measurer to get a number from a value, which is called by
+	 *            the tasks concurrently
+	 * @param options
+	 *            options of the number of partitions and the executor
+	 * @return the summary of the numbers
+	 * @throws IllegalStateException
+	 *             if the calling thread is interrupted
+	 */
+	public LongSummary summarize(final Measurer<V> measurer,
+			ScanOptions options) throws IllegalStateException {
+		return reduce(LongSummary.EMPTY, new Accumulator<LongSummary, V>() {
+			@Override
+			public LongSummary accumulate(LongSummary result, V object) {
+				return result.add(measurer.measure(object));
+			}
+		}, new Merger<LongSummary>() {
+			@Override
+			public LongSummary merge(LongSummary oldValue, LongSummary value) {
+				return oldValue.merge(value);
+			}
+		}, options);
+	}
+
+	public long sum(Measurer<V> measurer, ScanOptions options)
+			throws IllegalStateException {
+		return summarize(measurer, options).getSum();
+	}
+
+	/**
+	 * @return the minimum, or <tt>null</tt> if this map is empty
+	 */
+	public Long min(Measurer<V> measurer, ScanOptions options)
+			throws IllegalStateException {
+		LongSummary summary = summarize(measurer, options);
+
+		return summary.getCount() > 0L ? summary.getMin() : null;
+	}
+
+	/**
+	 * @return the maximum, or <tt>null</tt> if this map is empty
+	 */
+	public Long max(Measurer<V> measurer, ScanOptions options)
+			throws IllegalStateException {
+		LongSummary summary = summarize(measurer, options);
+
+		return summary.getCount() > 0L ? summary.getMax() : null;
+	}
+
+	/**
+	 * @return a set view of the mappings contained in this map
+	 * @throws UnsupportedOperationException
+	 *             if <tt>keyParser</tt> is null or not given
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet() throws UnsupportedOperationException {
+		if (keyParser == null) {
+			throw new UnsupportedOperationException(
+					"Give a Parser object to parse stringified keys.");
+		}
+
+		return new EntrySet();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			RequestScope scope = getRequestScope();
+			if (scope == null) {
+				return load(key);
+			}
+
+			Key datastoreKey = createDatastoreKey(key);
+			Object memoizedValue = scope.lookup(datastoreKey);
+			if (memoizedValue != null) {
+				return memoizedValue != RequestScope.NULL_VALUE
+						? (V) memoizedValue : null;
+			}
+
+			V value = load(key);
+			scope.memoize(datastoreKey, value);
+
+			return value;
+		} finally {
+			statistics.end(Operation.GET, startTime);
+		}
+	}
+
+	/**
+	 * Reads the value to which the specified key is mapped, bypassing the
+	 * request-scoped memo. Subclasses override this method instead of
+	 * <tt>get()</tt> to change how values are read.
+	 * 
+	 * @param key
+	 *            the key whose associated value is to be returned
+	 * @return the value, or <tt>null</tt> if this map contains no mapping for
+	 *         the key
+	 */
+	protected V load(Object key) {
+		if (isCoalescing()) {
+			return getCoalesced(key);
+		}
+
+		return getFromReadService(key);
+	}
+
+	/**
+	 * Returns the values to which the specified keys are mapped with batch
+	 * gets of Datastore, each of which reads at most
+	 * <tt>maxEntitiesPerGet</tt> entities of the configuration.
+	 * 
+	 * @param keys
+	 *            the keys whose associated values are to be returned
+	 * @return a map which contains the mappings of the keys found in this map
+	 */
+	public Map<K, V> getAll(Collection<? extends K> keys) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Map<Key, K> datastoreKeys = new LinkedHashMap<Key, K>();
+			for (K key : keys) {
+				datastoreKeys.put(createDatastoreKey(key), key);
+			}
+
+			Map<K, V> values = new HashMap<K, V>();
+			if (datastoreKeys.isEmpty()) {
+				return values;
+			}
+
+			Map<Key, Entity> entities = getEntities(datastoreKeys.keySet());
+			for (Entry<Key, Entity> entry : entities.entrySet()) {
+				values.put(datastoreKeys.get(entry.getKey()), createValue(entry
+						.getValue()));
+			}
+
+			return values;
+		} finally {
+			statistics.end(Operation.GET_ALL, startTime);
+		}
+	}
+
+	/**
+	 * Returns a future of the value to which the specified key is mapped. Keys
+	 * requested with this method are fetched together with one
+	 * {@link DatastoreMap#getAll(Collection)} when any of the futures is
+	 * resolved or {@link DatastoreMap#dispatch()} is called, so that
+	 * components of a request can ask for values independently and still
+	 * cause one RPC. A key requested several times is fetched once.
+	 * 
+	 * <pre>
+	 * Future&lt;User&gt; author = users.getLater(post.getAuthorId());
+	 * Future&lt;User&gt; editor = users.getLater(post.getEditorId());
+	 * render(author.get(), editor.get()); // one batch get
+	 * </pre>
+	 * 
+	 * @param key
+	 *            the key whose associated value is to be returned
+	 * @return a future of the value, which is <tt>null</tt> if this map
+	 *         contains no mapping for the key
+	 */
+	public Future<V> getLater(K key) {
+		return batcher.getLater(key);
+	}
+
+	/**
+	 * Fetches the values requested by {@link DatastoreMap#getLater(Object)}
+	 * which are not fetched yet.
+	 */
+	public void dispatch() {
+		batcher.dispatch();
+	}
+
+	public long getCoalescingWindow() {
+		return coalescingWindow;
+	}
+
+	public int getMaxCoalescedKeys() {
+		return maxCoalescedKeys;
+	}
+
+	public void setCoalescing(long windowMillis)
+			throws IllegalArgumentException {
+		setCoalescing(windowMillis, DEFAULT_MAX_COALESCED_KEYS);
+	}
+
+	/**
+	 * Makes <tt>get()</tt> coalesce calls from different threads within the
+	 * window into one {@link DatastoreMap#getAll(Collection)}. The first call
+	 * waits for the window, or until <tt>maxKeys</tt> keys are requested, so
+	 * the window adds to the latency of <tt>get()</tt> in exchange for fewer
+	 * RPCs. Calls made while a transaction is active are not coalesced.
+	 * 
+	 * @param windowMillis
+	 *            the window in milliseconds, or 0 to disable coalescing
+	 * @param maxKeys
+	 *            the maximum number of keys fetched at once
+	 * @throws IllegalArgumentException
+	 *             if <tt>maxKeys</tt> is not positive
+	 */
+	public void setCoalescing(long windowMillis, int maxKeys)
+			throws IllegalArgumentException {
+		if (maxKeys <= 0) {
+			throw new IllegalArgumentException(
+					"\"maxKeys\" must be positive.");
+		}
+
+		this.coalescingWindow = Math.max(windowMillis, 0L);
+		this.maxCoalescedKeys = maxKeys;
+	}
+
+	public boolean isRequestScoped() {
+		return requestScoped;
+	}
+
+	/**
+	 * Makes <tt>get()</tt> memoize values in the {@link RequestScope}, which is
+	 * the current request by default. A key read again in the request is
+	 * answered from the memo without RPCs, and writes through this map update
+	 * the memo. The memo is dropped at the end of the request.
+	 * 
+	 * @param requestScoped
+	 *            <tt>true</tt> to memoize values in the request scope
+	 * @see RequestScope
+	 */
+	public void setRequestScoped(boolean requestScoped) {
+		this.requestScoped = requestScoped;
+	}
+
+	public boolean isGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * Makes <tt>update()</tt> commit concurrent calls on the same key in this
+	 * instance together. While a transaction on a key is running, the
+	 * updaters for the key queue up, and then they are applied in order to one
+	 * read value and committed in one transaction. Each caller gets the value
+	 * produced by its own updater, and an exception thrown by an updater is
+	 * thrown only to its caller. This turns conflicting transactions on a hot
+	 * key into one.
+	 * 
+	 * @param groupCommit
+	 *            <tt>true</tt> to commit concurrent updates together
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor to fan out the RPCs of bulk operations like
+	 * <tt>clear()</tt>, <tt>putAll()</tt> and <tt>getAll()</tt>, and to run
+	 * scans and mass updates whose options give no executor. At most
+	 * <tt>maxConcurrentRpcs</tt> tasks are passed to the executor at a time
+	 * and the other tasks run on the calling thread. By default, the
+	 * executor given by {@link RpcExecutors#getDefaultExecutor()} is used
+	 * with {@link RpcExecutors#DEFAULT_MAX_CONCURRENT_RPCS}. While a
+	 * transaction is active on the calling thread, the RPCs of bulk operations
+	 * run on the calling thread to join the transaction.
+	 * 
+	 * @param executor
+	 *            the executor, or {@link RpcExecutors#CALLER_RUNS} to run
+	 *            all RPCs on the calling thread
+	 * @param maxConcurrentRpcs
+	 *            the maximum number of tasks running on the executor at a
+	 *            time
+	 * @throws IllegalArgumentException
+	 *             if <tt>executor</tt> is <tt>null</tt> or
+	 *             <tt>maxConcurrentRpcs</tt> is not positive
+	 */
+	public void setExecutor(Executor executor, int maxConcurrentRpcs)
+			throws IllegalArgumentException {
+		this.executor = new BoundedExecutor(executor, maxConcurrentRpcs);
+	}
+
+	/**
+	 * Returns the executor to run the RPCs of bulk operations. While a
+	 * transaction is active on the current thread, RPCs run on the current
+	 * thread, because they would leave the transaction on other threads.
+	 * 
+	 * @return the executor to run RPCs with now
+	 */
+	protected Executor getRpcExecutor() {
+		if (service.getCurrentTransaction(null) != null) {
+			return RpcExecutors.CALLER_RUNS;
+		}
+
+		return executor;
+	}
+
+	protected RequestScope getRequestScope() {
+		return requestScoped ? RequestScope.getCurrent() : null;
+	}
+
+	protected void memoize(Object key, V value) {
+		RequestScope scope = getRequestScope();
+		if (scope != null) {
+			scope.memoize(createDatastoreKey(key), value);
+		}
+	}
+
+	/**
+	 * Returns whether gets are coalesced now. Gets are never coalesced while
+	 * a transaction is active on the current thread, because a batch is read
+	 * outside of the transaction.
+	 * 
+	 * @return <tt>true</tt> if gets are to be coalesced
+	 */
+	protected boolean isCoalescing() {
+		return coalescingWindow > 0L
+				&& service.getCurrentTransaction(null) == null;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected V getCoalesced(Object key) {
+		return batcher.get((K) key, coalescingWindow, maxCoalescedKeys);
+	}
+
+	protected V getOrNotFound(Object key) throws EntityNotFoundException {
+		return createValue(service.get(createDatastoreKey(key)));
+	}
+
+	protected V getFromDatastore(Object key) {
+		try {
+			return getOrNotFound(key);
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the value to which the specified key is mapped with the service
+	 * returned by {@link DatastoreMap#getReadService()}.
+	 * 
+	 * @param key
+	 *            the key whose associated value is to be returned
+	 * @return the value, or <tt>null</tt> if this map contains no mapping for
+	 *         the key
+	 */
+	protected V getFromReadService(Object key) {
+		try {
+			return createValue(getReadService().get(createDatastoreKey(key)));
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the service for reads. While a transaction is active on the
+	 * current thread, the service for writes is returned instead, because
+	 * reads with another <tt>ReadPolicy</tt> cannot join the transaction and
+	 * should be consistent with it.
+	 * 
+	 * @return the service to read entities with now
+	 */
+	protected DatastoreService getReadService() {
+		if (readService != service
+				&& service.getCurrentTransaction(null) != null) {
+			return service;
+		}
+
+		return readService;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Iterable<Entity> entities = getAllEntitiesAsIterable(true);
+
+			return !entities.iterator().hasNext();
+		} finally {
+			statistics.end(Operation.IS_EMPTY, startTime);
+		}
+	}
+
+	/**
+	 * @return a set view of the keys contained in this map
+	 * @throws UnsupportedOperationException
+	 *             if <tt>keyParser</tt> is null or not given
+	 */
+	@Override
+	public Set<K> keySet() throws UnsupportedOperationException {
+		if (keyParser == null) {
+			throw new UnsupportedOperationException(
+					"Give a Parser object to parse stringified keys.");
+		}
+
+		return new KeySet();
+	}
+
+	@Override
+	public V put(K key, V value) throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			ConcurrentModificationException exception;
+			int retryCount = 0;
+
+			do {
+				if (retryCount > 0) {
+					statistics.recordRetry();
+				}
+
+				Transaction transaction = service.beginTransaction();
+
+				V oldValue = getFromDatastore(key);
+
+				try {
+					service.put(createEntity(key, value));
+					transaction.commit();
+					memoize(key, value);
+
+					return oldValue;
+				} catch (ConcurrentModificationException e) {
+					if (transaction.isActive()) {
+						transaction.rollback();
+					}
+
+					exception = e;
+				}
+			} while (retryCount++ < numberOfRetries);
+
+			throw exception;
+		} finally {
+			statistics.end(Operation.PUT, startTime);
+		}
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			List<Entity> entities = new ArrayList<Entity>(m.size());
+			for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+				entities.add(createEntity(entry.getKey(), entry.getValue()));
+			}
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (final List<Entity> chunk : split(entities,
+					maxEntitiesPerPut)) {
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						service.put(chunk);
+
+						return null;
+					}
+				});
+			}
+			RpcExecutors.invokeAll(getRpcExecutor(), tasks);
+
+			for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+				memoize(entry.getKey(), entry.getValue());
+			}
+		} finally {
+			statistics.end(Operation.PUT_ALL, startTime);
+		}
+	}
+
+	@Override
+	public V remove(Object key) throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			ConcurrentModificationException exception;
+			int retryCount = 0;
+
+			do {
+				if (retryCount > 0) {
+					statistics.recordRetry();
+				}
+
+				Transaction transaction = service.beginTransaction();
+
+				V oldValue = getFromDatastore(key);
+
+				try {
+					Key datastoreKey = createDatastoreKey(key);
+					service.delete(datastoreKey);
+					transaction.commit();
+					versionHints.delete(datastoreKey);
+					memoize(key, null);
+
+					return oldValue;
+				} catch (ConcurrentModificationException e) {
+					if (transaction.isActive()) {
+						transaction.rollback();
+					}
+
+					exception = e;
+				}
+			} while (retryCount++ < numberOfRetries);
+
+			throw exception;
+		} finally {
+			statistics.end(Operation.REMOVE, startTime);
+		}
+	}
+
+	@Override
+	public int size() {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return getPreparedQueryForAllEntities(true).countEntities();
+		} finally {
+			statistics.end(Operation.SIZE, startTime);
+		}
+	}
+
+	@Override
+	public V update(K key, final Updater<V> updater)
+			throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			if (groupCommit) {
+				return committer.update(key, updater);
+			}
+
+			Modification modification = new Modification() {
+				@Override
+				protected boolean apply() {
+					if (oldValue == null) {
+						return false;
+					}
+
+					newValue = updater.update(oldValue);
+
+					return true;
+				}
+			};
+
+			return modify(key, modification) ? modification.newValue : null;
+		} finally {
+			statistics.end(Operation.UPDATE, startTime);
+		}
+	}
+
+	/**
+	 * If the specified key is not already associated with a value, associates
+	 * it with the given value in one transaction. Whether the key is absent is
+	 * decided only by the read in the transaction, which is never served by
+	 * the request-scoped memo, coalesced gets or the read service.
+	 * 
+	 * @param key
+	 *            key with which the specified value is to be associated
+	 * @param value
+	 *            value to be associated with the specified key
+	 * @return the previous value associated with the key, or <tt>null</tt> if
+	 *         there was no mapping for the key
+	 * @throws NullPointerException
+	 *             if <tt>value</tt> is null
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	@Override
+	public V putIfAbsent(K key, final V value) throws NullPointerException,
+			ConcurrentModificationException {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Modification modification = new Modification() {
+				@Override
+				protected boolean apply() {
+					if (oldValue != null) {
+						return false;
+					}
+
+					newValue = value;
+
+					return true;
+				}
+			};
+			modify(key, modification);
+
+			return modification.oldValue;
+		} finally {
+			statistics.end(Operation.PUT_IF_ABSENT, startTime);
+		}
+	}
+
+	/**
+	 * Removes the entry for a key only if it is currently mapped to the given
+	 * value, in one transaction.
+	 * 
+	 * @param key
+	 *            key with which the specified value is associated
+	 * @param value
+	 *            value expected to be associated with the specified key
+	 * @return <tt>true</tt> if the value was removed
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean remove(Object key, final Object value)
+			throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			if (value == null) {
+				return false;
+			}
+
+			return modify((K) key, new Modification() {
+				@Override
+				protected boolean apply() {
+					if (!value.equals(oldValue)) {
+						return false;
+					}
+
+					removing = true;
+
+					return true;
+				}
+			});
+		} finally {
+			statistics.end(Operation.REMOVE, startTime);
+		}
+	}
+
+	/**
+	 * Replaces the entry for a key only if it is currently mapped to the given
+	 * value, in one transaction.
+	 * 
+	 * @param key
+	 *            key with which the specified value is associated
+	 * @param oldValue
+	 *            value expected to be associated with the specified key
+	 * @param newValue
+	 *            value to be associated with the specified key
+	 * @return <tt>true</tt> if the value was replaced
+	 * @throws NullPointerException
+	 *             if <tt>oldValue</tt> or <tt>newValue</tt> is null
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	@Override
+	public boolean replace(K key, final V oldValue, final V newValue)
+			throws NullPointerException, ConcurrentModificationException {
+		if (oldValue == null || newValue == null) {
+			throw new NullPointerException();
+		}
+
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return modify(key, new Modification() {
+				@Override
+				protected boolean apply() {
+					if (!oldValue.equals(this.oldValue)) {
+						return false;
+					}
+
+					this.newValue = newValue;
+
+					return true;
+				}
+			});
+		} finally {
+			statistics.end(Operation.REPLACE, startTime);
+		}
+	}
+
+	/**
+	 * Replaces the entry for a key only if it is currently mapped to some
+	 * value, in one transaction.
+	 * 
+	 * @param key
+	 *            key with which the specified value is associated
+	 * @param value
+	 *            value to be associated with the specified key
+	 * @return the previous value associated with the key, or <tt>null</tt> if
+	 *         there was no mapping for the key
+	 * @throws NullPointerException
+	 *             if <tt>value</tt> is null
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	@Override
+	public V replace(K key, final V value) throws NullPointerException,
+			ConcurrentModificationException {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Modification modification = new Modification() {
+				@Override
+				protected boolean apply() {
+					if (oldValue == null) {
+						return false;
+					}
+
+					newValue = value;
+
+					return true;
+				}
+			};
+			modify(key, modification);
+
+			return modification.oldValue;
+		} finally {
+			statistics.end(Operation.REPLACE, startTime);
+		}
+	}
+
+	/**
+	 * If the specified key is not already associated with a value, computes a
+	 * value with the given updater, which is given <tt>null</tt>, and stores
+	 * it in one transaction. Whether the key is absent is decided only by the
+	 * read in the transaction. Nothing is stored if the updater returns
+	 * <tt>null</tt>.
+	 * 
+	 * @param key
+	 *            key with which the computed value is to be associated
+	 * @param updater
+	 *            the updater to compute a value, which is called in the
+	 *            transaction and may be called again on retries
+	 * @return the current value associated with the key, or <tt>null</tt> if
+	 *         the computed value is <tt>null</tt>
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	public V computeIfAbsent(K key, final Updater<V> updater)
+			throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Modification modification = new Modification() {
+				@Override
+				protected boolean apply() {
+					if (oldValue != null) {
+						return false;
+					}
+
+					newValue = updater.update(null);
+
+					return newValue != null;
+				}
+			};
+
+			return modify(key, modification) ? modification.newValue
+					: modification.oldValue;
+		} finally {
+			statistics.end(Operation.COMPUTE, startTime);
+		}
+	}
+
+	/**
+	 * If the value for the specified key is present, computes a new value
+	 * with the given updater and stores it in one transaction. The entry is
+	 * removed if the updater returns <tt>null</tt>.
+	 * 
+	 * @param key
+	 *            key with which the computed value is to be associated
+	 * @param updater
+	 *            the updater to compute a value, which is called in the
+	 *            transaction and may be called again on retries
+	 * @return the new value associated with the key, or <tt>null</tt> if none
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	public V computeIfPresent(K key, final Updater<V> updater)
+			throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Modification modification = new Modification() {
+				@Override
+				protected boolean apply() {
+					if (oldValue == null) {
+						return false;
+					}
+
+					newValue = updater.update(oldValue);
+					removing = newValue == null;
+
+					return true;
+				}
+			};
+
+			return modify(key, modification) ? modification.newValue : null;
+		} finally {
+			statistics.end(Operation.COMPUTE, startTime);
 		}
 	}
 
-	@Override
-	public boolean containsValue(Object value) {
-		Iterable<Entity> entities = getAllEntitiesAsIterable(false);
+	/**
+	 * Computes a new value from the current value, or <tt>null</tt> if there
+	 * is no current mapping, with the given updater and stores it in one
+	 * transaction. The entry is removed if the updater returns <tt>null</tt>.
+	 * 
+	 * @param key
+	 *            key with which the computed value is to be associated
+	 * @param updater
+	 *            the updater to compute a value, which is called in the
+	 *            transaction and may be called again on retries
+	 * @return the new value associated with the key, or <tt>null</tt> if none
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	public V compute(K key, final Updater<V> updater)
+			throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Modification modification = new Modification() {
+				@Override
+				protected boolean apply() {
+					newValue = updater.update(oldValue);
+					removing = newValue == null;
 
-		for (Entity entity : entities) {
-			V v = createValue(entity);
-			if (v != null && v.equals(value)) {
-				return true;
-			}
-		}
+					return oldValue != null || newValue != null;
+				}
+			};
+			modify(key, modification);
 
-		return false;
+			return modification.newValue;
+		} finally {
+			statistics.end(Operation.COMPUTE, startTime);
+		}
 	}
 
 	/**
-	 * @return a set view of the mappings contained in this map
-	 * @throws UnsupportedOperationException
-	 *             if <tt>keyParser</tt> is null or not given
+	 * Associates the specified key with the given value if it is not already
+	 * associated with a value, or otherwise with the value merged by the
+	 * given merger, in one transaction. The entry is removed if the merger
+	 * returns <tt>null</tt>.
+	 * 
+	 * @param key
+	 *            key with which the resulting value is to be associated
+	 * @param value
+	 *            the value to be merged with the existing value
+	 * @param merger
+	 *            the merger to merge the existing value and <tt>value</tt>,
+	 *            which is called in the transaction and may be called again on
+	 *            retries
+	 * @return the new value associated with the key, or <tt>null</tt> if none
+	 * @throws NullPointerException
+	 *             if <tt>value</tt> is null
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
 	 */
-	@Override
-	public Set<Entry<K, V>> entrySet() throws UnsupportedOperationException {
-		if (keyParser == null) {
-			throw new UnsupportedOperationException(
-					"Give a Parser object to parse stringified keys.");
+	public V merge(K key, final V value, final Merger<V> merger)
+			throws NullPointerException, ConcurrentModificationException {
+		if (value == null) {
+			throw new NullPointerException();
 		}
 
-		return new EntrySet();
-	}
-
-	@Override
-	public V get(Object key) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
 		try {
-			return getOrNotFound(key);
-		} catch (EntityNotFoundException e) {
-			return null;
+			Modification modification = new Modification() {
+				@Override
+				protected boolean apply() {
+					if (oldValue == null) {
+						newValue = value;
+					} else {
+						newValue = merger.merge(oldValue, value);
+						removing = newValue == null;
+					}
+
+					return true;
+				}
+			};
+			modify(key, modification);
+
+			return modification.newValue;
+		} finally {
+			statistics.end(Operation.MERGE, startTime);
 		}
 	}
 
-	protected V getOrNotFound(Object key) throws EntityNotFoundException {
-		return createValue(service.get(createDatastoreKey(key)));
-	}
+	/**
+	 * Updates the values of the specified keys together. The values are read
+	 * with one batch get in a cross-group transaction, the updater is applied
+	 * to the snapshot of them and the results are written with one batch put
+	 * and one batch delete in the same transaction, which is retried on
+	 * contention.
+	 * 
+	 * <p>
+	 * The updater is given a mutable map of all the keys, in which the keys
+	 * not found in this map are mapped to <tt>null</tt>, and returns the new
+	 * contents for the keys: entries with non-null values are written, and
+	 * the keys missing from the returned map or mapped to <tt>null</tt> are
+	 * removed. Returning <tt>null</tt> leaves all of them untouched.
+	 * </p>
+	 * 
+	 * <p>
+	 * A cross-group transaction can contain at most
+	 * {@link DatastoreMap#MAX_KEYS_PER_TRANSACTION} entity groups, and each key
+	 * of this map is an entity group. More keys are split into chunks of that
+	 * size in the given order, and the updater is applied to each chunk in its
+	 * own transaction. Keys which must be updated atomically should be given
+	 * in one call with no more keys than that.
+	 * </p>
+	 * 
+	 * @param keys
+	 *            the keys whose values are to be updated
+	 * @param updater
+	 *            the updater, which is called in the transaction and may be
+	 *            called again on retries
+	 * @return a map which contains the new mappings of the keys
+	 * @throws IllegalArgumentException
+	 *             if the updater returns a key which is not in the chunk
+	 * @throws ConcurrentModificationException
+	 *             if a transaction fails after all retries
+	 */
+	public Map<K, V> updateAll(Collection<? extends K> keys,
+			Updater<Map<K, V>> updater) throws IllegalArgumentException,
+			ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			List<K> uniqueKeys = new ArrayList<K>(new LinkedHashSet<K>(keys));
+			int size = uniqueKeys.size();
+
+			Map<K, V> values = new HashMap<K, V>();
+			for (int i = 0; i < size; i += MAX_KEYS_PER_TRANSACTION) {
+				List<K> chunk = uniqueKeys.subList(i, Integers.min(i
+						+ MAX_KEYS_PER_TRANSACTION, size));
+				values.putAll(updateAtomically(chunk, updater));
+			}
 
-	@Override
-	public boolean isEmpty() {
-		Iterable<Entity> entities = getAllEntitiesAsIterable(true);
+			return values;
+		} finally {
+			statistics.end(Operation.UPDATE_ALL, startTime);
+		}
+	}
 
-		return !entities.iterator().hasNext();
+	/**
+	 * Updates all values of this map with the given updater in the same way
+	 * as {@link DatastoreMap#updateAll(Updater, MassUpdateOptions)} with the
+	 * default options.
+	 * 
+	 * @param updater
+	 *            the updater, which is called in the transaction of each entry
+	 *            and may be called again on retries
+	 * @return the progress of the update
+	 * @throws UnsupportedOperationException
+	 *             if <tt>keyParser</tt> is null or not given
+	 */
+	public MassUpdateResult updateAll(Updater<V> updater)
+			throws UnsupportedOperationException {
+		return updateAll(updater, MassUpdateOptions.Builder.withDefaults());
 	}
 
 	/**
-	 * @return a set view of the keys contained in this map
+	 * Updates all values of this map with the given updater, for schema
+	 * migrations and bulk recomputation. The kind is split into key ranges
+	 * using the <tt>__scatter__</tt> property of Datastore, the ranges are
+	 * scanned with keys-only queries in parallel on the executor of the
+	 * options, and each entry is updated in its own transaction in the same
+	 * way as {@link DatastoreMap#update(Object, Updater)}.
+	 * 
+	 * <p>
+	 * When the time limit of the options is reached, each range stops and
+	 * checkpoints its cursor in the returned result, which is given to
+	 * {@link MassUpdateOptions#resumeFrom(MassUpdateResult)} to continue the
+	 * update in another request or task. Entries whose transactions fail after
+	 * all retries or whose updaters throw exceptions are skipped and counted
+	 * as failures.
+	 * </p>
+	 * 
+	 * @param updater
+	 *            the updater, which is called in the transaction of each entry
+	 *            and may be called again on retries
+	 * @param options
+	 *            options of the number of partitions, the batch size, the time
+	 *            limit, the executor and the checkpoint to resume from
+	 * @return the progress of the update, which is also a checkpoint
 	 * @throws UnsupportedOperationException
 	 *             if <tt>keyParser</tt> is null or not given
+	 * @see MassUpdateResult
 	 */
-	@Override
-	public Set<K> keySet() throws UnsupportedOperationException {
-		if (keyParser == null) {
-			throw new UnsupportedOperationException(
-					"Give a Parser object to parse stringified keys.");
+	public MassUpdateResult updateAll(Updater<V> updater,
+			MassUpdateOptions options) throws UnsupportedOperationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return new MassUpdater<K, V>(this, updater, options).update();
+		} finally {
+			statistics.end(Operation.UPDATE_ALL, startTime);
 		}
-
-		return new KeySet();
 	}
 
-	@Override
-	public V put(K key, V value) throws ConcurrentModificationException {
+	protected Map<K, V> updateAtomically(List<K> keys,
+			Updater<Map<K, V>> updater) throws IllegalArgumentException,
+			ConcurrentModificationException {
+		Map<Key, K> datastoreKeys = new LinkedHashMap<Key, K>();
+		for (K key : keys) {
+			datastoreKeys.put(createDatastoreKey(key), key);
+		}
+
 		ConcurrentModificationException exception;
 		int retryCount = 0;
 
 		do {
-			Transaction transaction = service.beginTransaction();
+			if (retryCount > 0) {
+				statistics.recordRetry();
+			}
 
-			V oldValue = get(key);
+			Transaction transaction = keys.size() > 1 ? service
+					.beginTransaction(TransactionOptions.Builder.withXG(true))
+					: service.beginTransaction();
 
 			try {
-				service.put(createEntity(key, value));
+				Map<K, V> values = new HashMap<K, V>();
+				for (K key : keys) {
+					values.put(key, null);
+				}
+				for (Entry<Key, Entity> entry : service.get(
+						datastoreKeys.keySet()).entrySet()) {
+					values.put(datastoreKeys.get(entry.getKey()),
+							createValue(entry.getValue()));
+				}
+
+				Map<K, V> newValues = updater.update(values);
+				if (newValues == null) {
+					transaction.rollback();
+					values.values().removeAll(Collections.singleton(null));
+
+					return values;
+				}
+
+				List<Entity> entities = new ArrayList<Entity>();
+				List<Key> removedKeys = new ArrayList<Key>();
+				for (Entry<Key, K> entry : datastoreKeys.entrySet()) {
+					V value = newValues.get(entry.getValue());
+					if (value != null) {
+						entities.add(createEntity(entry.getKey(), value));
+					} else {
+						removedKeys.add(entry.getKey());
+					}
+				}
+				for (K key : newValues.keySet()) {
+					if (!datastoreKeys.containsKey(createDatastoreKey(key))) {
+						throw new IllegalArgumentException("'" + key
+								+ "' is not a key to update.");
+					}
+				}
+
+				if (entities.size() > 0) {
+					service.put(entities);
+				}
+				if (removedKeys.size() > 0) {
+					service.delete(removedKeys);
+				}
 				transaction.commit();
 
-				return oldValue;
+				Map<K, V> result = new HashMap<K, V>();
+				for (K key : keys) {
+					V value = newValues.get(key);
+					memoize(key, value);
+					if (value != null) {
+						result.put(key, value);
+					}
+				}
+
+				return result;
 			} catch (ConcurrentModificationException e) {
+				exception = e;
+			} finally {
 				if (transaction.isActive()) {
 					transaction.rollback();
 				}
-
-				exception = e;
 			}
 		} while (retryCount++ < numberOfRetries);
 
 		throw exception;
 	}
 
-	@Override
-	public void putAll(Map<? extends K, ? extends V> m) {
-		for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
-			service.put(createEntity(entry.getKey(), entry.getValue()));
+	/**
+	 * Returns the value to which the specified key is mapped with the version
+	 * of its entity. The value is read from Datastore without a transaction,
+	 * bypassing caches.
+	 * 
+	 * @param key
+	 *            the key whose associated value is to be returned
+	 * @return the value and its version, which are <tt>null</tt> and
+	 *         {@link DatastoreMap#NO_VERSION} if this map contains no mapping
+	 *         for the key
+	 */
+	public Versioned<V> getVersioned(Object key) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Entity entity;
+			try {
+				entity = service.get(createDatastoreKey(key));
+			} catch (EntityNotFoundException e) {
+				entity = null;
+			}
+
+			return new Versioned<V>(createValue(entity), getVersion(entity));
+		} finally {
+			statistics.end(Operation.GET, startTime);
 		}
 	}
 
-	@Override
-	public V remove(Object key) throws ConcurrentModificationException {
-		ConcurrentModificationException exception;
-		int retryCount = 0;
+	/**
+	 * Associates the specified key with the given value only if the version of
+	 * its entity is still <tt>expectedVersion</tt>, which is usually read with
+	 * {@link DatastoreMap#getVersioned(Object)}. The version is checked and
+	 * the value is written in one short transaction.
+	 * 
+	 * <p>
+	 * The versions written by this method are also kept in Memcache as hints.
+	 * When the hint of the key already differs from <tt>expectedVersion</tt>,
+	 * this method fails without a transaction, which keeps losers of contention
+	 * away from the entity group. A hint can be stale after writes by other
+	 * methods, so this method may fail spuriously once. The hint is fixed by
+	 * the failure and the next attempt goes to Datastore. The hints expire
+	 * and are deleted when their mappings are removed.
+	 * </p>
+	 * 
+	 * @param key
+	 *            key with which the specified value is to be associated
+	 * @param expectedVersion
+	 *            the expected version, or {@link DatastoreMap#NO_VERSION} to
+	 *            expect no mapping for the key, which also fails for a
+	 *            mapping written without a version
+	 * @param value
+	 *            value to be associated with the specified key, or
+	 *            <tt>null</tt> to remove the mapping
+	 * @return <tt>true</tt> if the value was written
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	public boolean compareAndSet(K key, final long expectedVersion,
+			final V value) throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Key datastoreKey = createDatastoreKey(key);
 
-		do {
-			Transaction transaction = service.beginTransaction();
+			Object hint = versionHints.get(datastoreKey);
+			if (hint instanceof Long && (Long) hint != expectedVersion) {
+				versionHints.delete(datastoreKey);
 
-			V oldValue = get(key);
+				return false;
+			}
 
-			try {
-				service.delete(createDatastoreKey(key));
-				transaction.commit();
+			Modification modification = new Modification() {
+				@Override
+				protected boolean apply() {
+					// entities written before versioning have no version
+					if (oldVersion != expectedVersion
+							|| (expectedVersion == NO_VERSION && present)) {
+						return false;
+					}
 
-				return oldValue;
-			} catch (ConcurrentModificationException e) {
-				if (transaction.isActive()) {
-					transaction.rollback();
+					newValue = value;
+					removing = value == null;
+
+					return true;
 				}
+			};
 
-				exception = e;
+			if (modify(key, modification)) {
+				if (!modification.removing) {
+					versionHints.put(datastoreKey, modification.newVersion,
+							getVersionHintExpiration());
+				}
+
+				return true;
 			}
-		} while (retryCount++ < numberOfRetries);
 
-		throw exception;
+			versionHints.put(datastoreKey, modification.oldVersion,
+					getVersionHintExpiration());
+
+			return false;
+		} finally {
+			statistics.end(Operation.COMPARE_AND_SET, startTime);
+		}
 	}
 
-	@Override
-	public int size() {
-		return getPreparedQueryForAllEntities(true).countEntities();
+	/**
+	 * Updates the value of the specified key in the same way as
+	 * {@link DatastoreMap#update(Object, Updater)} but optimistically. The
+	 * value is read with its version without a transaction, the new value is
+	 * computed outside transactions and it is written with
+	 * {@link DatastoreMap#compareAndSet(Object, long, Object)}. All of them
+	 * are repeated when the value is changed concurrently.
+	 * 
+	 * @param key
+	 *            the key whose value is to be updated
+	 * @param updater
+	 *            the updater to compute a new value, which may be called
+	 *            again on conflicts
+	 * @return the new value, or <tt>null</tt> if this map contains no mapping
+	 *         for the key
+	 * @throws ConcurrentModificationException
+	 *             if the value is changed concurrently on every attempt
+	 */
+	public V updateOptimistic(K key, Updater<V> updater)
+			throws ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			int retryCount = 0;
+
+			do {
+				if (retryCount > 0) {
+					statistics.recordRetry();
+				}
+
+				Versioned<V> versioned = getVersioned(key);
+				if (versioned.getValue() == null) {
+					return null;
+				}
+
+				V value = updater.update(versioned.getValue());
+				if (compareAndSet(key, versioned.getVersion(), value)) {
+					return value;
+				}
+			} while (retryCount++ < numberOfRetries);
+
+			throw new ConcurrentModificationException("'" + key
+					+ "' was changed concurrently on every attempt.");
+		} finally {
+			statistics.end(Operation.UPDATE, startTime);
+		}
 	}
 
-	@Override
-	public V update(K key, Updater<V> updater)
+	/**
+	 * Reads the value of the specified key, applies the modification to it and
+	 * writes the result in one transaction. The transaction is retried up to
+	 * <tt>numberOfRetries</tt> times on contention, and the modification is
+	 * applied again to the value read by each attempt.
+	 * 
+	 * @param key
+	 *            the key whose value is to be modified
+	 * @param modification
+	 *            the modification to apply, which holds the old and the new
+	 *            values of the last attempt afterwards
+	 * @return <tt>true</tt> if a value was written or removed, or
+	 *         <tt>false</tt> if the modification left the entry untouched
+	 * @throws ConcurrentModificationException
+	 *             if the transaction fails after all retries
+	 */
+	protected boolean modify(K key, Modification modification)
 			throws ConcurrentModificationException {
 		ConcurrentModificationException exception;
 		int retryCount = 0;
 
 		do {
+			if (retryCount > 0) {
+				statistics.recordRetry();
+			}
+
 			Transaction transaction = service.beginTransaction();
 
-			V value = null;
+			Key datastoreKey = createDatastoreKey(key);
+			Entity entity;
 			try {
-				value = getOrNotFound(key);
+				entity = service.get(datastoreKey);
 			} catch (EntityNotFoundException e) {
-				transaction.rollback();
+				entity = null;
+			}
 
-				return null;
+			modification.oldValue = createValue(entity);
+			modification.oldVersion = getVersion(entity);
+			modification.present = entity != null;
+			modification.newValue = null;
+			modification.newVersion = NO_VERSION;
+			modification.removing = false;
+
+			boolean applied = false;
+			try {
+				applied = modification.apply();
+			} finally {
+				if (!applied) {
+					transaction.rollback();
+				}
 			}
 
-			value = updater.update(value);
+			if (!applied) {
+				return false;
+			}
 
 			try {
-				service.put(createEntity(key, value));
+				if (modification.removing) {
+					service.delete(datastoreKey);
+				} else {
+					Entity newEntity = createEntity(datastoreKey,
+							modification.newValue);
+					service.put(newEntity);
+					modification.newVersion = getVersion(newEntity);
+				}
 				transaction.commit();
+				if (modification.removing) {
+					versionHints.delete(datastoreKey);
+				}
+				memoize(key, modification.removing ? null
+						: modification.newValue);
 
-				return value;
+				return true;
 			} catch (ConcurrentModificationException e) {
 				if (transaction.isActive()) {
 					transaction.rollback();
@@ -412,6 +2289,67 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 		return new ValueCollection();
 	}
 
+	/**
+	 * A read-modify-write of one entry applied by
+	 * {@link DatastoreMap#modify(Object, Modification)}. <tt>apply()</tt> is
+	 * called in the transaction with <tt>oldValue</tt> set to the current
+	 * value, or <tt>null</tt> if there is no mapping, and <tt>oldVersion</tt>
+	 * set to its version, and sets <tt>newValue</tt>, or sets
+	 * <tt>removing</tt> to remove the entry. <tt>newVersion</tt> is set to the
+	 * version of the written entity afterwards.
+	 */
+	protected abstract class Modification {
+		protected V oldValue;
+		protected long oldVersion;
+		protected boolean present;
+		protected V newValue;
+		protected long newVersion;
+		protected boolean removing;
+
+		/**
+		 * @return <tt>true</tt> to write <tt>newValue</tt> or remove the entry,
+		 *         or <tt>false</tt> to leave it untouched
+		 */
+		protected abstract boolean apply();
+	}
+
+	protected abstract class RangeIterator<E> implements Iterator<E> {
+		private Iterator<Entity> iterator;
+		private Entity lastEntity;
+
+		public RangeIterator(KeyRange range, boolean keysOnly) {
+			iterator = getEntitiesAsIterator(range, keysOnly);
+		}
+
+		protected abstract E create(Entity entity);
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public E next() {
+			lastEntity = iterator.next();
+
+			return create(lastEntity);
+		}
+
+		@Override
+		public void remove() throws UnsupportedOperationException {
+			if (keyParser == null) {
+				throw new UnsupportedOperationException(
+						"Give a Parser object to parse stringified keys.");
+			}
+			if (lastEntity == null) {
+				throw new IllegalStateException();
+			}
+
+			DatastoreMap.this.remove(createKey(lastEntity));
+			lastEntity = null;
+		}
+	}
+
 	protected class DatastoreEntry implements Entry<K, V> {
 		private K key;
 
@@ -476,6 +2414,27 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 		}
 	}
 
+	protected class LoadedEntry extends DatastoreEntry {
+		private V value;
+
+		public LoadedEntry(K key, V value) {
+			super(key);
+			this.value = value;
+		}
+
+		@Override
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			this.value = value;
+
+			return super.setValue(value);
+		}
+	}
+
 	protected class EntrySet extends AbstractCollection<Entry<K, V>> implements
 			Set<Entry<K, V>> {
 		@SuppressWarnings("unchecked")
@@ -548,6 +2507,7 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 					|| (value == null && entry.getValue() == null)) {
 				service.delete(createDatastoreKey(entry.getKey()));
 				transaction.commit();
+				memoize(entry.getKey(), null);
 
 				return true;
 			} else {
@@ -557,32 +2517,112 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 			}
 		}
 
+		/**
+		 * Removes the given mappings with batch gets and batch deletes. Unlike
+		 * {@link EntrySet#remove(Object)}, a mapping modified between the get
+		 * and the delete may be removed.
+		 */
 		@Override
 		public boolean removeAll(Collection<?> c) {
-			boolean modified = false;
-
-			for (Object object : c) {
-				modified |= remove(object);
+			Map<Key, Entity> entities = getEntities(getDatastoreKeys(c));
+
+			Map<Key, K> keys = new LinkedHashMap<Key, K>();
+			for (Entry<K, V> entry : getEntries(c)) {
+				Key datastoreKey = createDatastoreKey(entry.getKey());
+				Entity entity = entities.get(datastoreKey);
+				if (entity != null
+						&& valueEquals(createValue(entity), entry.getValue())) {
+					keys.put(datastoreKey, entry.getKey());
+				}
+			}
+			if (keys.isEmpty()) {
+				return false;
 			}
 
-			return modified;
+			removeAllKeys(keys.values());
+
+			return true;
 		}
 
 		@Override
 		public boolean retainAll(Collection<?> c) {
-			boolean modified = false;
+			final Map<Key, List<Object>> retainedValues;
+			retainedValues = new HashMap<Key, List<Object>>();
+			for (Entry<K, V> entry : getEntries(c)) {
+				Key datastoreKey = createDatastoreKey(entry.getKey());
+				List<Object> values = retainedValues.get(datastoreKey);
+				if (values == null) {
+					values = new ArrayList<Object>();
+					retainedValues.put(datastoreKey, values);
+				}
+				values.add(entry.getValue());
+			}
+
+			return removeEntities(new Filter<Entity>() {
+				@Override
+				public boolean accept(Entity entity) {
+					List<Object> values = retainedValues.get(entity.getKey());
+					if (values == null) {
+						return true;
+					}
+
+					V value = createValue(entity);
+					for (Object retainedValue : values) {
+						if (valueEquals(value, retainedValue)) {
+							return false;
+						}
+					}
+
+					return true;
+				}
+			}, false);
+		}
+
+		@Override
+		public boolean containsAll(Collection<?> c) {
+			List<Entry<K, V>> entries = getEntries(c);
+			if (entries.size() < c.size()) {
+				return false;
+			}
+
+			Map<Key, Entity> entities = getEntities(getDatastoreKeys(c));
+			for (Entry<K, V> entry : entries) {
+				Entity entity = entities.get(createDatastoreKey(entry
+						.getKey()));
+				if (entity == null
+						|| !valueEquals(createValue(entity), entry
+								.getValue())) {
+					return false;
+				}
+			}
 
-			Iterator<Entry<K, V>> iterator = iterator();
+			return true;
+		}
 
-			while (iterator.hasNext()) {
-				Entry<K, V> key = iterator.next();
-				if (!c.contains(key)) {
-					iterator.remove();
-					modified = true;
+		@SuppressWarnings("unchecked")
+		protected List<Entry<K, V>> getEntries(Collection<?> c) {
+			List<Entry<K, V>> entries = new ArrayList<Entry<K, V>>(c.size());
+			for (Object object : c) {
+				if (object instanceof Entry) {
+					entries.add((Entry<K, V>) object);
 				}
 			}
 
-			return modified;
+			return entries;
+		}
+
+		protected List<Key> getDatastoreKeys(Collection<?> c) {
+			List<Key> datastoreKeys = new ArrayList<Key>(c.size());
+			for (Entry<K, V> entry : getEntries(c)) {
+				datastoreKeys.add(createDatastoreKey(entry.getKey()));
+			}
+
+			return datastoreKeys;
+		}
+
+		protected boolean valueEquals(V value, Object anotherValue) {
+			return (value != null && value.equals(anotherValue))
+					|| (value == null && anotherValue == null);
 		}
 
 		@Override
@@ -633,32 +2673,51 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 			return DatastoreMap.this.remove(o) != null;
 		}
 
+		/**
+		 * Removes the given keys with batch gets and batch deletes. The gets
+		 * are needed only to tell whether this set has changed.
+		 */
 		@Override
 		public boolean removeAll(Collection<?> c) {
-			boolean modified = false;
-
+			Map<Key, Object> keys = new LinkedHashMap<Key, Object>();
 			for (Object key : c) {
-				modified |= remove(key);
+				keys.put(createDatastoreKey(key), key);
+			}
+
+			Map<Key, Entity> entities = getEntities(keys.keySet());
+			if (entities.isEmpty()) {
+				return false;
 			}
 
-			return modified;
+			keys.keySet().retainAll(entities.keySet());
+			removeAllKeys(keys.values());
+
+			return true;
 		}
 
 		@Override
 		public boolean retainAll(Collection<?> c) {
-			boolean modified = false;
-
-			Iterator<K> iterator = iterator();
+			final Set<Key> retainedKeys = new HashSet<Key>();
+			for (Object key : c) {
+				retainedKeys.add(createDatastoreKey(key));
+			}
 
-			while (iterator.hasNext()) {
-				K key = iterator.next();
-				if (!c.contains(key)) {
-					iterator.remove();
-					modified = true;
+			return removeEntities(new Filter<Entity>() {
+				@Override
+				public boolean accept(Entity entity) {
+					return !retainedKeys.contains(entity.getKey());
 				}
+			}, true);
+		}
+
+		@Override
+		public boolean containsAll(Collection<?> c) {
+			Set<Key> keys = new LinkedHashSet<Key>();
+			for (Object key : c) {
+				keys.add(createDatastoreKey(key));
 			}
 
-			return modified;
+			return getEntities(keys).size() == keys.size();
 		}
 
 		protected List<K> toList() {
@@ -704,22 +2763,23 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 			};
 		}
 
+		/**
+		 * Removes one of the mappings to the given value. The scan stops at
+		 * the first mapping found.
+		 */
 		@Override
 		public boolean remove(Object o) {
-			boolean modified = false;
-
-			Iterator<V> iterator = iterator();
-
-			while (iterator.hasNext()) {
-				V value = iterator.next();
+			for (Entity entity : getAllEntitiesAsIterable(false)) {
+				V value = createValue(entity);
 				if ((o == null && value == null)
 						|| (o != null && o.equals(value))) {
-					iterator.remove();
-					modified = true;
+					DatastoreMap.this.remove(createKey(entity));
+
+					return true;
 				}
 			}
 
-			return modified;
+			return false;
 		}
 
 		@Override
@@ -732,20 +2792,35 @@ public class DatastoreMap<K, V> implements UpdatableMap<K, V> {
 			return removeOrRetainAll(c, false);
 		}
 
-		protected boolean removeOrRetainAll(Collection<?> c, boolean removing) {
-			boolean modified = false;
+		protected boolean removeOrRetainAll(final Collection<?> c,
+				final boolean removing) {
+			return removeEntities(new Filter<Entity>() {
+				@Override
+				public boolean accept(Entity entity) {
+					return removing == c.contains(createValue(entity));
+				}
+			}, false);
+		}
 
-			Iterator<V> iterator = iterator();
+		/**
+		 * Scans the values of this map once, stopping as soon as all of the
+		 * given values are found.
+		 */
+		@Override
+		public boolean containsAll(Collection<?> c) {
+			Set<Object> values = new HashSet<Object>(c);
+			if (values.isEmpty()) {
+				return true;
+			}
 
-			while (iterator.hasNext()) {
-				V value = iterator.next();
-				if (removing == c.contains(value)) {
-					iterator.remove();
-					modified = true;
+			for (Entity entity : getAllEntitiesAsIterable(false)) {
+				values.remove(createValue(entity));
+				if (values.isEmpty()) {
+					return true;
 				}
 			}
 
-			return modified;
+			return false;
 		}
 
 		protected List<V> toList() {
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.ReadPolicy;
+
+/**
+ * A configuration of a {@link DatastoreMap} and its subclasses, which decides
+ * the services to read and write entities, the fetch options of queries, the
+ * batch sizes of bulk operations and the number of retries of transactions.
+ * Use {@link DatastoreMapConfig.Builder} to create an instance in the same way
+ * as <tt>FetchOptions</tt> of Datastore.
+ * 
+ * <p>
+ * Reads outside of transactions like <tt>get()</tt>, <tt>getAll()</tt>,
+ * <tt>containsKey()</tt> and queries use the read service, which can be
+ * configured separately, for example to read with eventual consistency and a
+ * short deadline. Reads in transactions and writes always use the service.
+ * </p>
+ * 
+ * <pre>
+ * DatastoreMapConfig config = DatastoreMapConfig.Builder
+ * 		.withReadServiceConfig(DatastoreServiceConfig.Builder.withReadPolicy(
+ * 				new ReadPolicy(Consistency.EVENTUAL)).deadline(1.0))
+ * 		.chunkSize(100);
+ * Map&lt;String, String&gt; map = new DatastoreMap&lt;String, String&gt;(kind,
+ * 		keyParser, config);
+ * </pre>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public final class DatastoreMapConfig {
+	private DatastoreServiceConfig serviceConfig;
+	private DatastoreServiceConfig readServiceConfig;
+	private DatastoreService service;
+	private DatastoreService readService;
+	private int numberOfRetries;
+	private int chunkSize;
+	private int prefetchSize;
+	private int maxEntitiesPerGet;
+	private int maxEntitiesPerPut;
+	private int maxEntitiesPerDelete;
+
+	private DatastoreMapConfig() {
+		numberOfRetries = DatastoreMap.DEFAULT_NUMBER_OF_RETRIES;
+		chunkSize = 0;
+		prefetchSize = 0;
+		maxEntitiesPerGet = DatastoreMap.MAX_NUMBER_OF_ENTITIES_TO_GET_ONCE;
+		maxEntitiesPerPut = DatastoreMap.MAX_NUMBER_OF_ENTITIES_TO_PUT_ONCE;
+		maxEntitiesPerDelete =
+				DatastoreMap.MAX_NUMBER_OF_ENTITIES_TO_DELETE_ONCE;
+	}
+
+	/**
+	 * Sets the configuration of the service, which is also used for reads
+	 * unless another one is set by
+	 * {@link DatastoreMapConfig#readServiceConfig(DatastoreServiceConfig)}.
+	 * 
+	 * @param serviceConfig
+	 *            a configuration, or <tt>null</tt> to use the default one
+	 * @return this
+	 */
+	public DatastoreMapConfig serviceConfig(
+			DatastoreServiceConfig serviceConfig) {
+		this.serviceConfig = serviceConfig;
+		return this;
+	}
+
+	/**
+	 * Sets the configuration of the service for reads outside of
+	 * transactions, for example one with a <tt>ReadPolicy</tt> of eventual
+	 * consistency.
+	 * 
+	 * @param readServiceConfig
+	 *            a configuration, or <tt>null</tt> to read with the service
+	 * @return this
+	 * @see ReadPolicy
+	 */
+	public DatastoreMapConfig readServiceConfig(
+			DatastoreServiceConfig readServiceConfig) {
+		this.readServiceConfig = readServiceConfig;
+		return this;
+	}
+
+	/**
+	 * Sets the service instance, which takes precedence over the
+	 * configuration of the service.
+	 * 
+	 * @param service
+	 *            a service, or <tt>null</tt> to create one
+	 * @return this
+	 */
+	public DatastoreMapConfig service(DatastoreService service) {
+		this.service = service;
+		return this;
+	}
+
+	/**
+	 * Sets the service instance for reads outside of transactions, which
+	 * takes precedence over the configuration of the read service.
+	 * 
+	 * @param readService
+	 *            a service, or <tt>null</tt> to create one or to read with the
+	 *            service
+	 * @return this
+	 */
+	public DatastoreMapConfig readService(DatastoreService readService) {
+		this.readService = readService;
+		return this;
+	}
+
+	/**
+	 * Sets the number of retries of a transaction which fails by contention.
+	 * 
+	 * @param numberOfRetries
+	 *            a non-negative number
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>numberOfRetries</tt> is negative
+	 */
+	public DatastoreMapConfig numberOfRetries(int numberOfRetries)
+			throws IllegalArgumentException {
+		if (numberOfRetries < 0) {
+			throw new IllegalArgumentException(
+					"\"numberOfRetries\" cannot be negative.");
+		}
+
+		this.numberOfRetries = numberOfRetries;
+		return this;
+	}
+
+	/**
+	 * Sets the chunk size of queries, which is the number of entities fetched
+	 * with each RPC while iterating over results.
+	 * 
+	 * @param chunkSize
+	 *            a positive number
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>chunkSize</tt> is not positive
+	 * @see FetchOptions#chunkSize(int)
+	 */
+	public DatastoreMapConfig chunkSize(int chunkSize)
+			throws IllegalArgumentException {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"\"chunkSize\" must be positive.");
+		}
+
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Sets the prefetch size of queries, which is the number of entities
+	 * fetched with the first RPC of a query.
+	 * 
+	 * @param prefetchSize
+	 *            a positive number
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>prefetchSize</tt> is not positive
+	 * @see FetchOptions#prefetchSize(int)
+	 */
+	public DatastoreMapConfig prefetchSize(int prefetchSize)
+			throws IllegalArgumentException {
+		if (prefetchSize <= 0) {
+			throw new IllegalArgumentException(
+					"\"prefetchSize\" must be positive.");
+		}
+
+		this.prefetchSize = prefetchSize;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of entities read with one batch get.
+	 * 
+	 * @param maxEntitiesPerGet
+	 *            a positive number which does not exceed
+	 *            <tt>MAX_NUMBER_OF_ENTITIES_TO_GET_ONCE</tt>
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>maxEntitiesPerGet</tt> is out of the range
+	 */
+	public DatastoreMapConfig maxEntitiesPerGet(int maxEntitiesPerGet)
+			throws IllegalArgumentException {
+		this.maxEntitiesPerGet = checkBatchSize(maxEntitiesPerGet,
+				DatastoreMap.MAX_NUMBER_OF_ENTITIES_TO_GET_ONCE,
+				"maxEntitiesPerGet");
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of entities written with one batch put.
+	 * 
+	 * @param maxEntitiesPerPut
+	 *            a positive number which does not exceed
+	 *            <tt>MAX_NUMBER_OF_ENTITIES_TO_PUT_ONCE</tt>
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>maxEntitiesPerPut</tt> is out of the range
+	 */
+	public DatastoreMapConfig maxEntitiesPerPut(int maxEntitiesPerPut)
+			throws IllegalArgumentException {
+		this.maxEntitiesPerPut = checkBatchSize(maxEntitiesPerPut,
+				DatastoreMap.MAX_NUMBER_OF_ENTITIES_TO_PUT_ONCE,
+				"maxEntitiesPerPut");
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of entities removed with one batch delete.
+	 * 
+	 * @param maxEntitiesPerDelete
+	 *            a positive number which does not exceed
+	 *            <tt>MAX_NUMBER_OF_ENTITIES_TO_DELETE_ONCE</tt>
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>maxEntitiesPerDelete</tt> is out of the range
+	 */
+	public DatastoreMapConfig maxEntitiesPerDelete(int maxEntitiesPerDelete)
+			throws IllegalArgumentException {
+		this.maxEntitiesPerDelete = checkBatchSize(maxEntitiesPerDelete,
+				DatastoreMap.MAX_NUMBER_OF_ENTITIES_TO_DELETE_ONCE,
+				"maxEntitiesPerDelete");
+		return this;
+	}
+
+	private static int checkBatchSize(int batchSize, int limit, String name)
+			throws IllegalArgumentException {
+		if (batchSize <= 0 || batchSize > limit) {
+			throw new IllegalArgumentException("\"" + name
+					+ "\" must be between 1 and " + limit + ".");
+		}
+
+		return batchSize;
+	}
+
+	public DatastoreServiceConfig getServiceConfig() {
+		return serviceConfig;
+	}
+
+	public DatastoreServiceConfig getReadServiceConfig() {
+		return readServiceConfig;
+	}
+
+	public DatastoreService getService() {
+		return service;
+	}
+
+	public DatastoreService getReadService() {
+		return readService;
+	}
+
+	public int getNumberOfRetries() {
+		return numberOfRetries;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getPrefetchSize() {
+		return prefetchSize;
+	}
+
+	public int getMaxEntitiesPerGet() {
+		return maxEntitiesPerGet;
+	}
+
+	public int getMaxEntitiesPerPut() {
+		return maxEntitiesPerPut;
+	}
+
+	public int getMaxEntitiesPerDelete() {
+		return maxEntitiesPerDelete;
+	}
+
+	DatastoreService createService() {
+		if (service != null) {
+			return service;
+		}
+		if (serviceConfig != null) {
+			return DatastoreServiceFactory.getDatastoreService(serviceConfig);
+		}
+
+		return DatastoreServiceFactory.getDatastoreService();
+	}
+
+	/**
+	 * Returns the service for reads, or <tt>null</tt> if reads use the same
+	 * instance as writes.
+	 */
+	DatastoreService createReadService() {
+		if (readService != null) {
+			return readService;
+		}
+		if (readServiceConfig != null) {
+			return DatastoreServiceFactory
+					.getDatastoreService(readServiceConfig);
+		}
+
+		return null;
+	}
+
+	public static final class Builder {
+		private Builder() {
+		}
+
+		public static DatastoreMapConfig withDefaults() {
+			return new DatastoreMapConfig();
+		}
+
+		public static DatastoreMapConfig withServiceConfig(
+				DatastoreServiceConfig serviceConfig) {
+			return withDefaults().serviceConfig(serviceConfig);
+		}
+
+		public static DatastoreMapConfig withReadServiceConfig(
+				DatastoreServiceConfig readServiceConfig) {
+			return withDefaults().readServiceConfig(readServiceConfig);
+		}
+
+		public static DatastoreMapConfig withService(DatastoreService service) {
+			return withDefaults().service(service);
+		}
+
+		public static DatastoreMapConfig withReadService(
+				DatastoreService readService) {
+			return withDefaults().readService(readService);
+		}
+
+		public static DatastoreMapConfig withNumberOfRetries(
+				int numberOfRetries) {
+			return withDefaults().numberOfRetries(numberOfRetries);
+		}
+
+		public static DatastoreMapConfig withChunkSize(int chunkSize) {
+			return withDefaults().chunkSize(chunkSize);
+		}
+	}
+}
@@ -15,16 +15,26 @@
 
 package org.koherent.collection.appengine;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.koherent.collection.Updater;
+import org.koherent.collection.appengine.MapStatistics.Operation;
 import org.koherent.object.Parser;
+import org.koherent.rpc.RpcInterceptor;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 
 /**
  * This class provides faster ways to operate Datastore used on Google App
@@ -49,15 +59,19 @@ import com.google.appengine.api.memcache.Expiration;
  *            the type of mapped values
  * 
  * @author koher
- * @version 0.2
+ * @version 0.3
  * @since 0.2
  * @see CachedDatastoreMap
  * @see Parser
  * @see FastDatastoreMap
  * @see FastMemcacheMap
+ * @see WritePolicy
  */
 public class FastCachedDatastoreMap<K, V> extends FastDatastoreMap<K, V> {
 	protected FastMemcacheMap<K, V> memcacheMap;
+	protected WritePolicy writePolicy;
+
+	private CacheRefresher<K, V> refresher;
 
 	public FastCachedDatastoreMap(String kind) throws IllegalArgumentException {
 		this(kind, null, DEFAULT_NUMBER_OF_RETRIES, null);
@@ -86,20 +100,158 @@ public class FastCachedDatastoreMap<K, V> extends FastDatastoreMap<K, V> {
 	public FastCachedDatastoreMap(String kind, Parser<K> keyParser,
 			int numberOfRetries, Expiration expiration)
 			throws IllegalArgumentException {
-		super(kind, keyParser, numberOfRetries);
+		this(kind, keyParser, expiration, DatastoreMapConfig.Builder
+				.withNumberOfRetries(numberOfRetries));
+	}
+
+	/**
+	 * Constructs a map with the given configuration of Datastore. Values read
+	 * with a separate read service of the configuration may be stale, so they
+	 * are stored to Memcache only if <tt>expiration</tt> is given.
+	 * 
+	 * @param kind
+	 *            the kind of entities which store the mappings
+	 * @param keyParser
+	 *            the parser of stringified keys, or <tt>null</tt>
+	 * @param expiration
+	 *            the expiration of cached values, or <tt>null</tt>
+	 * @param config
+	 *            the configuration, or <tt>null</tt> to use the default one
+	 * @throws IllegalArgumentException
+	 *             if <tt>kind</tt> is <tt>null</tt>
+	 */
+	public FastCachedDatastoreMap(String kind, Parser<K> keyParser,
+			Expiration expiration, DatastoreMapConfig config)
+			throws IllegalArgumentException {
+		super(kind, keyParser, config);
+
+		memcacheMap = new FastMemcacheMap<K, V>(kind, expiration, true, true);
+		writePolicy = WritePolicy.INVALIDATE;
+	}
+
+	public WritePolicy getWritePolicy() {
+		return writePolicy;
+	}
+
+	public void setWritePolicy(WritePolicy writePolicy)
+			throws IllegalArgumentException {
+		if (writePolicy == null) {
+			throw new IllegalArgumentException(
+					"\"writePolicy\" cannot be null.");
+		}
 
-		memcacheMap = new FastMemcacheMap<K, V>(kind, expiration);
+		this.writePolicy = writePolicy;
+	}
+
+	/**
+	 * Makes values read within <tt>window</tt> milliseconds before they
+	 * expire reloaded from Datastore by <tt>executor</tt>, while the current
+	 * values are returned. A reload of a key is not repeated while another
+	 * reload of the key is running on any instance.
+	 * 
+	 * @param window
+	 *            the time in milliseconds before expiration, or 0 to disable
+	 *            refresh-ahead
+	 * @param executor
+	 *            the executor to reload values, which must be able to call
+	 *            Datastore and Memcache
+	 * @throws IllegalArgumentException
+	 *             if <tt>window</tt> is positive and <tt>executor</tt> is
+	 *             null
+	 */
+	public void setRefreshAhead(long window, Executor executor)
+			throws IllegalArgumentException {
+		if (window <= 0L) {
+			refresher = null;
+			return;
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("\"executor\" cannot be null.");
+		}
+
+		refresher = new CacheRefresher<K, V>(this, memcacheMap, window,
+				executor);
+	}
+
+	/**
+	 * @return the time in milliseconds before expiration to reload values, or
+	 *         0 if refresh-ahead is disabled
+	 */
+	public long getRefreshAheadWindow() {
+		return refresher != null ? refresher.getWindow() : 0L;
+	}
+
+	/**
+	 * Adds an interceptor of calls from this map to both
+	 * <tt>DatastoreService</tt> and <tt>MemcacheService</tt>.
+	 * 
+	 * @param interceptor
+	 *            the interceptor
+	 * @throws IllegalArgumentException
+	 *             if <tt>interceptor</tt> is <tt>null</tt>
+	 * @see DatastoreMap#addInterceptor(RpcInterceptor)
+	 */
+	@Override
+	public synchronized void addInterceptor(RpcInterceptor interceptor)
+			throws IllegalArgumentException {
+		super.addInterceptor(interceptor);
+		memcacheMap.addInterceptor(interceptor);
+	}
+
+	@Override
+	public synchronized boolean removeInterceptor(RpcInterceptor interceptor) {
+		boolean removed = super.removeInterceptor(interceptor);
+		return memcacheMap.removeInterceptor(interceptor) || removed;
+	}
+
+	protected IdentifiableValue beginCacheWrite(K key) {
+		if (writePolicy != WritePolicy.WRITE_THROUGH) {
+			return null;
+		}
+
+		return memcacheMap.getIdentifiable(key);
+	}
+
+	protected void endCacheWrite(K key, IdentifiableValue cachedValue,
+			V value) {
+		if (writePolicy == WritePolicy.WRITE_THROUGH) {
+			boolean stored;
+			if (cachedValue == null) {
+				stored = memcacheMap.put(key, value,
+						SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			} else {
+				stored = memcacheMap.putIfUntouched(key, cachedValue, value);
+			}
+
+			if (stored) {
+				return;
+			}
+		}
+
+		memcacheMap.delete(key);
 	}
 
 	@Override
 	public void clear() {
-		super.clear();
-		memcacheMap.clear();
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			super.clear();
+			memcacheMap.clear();
+		} finally {
+			statistics.end(Operation.CLEAR, startTime);
+		}
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
-		return memcacheMap.containsKey(key) || super.containsKey(key);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return memcacheMap.containsKey(key) || super.containsKey(key);
+		} finally {
+			statistics.end(Operation.CONTAINS_KEY, startTime);
+		}
 	}
 
 	/**
@@ -114,58 +266,255 @@ public class FastCachedDatastoreMap<K, V> extends FastDatastoreMap<K, V> {
 
 	@SuppressWarnings("unchecked")
 	@Override
-	public V get(Object key) {
+	protected V load(Object key) {
+		if (isCoalescing()) {
+			return getCoalesced(key);
+		}
+
 		V value;
 
-		if (memcacheMap.containsKey(key)) {
-			return memcacheMap.get(key);
+		CachedValue<V> cachedValue = memcacheMap.getCachedValue(key);
+		if (cachedValue != null) {
+			statistics.recordHits(1);
+
+			CacheRefresher<K, V> refresher = this.refresher;
+			if (refresher != null) {
+				try {
+					refresher.refreshIfExpiring((K) key, cachedValue);
+				} catch (ClassCastException e) {
+				}
+			}
+
+			return cachedValue.getValue();
 		}
+		statistics.recordMisses(1);
 
 		try {
-			value = createValue(service.get(createDatastoreKey(key)));
+			value = createValue(getReadService().get(
+					createDatastoreKey(key)));
 		} catch (EntityNotFoundException e) {
 			return null;
 		}
 
-		try {
-			memcacheMap.put((K) key, value);
-		} catch (ClassCastException e) {
+		if (isCacheFillable()) {
+			try {
+				memcacheMap.put((K) key, value,
+						SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			} catch (ClassCastException e) {
+			}
 		}
 
 		return value;
 	}
 
+	/**
+	 * Returns whether values read from Datastore now can be stored to
+	 * Memcache. Values read with a separate read service may be stale, so
+	 * they are stored only if they expire.
+	 * 
+	 * @return <tt>true</tt> if values read now can be stored to Memcache
+	 */
+	protected boolean isCacheFillable() {
+		return memcacheMap.expiration != null || getReadService() == service;
+	}
+
+	/**
+	 * Version hints expire with the cached values when an expiration is given.
+	 */
+	@Override
+	protected Expiration getVersionHintExpiration() {
+		return memcacheMap.expiration != null ? memcacheMap.expiration : super
+				.getVersionHintExpiration();
+	}
+
+	/**
+	 * Returns the values to which the specified keys are mapped. Values are
+	 * read from Memcache with one batch get, and the keys not found in
+	 * Memcache are read from Datastore with one batch get and are stored to
+	 * Memcache with one batch put.
+	 * 
+	 * @param keys
+	 *            the keys whose associated values are to be returned
+	 * @return a map which contains the mappings of the keys found in this map
+	 *         and the numbers of cache hits and misses
+	 */
+	@Override
+	public CacheResult<K, V> getAll(Collection<? extends K> keys) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Set<K> uniqueKeys = new LinkedHashSet<K>(keys);
+			Map<K, V> cachedValues = memcacheMap.getAll(uniqueKeys);
+
+			List<K> missedKeys = new ArrayList<K>();
+			for (K key : uniqueKeys) {
+				if (!cachedValues.containsKey(key)) {
+					missedKeys.add(key);
+				}
+			}
+
+			CacheResult<K, V> result = new CacheResult<K, V>(cachedValues
+					.size(), missedKeys.size());
+			statistics.recordHits(result.getNumberOfHits());
+			statistics.recordMisses(result.getNumberOfMisses());
+			result.putAll(cachedValues);
+
+			if (missedKeys.size() > 0) {
+				Map<K, V> storedValues = super.getAll(missedKeys);
+				if (storedValues.size() > 0 && isCacheFillable()) {
+					memcacheMap.putAll(storedValues,
+							SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+				}
+				result.putAll(storedValues);
+			}
+
+			return result;
+		} finally {
+			statistics.end(Operation.GET_ALL, startTime);
+		}
+	}
+
 	@Override
 	public V put(K key, V value) throws ConcurrentModificationException {
-		super.put(key, value);
-		memcacheMap.remove(key);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			IdentifiableValue cachedValue = beginCacheWrite(key);
+			super.put(key, value);
+			endCacheWrite(key, cachedValue, value);
 
-		return null;
+			return null;
+		} finally {
+			statistics.end(Operation.PUT, startTime);
+		}
 	}
 
 	@Override
 	public void putAll(Map<? extends K, ? extends V> m) {
-		super.putAll(m);
-		for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
-			memcacheMap.remove(entry.getKey());
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			super.putAll(m);
+			memcacheMap.removeAll(m.keySet());
+		} finally {
+			statistics.end(Operation.PUT_ALL, startTime);
 		}
 	}
 
 	@Override
 	public V remove(Object key) throws ConcurrentModificationException {
-		super.remove(key);
-		memcacheMap.remove(key);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			super.remove(key);
+			memcacheMap.delete(key);
+
+			return null;
+		} finally {
+			statistics.end(Operation.REMOVE, startTime);
+		}
+	}
 
-		return null;
+	@Override
+	protected void removeAllKeys(Collection<?> keys) {
+		super.removeAllKeys(keys);
+		memcacheMap.removeAll(keys);
 	}
 
 	@Override
-	public V update(K key, Updater<V> updater)
+	protected boolean modify(K key, Modification modification)
 			throws ConcurrentModificationException {
-		V value = super.update(key, updater);
-		memcacheMap.remove(key);
+		IdentifiableValue cachedValue = beginCacheWrite(key);
+		boolean modified = super.modify(key, modification);
+		if (modified) {
+			if (modification.removing) {
+				memcacheMap.delete(key);
+			} else {
+				endCacheWrite(key, cachedValue, modification.newValue);
+			}
+		}
 
-		return value;
+		return modified;
+	}
+
+	@Override
+	public Map<K, V> updateAll(Collection<? extends K> keys,
+			Updater<Map<K, V>> updater) throws IllegalArgumentException,
+			ConcurrentModificationException {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Map<K, V> values = super.updateAll(keys, updater);
+			memcacheMap.removeAll(keys);
+
+			return values;
+		} finally {
+			statistics.end(Operation.UPDATE_ALL, startTime);
+		}
+	}
+
+	/**
+	 * Loads the values of this map into Memcache, which reduces misses after
+	 * deployments or flushes of Memcache. Entities are read with a query in
+	 * batches of {@link WarmUpOptions#getBatchSize()} and are stored to
+	 * Memcache with one batch put for each batch. Values already cached are
+	 * not overwritten. Loading stops when the calling thread is interrupted,
+	 * keeping its interrupt status, and returns a cursor to resume from the
+	 * start of the interrupted batch.
+	 * 
+	 * @param options
+	 *            options of the batch size, the limit, the rate limit, the
+	 *            cursor to resume and the executor to decode values
+	 * @return a cursor to resume loading, or <tt>null</tt> if all values are
+	 *         loaded
+	 * @throws UnsupportedOperationException
+	 *             if <tt>keyParser</tt> is null or not given
+	 */
+	public Cursor warmUp(WarmUpOptions options)
+			throws UnsupportedOperationException {
+		return warmUp(null, null, options);
+	}
+
+	/**
+	 * Loads the values of the keys in the given range into Memcache in the
+	 * same way as {@link FastCachedDatastoreMap#warmUp(WarmUpOptions)}. Keys
+	 * are compared in the order of Datastore keys.
+	 * 
+	 * @param fromKey
+	 *            the lowest key (inclusive), or <tt>null</tt> for no lower
+	 *            bound
+	 * @param toKey
+	 *            the highest key (exclusive), or <tt>null</tt> for no upper
+	 *            bound
+	 * @param options
+	 *            options of the batch size, the limit, the rate limit, the
+	 *            cursor to resume and the executor to decode values
+	 * @return a cursor to resume loading, or <tt>null</tt> if all values are
+	 *         loaded
+	 * @throws UnsupportedOperationException
+	 *             if <tt>keyParser</tt> is null or not given
+	 */
+	public Cursor warmUp(K fromKey, K toKey, WarmUpOptions options)
+			throws UnsupportedOperationException {
+		return new CacheWarmer<K, V>(this, memcacheMap, options).warmUp(
+				fromKey, toKey);
+	}
+
+	/**
+	 * Loads the values of the given keys into Memcache with batch gets of
+	 * Datastore. The limit and the cursor of <tt>options</tt> are ignored.
+	 * 
+	 * @param keys
+	 *            the keys whose values are to be loaded
+	 * @param options
+	 *            options of the batch size, the rate limit and the executor
+	 *            to decode values
+	 * @return <tt>true</tt> if all the values are loaded, or <tt>false</tt>
+	 *         if loading stopped because the calling thread was interrupted
+	 */
+	public boolean warmUp(Collection<? extends K> keys,
+			WarmUpOptions options) {
+		return new CacheWarmer<K, V>(this, memcacheMap, options).warmUp(keys);
 	}
 
 	protected class EntrySet extends FastDatastoreMap<K, V>.EntrySet {
@@ -214,7 +563,8 @@ public class FastCachedDatastoreMap<K, V> extends FastDatastoreMap<K, V> {
 					|| (value == null && entry.getValue() == null)) {
 				service.delete(createDatastoreKey(entry.getKey()));
 				transaction.commit();
-				memcacheMap.remove(entry.getKey());
+				memoize(entry.getKey(), null);
+				memcacheMap.delete(entry.getKey());
 
 				return true;
 			} else {
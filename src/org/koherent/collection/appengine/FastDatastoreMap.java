@@ -18,6 +18,7 @@ package org.koherent.collection.appengine;
 import java.util.ConcurrentModificationException;
 import java.util.Set;
 
+import org.koherent.collection.appengine.MapStatistics.Operation;
 import org.koherent.object.Parser;
 
 /**
@@ -41,7 +42,7 @@ import org.koherent.object.Parser;
  *            the type of mapped values
  * 
  * @author koher
- * @version 0.2
+ * @version 0.3
  * @since 0.2
  * @see DatastoreMap
  * @see Parser
@@ -68,6 +69,11 @@ public class FastDatastoreMap<K, V> extends DatastoreMap<K, V> {
 		super(kind, keyParser, numberOfRetries);
 	}
 
+	public FastDatastoreMap(String kind, Parser<K> keyParser,
+			DatastoreMapConfig config) throws IllegalArgumentException {
+		super(kind, keyParser, config);
+	}
+
 	/**
 	 * @return a set view of the mappings contained in this map
 	 * @throws UnsupportedOperationException
@@ -85,15 +91,29 @@ public class FastDatastoreMap<K, V> extends DatastoreMap<K, V> {
 
 	@Override
 	public V put(K key, V value) throws ConcurrentModificationException {
-		service.put(createEntity(key, value));
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			service.put(createEntity(key, value));
+			memoize(key, value);
 
-		return null;
+			return null;
+		} finally {
+			statistics.end(Operation.PUT, startTime);
+		}
 	}
 
 	@Override
 	public V remove(Object key) throws ConcurrentModificationException {
-		service.delete(createDatastoreKey(key));
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			service.delete(createDatastoreKey(key));
+			memoize(key, null);
 
-		return null;
+			return null;
+		} finally {
+			statistics.end(Operation.REMOVE, startTime);
+		}
 	}
 }
\ No newline at end of file
@@ -15,6 +15,8 @@
 
 package org.koherent.collection.appengine;
 
+import org.koherent.collection.appengine.MapStatistics.Operation;
+
 import com.google.appengine.api.memcache.Expiration;
 
 /**
@@ -40,7 +42,7 @@ import com.google.appengine.api.memcache.Expiration;
  *            the type of mapped values
  * 
  * @author koher
- * @version 0.2
+ * @version 0.3
  * @since 0.2
  * @see MemcacheMap
  * @see FastDatastoreMap
@@ -63,17 +65,40 @@ public class FastMemcacheMap<K, V> extends MemcacheMap<K, V> {
 		super(namespace, expiration);
 	}
 
+	public FastMemcacheMap(String namespace, Expiration expiration,
+			boolean generational) {
+		super(namespace, expiration, generational);
+	}
+
+	public FastMemcacheMap(String namespace, Expiration expiration,
+			boolean generational, boolean timestamped) {
+		super(namespace, expiration, generational, timestamped);
+	}
+
 	@Override
 	public V put(K key, V value) {
-		service.put(key, value, expiration);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			service.put(createMemcacheKey(key), createMemcacheValue(value),
+					expiration);
 
-		return null;
+			return null;
+		} finally {
+			statistics.end(Operation.PUT, startTime);
+		}
 	}
 
 	@Override
 	public V remove(Object key) {
-		service.delete(key);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			service.delete(createMemcacheKey(key));
 
-		return null;
+			return null;
+		} finally {
+			statistics.end(Operation.REMOVE, startTime);
+		}
 	}
 }
\ No newline at end of file
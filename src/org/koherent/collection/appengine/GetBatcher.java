@@ -0,0 +1,245 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces individual gets of a <tt>DatastoreMap</tt> into batches fetched
+ * with one <tt>getAll()</tt>. Keys are added to the open batch until it is
+ * dispatched, either by the first thread which needs a result or after the
+ * coalescing window. A key requested several times in a batch is fetched
+ * once. Batches of <tt>getLater()</tt> and of coalesced <tt>get()</tt> are
+ * kept apart, because only the leader of a coalesced batch dispatches it
+ * while a batch of futures may never be dispatched by its own thread.
+ */
+class GetBatcher<K, V> {
+	private DatastoreMap<K, V> map;
+	private Batch futureBatch; // guarded by this
+	private Batch coalescedBatch; // guarded by this
+
+	public GetBatcher(DatastoreMap<K, V> map) {
+		this.map = map;
+	}
+
+	public synchronized Future<V> getLater(K key) {
+		while (true) {
+			if (futureBatch == null) {
+				futureBatch = new Batch();
+			}
+
+			Future<V> future = futureBatch.add(key);
+			if (future != null) {
+				return future;
+			}
+
+			futureBatch = null; // dispatched by a future
+		}
+	}
+
+	/**
+	 * Gets the value of the key together with keys requested by other threads
+	 * within the window. The first thread to open a batch waits for the
+	 * window, or until the batch has <tt>maxBatchSize</tt> keys, and then
+	 * fetches the batch for all of them.
+	 */
+	public V get(K key, long windowMillis, int maxBatchSize) {
+		Batch batch;
+		boolean leader;
+		synchronized (this) {
+			leader = coalescedBatch == null;
+			if (leader) {
+				coalescedBatch = new Batch();
+			}
+			batch = coalescedBatch;
+
+			// dispatched only by its leader after being detached
+			batch.add(key);
+
+			if (batch.size() >= maxBatchSize) {
+				coalescedBatch = null;
+			}
+		}
+
+		if (leader) {
+			batch.awaitSize(maxBatchSize, windowMillis);
+			synchronized (this) {
+				if (coalescedBatch == batch) {
+					coalescedBatch = null;
+				}
+			}
+			batch.dispatch();
+		}
+
+		return batch.getResult(key);
+	}
+
+	/**
+	 * Fetches the keys requested by <tt>getLater()</tt> so far.
+	 */
+	public void dispatch() {
+		Batch batch;
+		synchronized (this) {
+			batch = futureBatch;
+			futureBatch = null;
+		}
+
+		if (batch != null) {
+			batch.dispatch();
+		}
+	}
+
+	private class Batch {
+		private Map<K, Future<V>> futures;
+		private boolean dispatched; // guarded by this
+		private boolean done; // guarded by this
+		private Map<K, V> results;
+		private RuntimeException exception;
+
+		private Batch() {
+			futures = new LinkedHashMap<K, Future<V>>();
+		}
+
+		public synchronized Future<V> add(final K key) {
+			if (dispatched) {
+				return null;
+			}
+
+			Future<V> future = futures.get(key);
+			if (future == null) {
+				future = new Future<V>() {
+					@Override
+					public boolean cancel(boolean mayInterruptIfRunning) {
+						return false;
+					}
+
+					@Override
+					public boolean isCancelled() {
+						return false;
+					}
+
+					@Override
+					public boolean isDone() {
+						synchronized (Batch.this) {
+							return done;
+						}
+					}
+
+					@Override
+					public V get() throws ExecutionException {
+						dispatch();
+						try {
+							return getResult(key);
+						} catch (RuntimeException e) {
+							throw new ExecutionException(e);
+						}
+					}
+
+					@Override
+					public V get(long timeout, TimeUnit unit)
+							throws ExecutionException, TimeoutException {
+						return get(); // dispatched by the calling thread
+					}
+				};
+				futures.put(key, future);
+
+				notifyAll(); // for awaitSize()
+			}
+
+			return future;
+		}
+
+		public synchronized int size() {
+			return futures.size();
+		}
+
+		public synchronized void awaitSize(int size, long timeoutMillis) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			boolean interrupted = false;
+
+			while (futures.size() < size) {
+				long waitTime = deadline - System.currentTimeMillis();
+				if (waitTime <= 0L) {
+					break;
+				}
+
+				try {
+					wait(waitTime);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void dispatch() {
+			List<K> keys;
+			synchronized (this) {
+				if (dispatched) {
+					return;
+				}
+				dispatched = true;
+				keys = new ArrayList<K>(futures.keySet());
+			}
+
+			Map<K, V> results = null;
+			RuntimeException exception = null;
+			try {
+				results = map.getAll(keys);
+			} catch (RuntimeException e) {
+				exception = e;
+			}
+
+			synchronized (this) {
+				this.results = results;
+				this.exception = exception;
+				done = true;
+				notifyAll();
+			}
+		}
+
+		public synchronized V getResult(K key) {
+			boolean interrupted = false;
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (exception != null) {
+				throw exception;
+			}
+
+			return results.get(key);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.koherent.collection.Updater;
+
+/**
+ * Commits concurrent <tt>update()</tt> calls of a <tt>DatastoreMap</tt> on the
+ * same key together. While a transaction on a key is running, updaters for
+ * the key queue up in the next group. The group is committed in one
+ * transaction when the running one finishes: its updaters are applied in
+ * order to one read value, and each caller gets the value produced by its own
+ * updater.
+ */
+class GroupCommitter<K, V> {
+	private DatastoreMap<K, V> map;
+	private Map<K, KeyState> states; // guarded by this
+
+	public GroupCommitter(DatastoreMap<K, V> map) {
+		this.map = map;
+		this.states = new HashMap<K, KeyState>();
+	}
+
+	public V update(K key, Updater<V> updater)
+			throws ConcurrentModificationException {
+		Group group;
+		int index;
+		boolean leader;
+		synchronized (this) {
+			KeyState state = states.get(key);
+			if (state == null) {
+				state = new KeyState();
+				states.put(key, state);
+			}
+
+			if (state.pending == null) {
+				state.pending = new Group();
+			}
+			group = state.pending;
+			index = group.add(updater);
+
+			leader = !state.running;
+			if (leader) {
+				state.running = true;
+				state.pending = null;
+			}
+		}
+
+		if (!leader) {
+			leader = group.awaitTurn(index);
+		}
+
+		if (leader) {
+			try {
+				group.commit(key);
+			} finally {
+				handOver(key);
+			}
+		}
+
+		return group.getResult(index);
+	}
+
+	private void handOver(K key) {
+		Group next;
+		synchronized (this) {
+			KeyState state = states.get(key);
+			next = state.pending;
+			state.pending = null;
+			if (next == null) {
+				states.remove(key);
+				return;
+			}
+		}
+
+		next.promote();
+	}
+
+	private class KeyState {
+		private Group pending;
+		private boolean running;
+	}
+
+	private class Group {
+		private List<Updater<V>> updaters; // guarded by this
+		private boolean promoted; // guarded by this
+		private boolean done; // guarded by this
+		private Object[] results;
+		private Throwable[] exceptions;
+
+		private Group() {
+			updaters = new ArrayList<Updater<V>>();
+		}
+
+		public synchronized int add(Updater<V> updater) {
+			updaters.add(updater);
+
+			return updaters.size() - 1;
+		}
+
+		public synchronized void promote() {
+			promoted = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the group is committed or, for the first updater, until
+		 * the group may be committed by the caller.
+		 * 
+		 * @return <tt>true</tt> if the caller is to commit the group
+		 */
+		public synchronized boolean awaitTurn(int index) {
+			boolean interrupted = false;
+			while (!done && !(promoted && index == 0)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			return !done;
+		}
+
+		public void commit(K key) {
+			final List<Updater<V>> updaters;
+			synchronized (this) {
+				updaters = new ArrayList<Updater<V>>(this.updaters);
+			}
+			final Object[] results = new Object[updaters.size()];
+			final Throwable[] exceptions = new Throwable[updaters.size()];
+
+			try {
+				map.modify(key, map.new Modification() {
+					@Override
+					protected boolean apply() {
+						Arrays.fill(results, null);
+						Arrays.fill(exceptions, null);
+						if (oldValue == null) {
+							return false;
+						}
+
+						V value = oldValue;
+						for (int i = 0; i < updaters.size(); i++) {
+							try {
+								value = updaters.get(i).update(value);
+								results[i] = value;
+							} catch (RuntimeException e) {
+								exceptions[i] = e;
+							}
+						}
+						newValue = value;
+
+						return true;
+					}
+				});
+			} catch (Throwable e) {
+				// errors are also passed on, or the waiters would never wake
+				Arrays.fill(results, null);
+				Arrays.fill(exceptions, e);
+			} finally {
+				synchronized (this) {
+					this.results = results;
+					this.exceptions = exceptions;
+					done = true;
+					notifyAll();
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized V getResult(int index) {
+			Throwable exception = exceptions[index];
+			if (exception instanceof RuntimeException) {
+				throw (RuntimeException) exception;
+			} else if (exception instanceof Error) {
+				throw (Error) exception;
+			} else if (exception != null) {
+				throw new IllegalStateException(exception);
+			}
+
+			return (V) results[index];
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.io.Serializable;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+
+/**
+ * A range of Datastore keys of a {@link DatastoreMap}, returned by
+ * {@link DatastoreMap#splitKeyRanges(int)}. Each range is read with its own
+ * query, so ranges can be processed by different threads, requests or tasks
+ * in parallel. A <tt>KeyRange</tt> is serializable to be passed to them.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see DatastoreMap#splitKeyRanges(int)
+ * @see DatastoreMap#entries(KeyRange)
+ */
+public final class KeyRange implements Serializable {
+	private static final long serialVersionUID = 7410327715245103871L;
+
+	/**
+	 * The range of all keys.
+	 */
+	public static final KeyRange ALL = new KeyRange(null, null);
+
+	private Key fromKey;
+	private Key toKey;
+
+	/**
+	 * @param fromKey
+	 *            the lowest key (inclusive), or <tt>null</tt> for no lower
+	 *            bound
+	 * @param toKey
+	 *            the highest key (exclusive), or <tt>null</tt> for no upper
+	 *            bound
+	 */
+	public KeyRange(Key fromKey, Key toKey) {
+		this.fromKey = fromKey;
+		this.toKey = toKey;
+	}
+
+	public Key getFromKey() {
+		return fromKey;
+	}
+
+	public Key getToKey() {
+		return toKey;
+	}
+
+	public boolean contains(Key key) {
+		return (fromKey == null || fromKey.compareTo(key) <= 0)
+				&& (toKey == null || key.compareTo(toKey) < 0);
+	}
+
+	Query createQuery(String kind, boolean keysOnly) {
+		Query query = new Query(kind);
+		if (keysOnly) {
+			query.setKeysOnly();
+		}
+		if (fromKey != null) {
+			query.addFilter(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.GREATER_THAN_OR_EQUAL, fromKey);
+		}
+		if (toKey != null) {
+			query.addFilter(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.LESS_THAN, toKey);
+		}
+
+		return query;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof KeyRange)) {
+			return false;
+		}
+
+		KeyRange anotherRange = (KeyRange) obj;
+
+		return (fromKey == null ? anotherRange.fromKey == null : fromKey
+				.equals(anotherRange.fromKey))
+				&& (toKey == null ? anotherRange.toKey == null : toKey
+						.equals(anotherRange.toKey));
+	}
+
+	@Override
+	public int hashCode() {
+		return (fromKey != null ? fromKey.hashCode() : 0) * 31
+				+ (toKey != null ? toKey.hashCode() : 0);
+	}
+
+	@Override
+	public String toString() {
+		return "[" + (fromKey != null ? fromKey : "") + ", "
+				+ (toKey != null ? toKey : "") + ")";
+	}
+}
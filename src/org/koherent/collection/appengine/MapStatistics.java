@@ -0,0 +1,365 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.koherent.concurrent.StripedCounter;
+import org.koherent.math.Histogram;
+
+/**
+ * Statistics of operations of {@link DatastoreMap}, {@link MemcacheMap} and
+ * their subclasses: the number and the latency of each operation, cache hits
+ * and misses, retries of transactions and bytes of serialized values read and
+ * written.
+ * 
+ * <p>
+ * Maps record nothing by default. Give a <tt>MapStatistics</tt> to
+ * <tt>setStatistics()</tt> of maps to start recording. A
+ * <tt>MapStatistics</tt> can be shared by several maps. Counters are striped
+ * so that recording does not make threads contend.
+ * </p>
+ * 
+ * <pre>
+ * MapStatistics statistics = new MapStatistics();
+ * map.setStatistics(statistics);
+ * ...
+ * MapStatistics.Snapshot snapshot = statistics.snapshotAndReset();
+ * long p99 = snapshot.getLatency(MapStatistics.Operation.GET, 99.0);
+ * </pre>
+ * 
+ * <p>
+ * An operation which calls another operation of the same map, like
+ * <tt>put()</tt> of {@link CachedDatastoreMap} calling <tt>put()</tt> of
+ * {@link DatastoreMap}, is recorded once.
+ * </p>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see DatastoreMap#setStatistics(MapStatistics)
+ * @see MemcacheMap#setStatistics(MapStatistics)
+ */
+public class MapStatistics {
+	/**
+	 * A <tt>MapStatistics</tt> which records nothing, used by maps by default.
+	 */
+	public static final MapStatistics DISABLED = new MapStatistics(false);
+
+	public enum Operation {
+		GET, GET_ALL, PUT, PUT_ALL, REMOVE, UPDATE, UPDATE_ALL, PUT_IF_ABSENT,
+		REPLACE, COMPUTE, MERGE, COMPARE_AND_SET, CONTAINS_KEY, CONTAINS_VALUE,
+		SIZE, IS_EMPTY, CLEAR, AGGREGATE
+	}
+
+	private static final long DISABLED_TIME = -1L;
+	private static final long NESTED_TIME = -2L;
+
+	private final boolean enabled;
+	private ThreadLocal<int[]> depths;
+
+	private AtomicReferenceArray<OperationStatistics> operations;
+	private StripedCounter hits;
+	private StripedCounter misses;
+	private StripedCounter retries;
+	private StripedCounter bytesRead;
+	private StripedCounter bytesWritten;
+
+	public MapStatistics() {
+		this(true);
+	}
+
+	private MapStatistics(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled) {
+			return;
+		}
+
+		depths = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[1];
+			}
+		};
+
+		operations = new AtomicReferenceArray<OperationStatistics>(Operation
+				.values().length);
+		hits = new StripedCounter();
+		misses = new StripedCounter();
+		retries = new StripedCounter();
+		bytesRead = new StripedCounter();
+		bytesWritten = new StripedCounter();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts timing an operation. Every call must be followed by
+	 * {@link MapStatistics#end(Operation, long)} of the same instance in a
+	 * <tt>finally</tt> block, so callers should keep this instance in a local
+	 * variable rather than reading a field twice.
+	 * 
+	 * @return the start time to be given to <tt>end()</tt>
+	 */
+	public long begin() {
+		if (!enabled) {
+			return DISABLED_TIME;
+		}
+
+		if (depths.get()[0]++ > 0) {
+			return NESTED_TIME;
+		}
+
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records an operation started by {@link MapStatistics#begin()}.
+	 * 
+	 * @param operation
+	 *            the operation
+	 * @param startTime
+	 *            the value returned by <tt>begin()</tt>
+	 */
+	public void end(Operation operation, long startTime) {
+		// the depth is restored whenever begin() incremented it
+		if (startTime == DISABLED_TIME || !enabled) {
+			return;
+		}
+
+		depths.get()[0]--;
+		if (startTime == NESTED_TIME) {
+			return;
+		}
+
+		getOperationStatistics(operation).record(
+				System.nanoTime() - startTime);
+	}
+
+	public void recordHits(int numberOfHits) {
+		if (enabled) {
+			hits.add(numberOfHits);
+		}
+	}
+
+	public void recordMisses(int numberOfMisses) {
+		if (enabled) {
+			misses.add(numberOfMisses);
+		}
+	}
+
+	public void recordRetry() {
+		if (enabled) {
+			retries.increment();
+		}
+	}
+
+	public void recordBytesRead(long bytes) {
+		if (enabled) {
+			bytesRead.add(bytes);
+		}
+	}
+
+	public void recordBytesWritten(long bytes) {
+		if (enabled) {
+			bytesWritten.add(bytes);
+		}
+	}
+
+	public Snapshot snapshot() {
+		return snapshot(false);
+	}
+
+	/**
+	 * Returns a snapshot and resets the statistics, which is useful to export
+	 * statistics periodically.
+	 * 
+	 * @return the statistics recorded since the last reset
+	 */
+	public Snapshot snapshotAndReset() {
+		return snapshot(true);
+	}
+
+	public void reset() {
+		snapshot(true);
+	}
+
+	private Snapshot snapshot(boolean resetting) {
+		Snapshot snapshot = new Snapshot();
+		if (!enabled) {
+			return snapshot;
+		}
+
+		for (Operation operation : Operation.values()) {
+			OperationStatistics statistics = operations.get(operation
+					.ordinal());
+			if (statistics == null) {
+				continue;
+			}
+
+			Histogram latencies = statistics.latencies.copy();
+			long totalLatency;
+			if (resetting) {
+				statistics.latencies.reset();
+				totalLatency = statistics.totalLatency.sumThenReset();
+			} else {
+				totalLatency = statistics.totalLatency.sum();
+			}
+
+			snapshot.latencies.put(operation, latencies);
+			snapshot.totalLatencies.put(operation, totalLatency);
+		}
+
+		if (resetting) {
+			snapshot.hits = hits.sumThenReset();
+			snapshot.misses = misses.sumThenReset();
+			snapshot.retries = retries.sumThenReset();
+			snapshot.bytesRead = bytesRead.sumThenReset();
+			snapshot.bytesWritten = bytesWritten.sumThenReset();
+		} else {
+			snapshot.hits = hits.sum();
+			snapshot.misses = misses.sum();
+			snapshot.retries = retries.sum();
+			snapshot.bytesRead = bytesRead.sum();
+			snapshot.bytesWritten = bytesWritten.sum();
+		}
+
+		return snapshot;
+	}
+
+	private OperationStatistics getOperationStatistics(Operation operation) {
+		int index = operation.ordinal();
+
+		OperationStatistics statistics = operations.get(index);
+		if (statistics == null) {
+			operations.compareAndSet(index, null, new OperationStatistics());
+			statistics = operations.get(index);
+		}
+
+		return statistics;
+	}
+
+	private static class OperationStatistics {
+		private Histogram latencies = new Histogram();
+		private StripedCounter totalLatency = new StripedCounter();
+
+		private void record(long latency) {
+			latencies.record(latency);
+			totalLatency.add(latency);
+		}
+	}
+
+	/**
+	 * Statistics recorded by a <tt>MapStatistics</tt> at a point in time.
+	 * Latencies are in nanoseconds.
+	 */
+	public static class Snapshot {
+		private Map<Operation, Histogram> latencies;
+		private Map<Operation, Long> totalLatencies;
+		private long hits;
+		private long misses;
+		private long retries;
+		private long bytesRead;
+		private long bytesWritten;
+
+		private Snapshot() {
+			latencies = new EnumMap<Operation, Histogram>(Operation.class);
+			totalLatencies = new EnumMap<Operation, Long>(Operation.class);
+		}
+
+		public long getCount(Operation operation) {
+			Histogram histogram = latencies.get(operation);
+			return histogram != null ? histogram.getCount() : 0L;
+		}
+
+		public long getTotalLatency(Operation operation) {
+			Long totalLatency = totalLatencies.get(operation);
+			return totalLatency != null ? totalLatency : 0L;
+		}
+
+		public long getMeanLatency(Operation operation) {
+			long count = getCount(operation);
+			return count > 0L ? getTotalLatency(operation) / count : 0L;
+		}
+
+		public long getMaxLatency(Operation operation) {
+			Histogram histogram = latencies.get(operation);
+			return histogram != null ? histogram.getMax() : 0L;
+		}
+
+		/**
+		 * @param operation
+		 *            the operation
+		 * @param percentile
+		 *            a percentile between 0 and 100
+		 * @return the latency at the percentile in nanoseconds
+		 */
+		public long getLatency(Operation operation, double percentile) {
+			Histogram histogram = latencies.get(operation);
+			return histogram != null ? histogram
+					.getValueAtPercentile(percentile) : 0L;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		public double getHitRatio() {
+			long total = hits + misses;
+			return total > 0L ? (double) hits / total : 0.0;
+		}
+
+		public long getRetries() {
+			return retries;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			for (Operation operation : latencies.keySet()) {
+				builder.append(operation).append(": count=").append(
+						getCount(operation)).append(", mean=").append(
+						getMeanLatency(operation)).append("ns, p50=").append(
+						getLatency(operation, 50.0)).append("ns, p99=")
+						.append(getLatency(operation, 99.0)).append(
+								"ns, max=").append(getMaxLatency(operation))
+						.append("ns\n");
+			}
+			builder.append("hits=").append(hits).append(", misses=").append(
+					misses).append(", retries=").append(retries).append(
+					", bytesRead=").append(bytesRead).append(
+					", bytesWritten=").append(bytesWritten);
+
+			return builder.toString();
+		}
+	}
+}
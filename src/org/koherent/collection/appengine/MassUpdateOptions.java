@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.concurrent.Executor;
+
+import org.koherent.collection.Updater;
+
+/**
+ * Options of updating all values of a {@link DatastoreMap} with
+ * {@link DatastoreMap#updateAll(Updater, MassUpdateOptions)}. Use
+ * {@link MassUpdateOptions.Builder} to create an instance in the same way as
+ * <tt>FetchOptions</tt> of Datastore.
+ * 
+ * <pre>
+ * MassUpdateResult result = map.updateAll(updater, MassUpdateOptions.Builder
+ * 		.withExecutor(executor).numberOfPartitions(8).timeLimit(50000L));
+ * while (!result.isCompleted()) { // or in the next task
+ * 	result = map.updateAll(updater, MassUpdateOptions.Builder.withExecutor(
+ * 			executor).resumeFrom(result));
+ * }
+ * </pre>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see DatastoreMap#updateAll(Updater, MassUpdateOptions)
+ * @see MassUpdateResult
+ */
+public final class MassUpdateOptions {
+	public static final int DEFAULT_NUMBER_OF_PARTITIONS = 4;
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private int numberOfPartitions;
+	private int batchSize;
+	private long timeLimit;
+	private Executor executor;
+	private MassUpdateResult previousResult;
+
+	private MassUpdateOptions() {
+		numberOfPartitions = DEFAULT_NUMBER_OF_PARTITIONS;
+		batchSize = DEFAULT_BATCH_SIZE;
+		timeLimit = 0L;
+		executor = null;
+		previousResult = null;
+	}
+
+	/**
+	 * Sets the number of key ranges into which the kind is split. The ranges
+	 * are computed from the <tt>__scatter__</tt> property of Datastore, so
+	 * fewer ranges can be used for small kinds.
+	 * 
+	 * @param numberOfPartitions
+	 *            a positive number
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>numberOfPartitions</tt> is not positive
+	 */
+	public MassUpdateOptions numberOfPartitions(int numberOfPartitions)
+			throws IllegalArgumentException {
+		if (numberOfPartitions <= 0) {
+			throw new IllegalArgumentException(
+					"\"numberOfPartitions\" must be positive.");
+		}
+
+		this.numberOfPartitions = numberOfPartitions;
+		return this;
+	}
+
+	/**
+	 * Sets the number of keys which are read from Datastore at once in each
+	 * partition.
+	 * 
+	 * @param batchSize
+	 *            a positive number
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>batchSize</tt> is not positive
+	 */
+	public MassUpdateOptions batchSize(int batchSize)
+			throws IllegalArgumentException {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException(
+					"\"batchSize\" must be positive.");
+		}
+
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Sets the time after which the partitions stop and checkpoint their
+	 * cursors, which keeps one call within the deadline of a request or a
+	 * task.
+	 * 
+	 * @param timeLimit
+	 *            the time limit in milliseconds, or 0 for no limit
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>timeLimit</tt> is negative
+	 */
+	public MassUpdateOptions timeLimit(long timeLimit)
+			throws IllegalArgumentException {
+		if (timeLimit < 0L) {
+			throw new IllegalArgumentException(
+					"\"timeLimit\" cannot be negative.");
+		}
+
+		this.timeLimit = timeLimit;
+		return this;
+	}
+
+	/**
+	 * Sets the executor which runs the partitions in parallel. The executor
+	 * bounds the number of concurrent transactions, so a pool of a fixed size
+	 * is usually given.
+	 * 
+	 * @param executor
+	 *            an executor, or <tt>null</tt> to use the executor of the map
+	 *            given by <tt>DatastoreMap.setExecutor()</tt>
+	 * @return this
+	 */
+	public MassUpdateOptions executor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Sets the result of the previous call to resume from its checkpoints.
+	 * The partitions of the previous call are reused and the counts are
+	 * accumulated.
+	 * 
+	 * @param previousResult
+	 *            a result, or <tt>null</tt> to start from the beginning
+	 * @return this
+	 */
+	public MassUpdateOptions resumeFrom(MassUpdateResult previousResult) {
+		this.previousResult = previousResult;
+		return this;
+	}
+
+	public int getNumberOfPartitions() {
+		return numberOfPartitions;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getTimeLimit() {
+		return timeLimit;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public MassUpdateResult getPreviousResult() {
+		return previousResult;
+	}
+
+	public static final class Builder {
+		private Builder() {
+		}
+
+		public static MassUpdateOptions withDefaults() {
+			return new MassUpdateOptions();
+		}
+
+		public static MassUpdateOptions withNumberOfPartitions(
+				int numberOfPartitions) {
+			return withDefaults().numberOfPartitions(numberOfPartitions);
+		}
+
+		public static MassUpdateOptions withBatchSize(int batchSize) {
+			return withDefaults().batchSize(batchSize);
+		}
+
+		public static MassUpdateOptions withTimeLimit(long timeLimit) {
+			return withDefaults().timeLimit(timeLimit);
+		}
+
+		public static MassUpdateOptions withExecutor(Executor executor) {
+			return withDefaults().executor(executor);
+		}
+
+		public static MassUpdateOptions resumingFrom(
+				MassUpdateResult previousResult) {
+			return withDefaults().resumeFrom(previousResult);
+		}
+	}
+}
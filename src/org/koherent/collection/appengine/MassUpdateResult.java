@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.koherent.collection.Updater;
+
+/**
+ * The progress of
+ * {@link DatastoreMap#updateAll(Updater, MassUpdateOptions)}, which is also
+ * a checkpoint to resume it. A <tt>MassUpdateResult</tt> is serializable, so
+ * that it can be passed to the next request or task which continues the
+ * update with {@link MassUpdateOptions#resumeFrom(MassUpdateResult)}.
+ * 
+ * <p>
+ * Counts and the elapsed time are accumulated over resumed calls.
+ * </p>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see DatastoreMap#updateAll(Updater, MassUpdateOptions)
+ * @see MassUpdateOptions
+ */
+public class MassUpdateResult implements Serializable {
+	private static final long serialVersionUID = 4127830937481526035L;
+
+	private List<Partition> partitions;
+	private long numberOfUpdatedEntities;
+	private long numberOfConflicts;
+	private long numberOfFailures;
+	private long elapsedTime;
+
+	MassUpdateResult(List<Partition> partitions) {
+		this.partitions = partitions;
+	}
+
+	List<Partition> getPartitions() {
+		return partitions;
+	}
+
+	synchronized void add(long numberOfUpdatedEntities, long numberOfConflicts,
+			long numberOfFailures) {
+		this.numberOfUpdatedEntities += numberOfUpdatedEntities;
+		this.numberOfConflicts += numberOfConflicts;
+		this.numberOfFailures += numberOfFailures;
+	}
+
+	synchronized void addElapsedTime(long elapsedTime) {
+		this.elapsedTime += elapsedTime;
+	}
+
+	/**
+	 * @return <tt>true</tt> if all partitions are finished
+	 */
+	public synchronized boolean isCompleted() {
+		for (Partition partition : partitions) {
+			if (!partition.isCompleted()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public int getNumberOfPartitions() {
+		return partitions.size();
+	}
+
+	public synchronized long getNumberOfUpdatedEntities() {
+		return numberOfUpdatedEntities;
+	}
+
+	/**
+	 * @return the number of transactions retried on contention
+	 */
+	public synchronized long getNumberOfConflicts() {
+		return numberOfConflicts;
+	}
+
+	/**
+	 * @return the number of entities skipped because their transactions
+	 *         failed after all retries or their updaters threw exceptions
+	 */
+	public synchronized long getNumberOfFailures() {
+		return numberOfFailures;
+	}
+
+	/**
+	 * @return the time in milliseconds spent by the calls so far
+	 */
+	public synchronized long getElapsedTime() {
+		return elapsedTime;
+	}
+
+	/**
+	 * @return the number of updated entities per second
+	 */
+	public synchronized double getThroughput() {
+		return elapsedTime > 0L ? numberOfUpdatedEntities * 1000.0
+				/ elapsedTime : 0.0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "partitions: " + partitions.size() + ", updated: "
+				+ numberOfUpdatedEntities + ", conflicts: "
+				+ numberOfConflicts + ", failures: " + numberOfFailures
+				+ ", elapsed: " + elapsedTime + " ms, "
+				+ String.format("%.1f", getThroughput()) + " entities/s"
+				+ (isCompleted() ? ", completed" : "");
+	}
+
+	/**
+	 * A key range of the kind with the cursor from which it is resumed.
+	 */
+	static class Partition implements Serializable {
+		private static final long serialVersionUID = -2870356410236218468L;
+
+		private KeyRange range;
+		private String cursor; // web-safe, guarded by this
+		private boolean completed; // guarded by this
+
+		Partition(KeyRange range) {
+			this.range = range;
+		}
+
+		KeyRange getRange() {
+			return range;
+		}
+
+		synchronized String getCursor() {
+			return cursor;
+		}
+
+		synchronized boolean isCompleted() {
+			return completed;
+		}
+
+		synchronized void checkpoint(String cursor) {
+			this.cursor = cursor;
+		}
+
+		synchronized void complete() {
+			cursor = null;
+			completed = true;
+		}
+	}
+}
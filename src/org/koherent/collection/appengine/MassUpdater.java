@@ -0,0 +1,202 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.koherent.collection.Updater;
+import org.koherent.collection.appengine.MassUpdateResult.Partition;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+
+/**
+ * Updates all values of a <tt>DatastoreMap</tt>. The kind is split into key
+ * ranges with <tt>splitKeyRanges()</tt>, and each range is scanned
+ * with a keys-only query and updated key by key with transactions. Ranges run
+ * in parallel on the executor of the options (or of the map) and checkpoint
+ * their cursors when the time limit is reached.
+ */
+class MassUpdater<K, V> {
+	private DatastoreMap<K, V> map;
+	private Updater<V> updater;
+	private MassUpdateOptions options;
+
+	private long deadline;
+	private AtomicBoolean stopped;
+
+	public MassUpdater(DatastoreMap<K, V> map, Updater<V> updater,
+			MassUpdateOptions options) {
+		this.map = map;
+		this.updater = updater;
+		this.options = options;
+	}
+
+	public MassUpdateResult update() throws UnsupportedOperationException {
+		if (map.keyParser == null) {
+			throw new UnsupportedOperationException(
+					"Give a Parser object to parse stringified keys.");
+		}
+
+		long startTime = System.currentTimeMillis();
+		deadline = options.getTimeLimit() > 0L ? startTime
+				+ options.getTimeLimit() : Long.MAX_VALUE;
+		stopped = new AtomicBoolean();
+
+		MassUpdateResult result = options.getPreviousResult();
+		if (result == null) {
+			List<Partition> partitions = new ArrayList<Partition>();
+			for (KeyRange range : map.splitKeyRanges(options
+					.getNumberOfPartitions())) {
+				partitions.add(new Partition(range));
+			}
+			result = new MassUpdateResult(partitions);
+		}
+
+		try {
+			Executor executor = options.getExecutor();
+			run(executor != null ? executor : map.getExecutor(), result);
+		} finally {
+			result.addElapsedTime(System.currentTimeMillis() - startTime);
+		}
+
+		return result;
+	}
+
+	private void run(Executor executor, final MassUpdateResult result) {
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+		for (final Partition partition : result.getPartitions()) {
+			if (partition.isCompleted()) {
+				continue;
+			}
+
+			FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+				@Override
+				public void run() {
+					update(partition, result);
+				}
+			}, null);
+			executor.execute(task);
+			tasks.add(task);
+		}
+
+		boolean interrupted = false;
+		RuntimeException exception = null;
+		for (FutureTask<Void> task : tasks) {
+			while (true) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					// partitions stop at the next key and checkpoint
+					stopped.set(true);
+					interrupted = true;
+				} catch (ExecutionException e) {
+					stopped.set(true);
+					if (exception == null) {
+						Throwable cause = e.getCause();
+						exception = cause instanceof RuntimeException
+								? (RuntimeException) cause
+								: new IllegalStateException(cause);
+					}
+					break;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	private void update(Partition partition, MassUpdateResult result) {
+		if (partition.isCompleted()) {
+			return;
+		}
+
+		Query query = partition.getRange().createQuery(map.kind, true);
+
+		FetchOptions fetchOptions = FetchOptions.Builder
+				.withChunkSize(options.getBatchSize());
+		if (partition.getCursor() != null) {
+			fetchOptions.startCursor(Cursor.fromWebSafeString(partition
+					.getCursor()));
+		}
+
+		QueryResultIterator<Entity> iterator = map.getReadService().prepare(
+				query).asQueryResultIterator(fetchOptions);
+
+		long numberOfUpdatedEntities = 0L;
+		long numberOfConflicts = 0L;
+		long numberOfFailures = 0L;
+		boolean attempted = false;
+		try {
+			while (iterator.hasNext()) {
+				// at least one entry is updated in each call to make progress
+				if (stopped.get() || attempted
+						&& System.currentTimeMillis() >= deadline) {
+					partition.checkpoint(iterator.getCursor()
+							.toWebSafeString());
+
+					return;
+				}
+
+				attempted = true;
+
+				K key = map.createKey(iterator.next());
+				final int[] attempts = new int[1];
+				try {
+					if (map.modify(key, map.new Modification() {
+						@Override
+						protected boolean apply() {
+							attempts[0]++;
+							if (oldValue == null) {
+								return false;
+							}
+
+							newValue = updater.update(oldValue);
+
+							return true;
+						}
+					})) {
+						numberOfUpdatedEntities++;
+					}
+				} catch (RuntimeException e) {
+					// ConcurrentModificationException after all retries or
+					// an exception of the updater
+					numberOfFailures++;
+				}
+				numberOfConflicts += Math.max(attempts[0] - 1, 0);
+			}
+
+			partition.complete();
+		} finally {
+			result.add(numberOfUpdatedEntities, numberOfConflicts,
+					numberOfFailures);
+		}
+	}
+}
@@ -15,12 +15,23 @@
 
 package org.koherent.collection.appengine;
 
+import java.io.Serializable;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.koherent.collection.appengine.MapStatistics.Operation;
+import org.koherent.rpc.RpcInterceptor;
+import org.koherent.rpc.RpcInterceptors;
 
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 
 /**
@@ -34,20 +45,50 @@ import com.google.appengine.api.memcache.MemcacheServiceFactory;
  * are called.
  * </p>
  * 
+ * <p>
+ * {@link MemcacheMap#clear()} flushes the whole Memcache of the application by
+ * default. A <i>generational</i> <tt>MemcacheMap</tt> instead keeps a
+ * generation number in Memcache and qualifies its keys with it, so that
+ * <tt>clear()</tt> only increments the generation and leaves the other caches
+ * untouched. The generation is read again at most once in
+ * {@link MemcacheMap#GENERATION_CHECK_INTERVAL} milliseconds, which is how
+ * long other instances can observe old values after <tt>clear()</tt>.
+ * Entries of old generations are evicted by Memcache in due course.
+ * </p>
+ * 
+ * <p>
+ * A <i>timestamped</i> <tt>MemcacheMap</tt> stores each value as a
+ * {@link CachedValue} with the time when it was stored and the time when it
+ * expires, which can be obtained by {@link MemcacheMap#getCachedValue(Object)}.
+ * </p>
+ * 
  * @param <K>
  *            the type of keys maintained by this map
  * @param <V>
  *            the type of mapped values
  * 
  * @author koher
- * @version 0.2
+ * @version 0.3
  * @since 0.1
  * @see DatastoreMap
  * @see CachedDatastoreMap
+ * @see MapStatistics
  */
 public class MemcacheMap<K, V> implements Map<K, V> {
+	public static final long GENERATION_CHECK_INTERVAL = 1000; // 1 second
+
+	protected static final String GENERATION_KEY = "g";
+
 	protected MemcacheService service;
 	protected Expiration expiration;
+	protected boolean generational;
+	protected boolean timestamped;
+	protected MapStatistics statistics;
+
+	private List<RpcInterceptor> interceptors;
+
+	private volatile long generation;
+	private volatile long generationCheckTime;
 
 	public MemcacheMap() {
 		this(null, null);
@@ -62,19 +103,170 @@ public class MemcacheMap<K, V> implements Map<K, V> {
 	}
 
 	public MemcacheMap(String namespace, Expiration expiration) {
+		this(namespace, expiration, false);
+	}
+
+	public MemcacheMap(String namespace, Expiration expiration,
+			boolean generational) {
+		this(namespace, expiration, generational, false);
+	}
+
+	public MemcacheMap(String namespace, Expiration expiration,
+			boolean generational, boolean timestamped) {
 		this.service = MemcacheServiceFactory.getMemcacheService();
 		this.service.setNamespace(namespace);
 		this.expiration = expiration;
+		this.generational = generational;
+		this.timestamped = timestamped;
+		this.statistics = MapStatistics.DISABLED;
+	}
+
+	public MapStatistics getStatistics() {
+		return statistics;
 	}
 
+	/**
+	 * Starts recording statistics of this map to the given
+	 * <tt>MapStatistics</tt>. Bytes of values are not recorded because values
+	 * are serialized by Memcache.
+	 * 
+	 * @param statistics
+	 *            the statistics, or <tt>null</tt> to stop recording
+	 */
+	public void setStatistics(MapStatistics statistics) {
+		this.statistics = statistics != null ? statistics
+				: MapStatistics.DISABLED;
+	}
+
+	/**
+	 * Adds an interceptor of calls from this map to <tt>MemcacheService</tt>.
+	 * Interceptors run in the order they were added. Interceptors should be
+	 * added before this map is shared between threads.
+	 * 
+	 * @param interceptor
+	 *            the interceptor
+	 * @throws IllegalArgumentException
+	 *             if <tt>interceptor</tt> is <tt>null</tt>
+	 * @see RpcInterceptor
+	 */
+	public synchronized void addInterceptor(RpcInterceptor interceptor)
+			throws IllegalArgumentException {
+		if (interceptor == null) {
+			throw new IllegalArgumentException(
+					"\"interceptor\" cannot be null.");
+		}
+
+		if (interceptors == null) {
+			interceptors = new CopyOnWriteArrayList<RpcInterceptor>();
+			service = RpcInterceptors.intercept(MemcacheService.class, service,
+					interceptors);
+		}
+		interceptors.add(interceptor);
+	}
+
+	public synchronized boolean removeInterceptor(RpcInterceptor interceptor) {
+		return interceptors != null && interceptors.remove(interceptor);
+	}
+
+	public boolean isGenerational() {
+		return generational;
+	}
+
+	public boolean isTimestamped() {
+		return timestamped;
+	}
+
+	protected long getGeneration() {
+		long currentTime = System.currentTimeMillis();
+
+		if (currentTime >= generationCheckTime + GENERATION_CHECK_INTERVAL) {
+			// reads the generation and initializes it atomically in one RPC,
+			// with the current time so that a lost generation never goes
+			// back to the one of old entries
+			Long currentGeneration = service.increment(GENERATION_KEY, 0L,
+					currentTime);
+			if (currentGeneration != null) {
+				generation = currentGeneration;
+			}
+			generationCheckTime = currentTime;
+		}
+
+		return generation;
+	}
+
+	protected Object createMemcacheKey(Object key) {
+		if (!generational) {
+			return key;
+		}
+
+		return new GenerationalKey(getGeneration(), key);
+	}
+
+	protected Object createMemcacheValue(V value) {
+		if (!timestamped) {
+			return value;
+		}
+
+		long currentTime = System.currentTimeMillis();
+		return new CachedValue<V>(value, currentTime,
+				expiration != null ? expiration.getMillisecondsValue() : 0L);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected V createValue(Object memcacheValue) {
+		if (memcacheValue instanceof CachedValue) {
+			return ((CachedValue<V>) memcacheValue).getValue();
+		}
+
+		return (V) memcacheValue;
+	}
+
+	protected Map<Object, K> createMemcacheKeys(Collection<? extends K> keys) {
+		Map<Object, K> memcacheKeys = new HashMap<Object, K>();
+		for (K key : keys) {
+			memcacheKeys.put(createMemcacheKey(key), key);
+		}
+
+		return memcacheKeys;
+	}
+
+	/**
+	 * Removes all of the mappings from this map. If this map is generational,
+	 * only the generation is incremented. Otherwise the whole Memcache of the
+	 * application is flushed.
+	 */
 	@Override
 	public void clear() {
-		service.clearAll();
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			if (generational) {
+				long currentTime = System.currentTimeMillis();
+				Long nextGeneration = service.increment(GENERATION_KEY, 1L,
+						currentTime);
+				if (nextGeneration != null) {
+					generation = nextGeneration;
+					generationCheckTime = currentTime;
+
+					return;
+				}
+			}
+
+			service.clearAll();
+		} finally {
+			statistics.end(Operation.CLEAR, startTime);
+		}
 	}
 
 	@Override
 	public boolean containsKey(Object key) {
-		return service.contains(key);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return service.contains(createMemcacheKey(key));
+		} finally {
+			statistics.end(Operation.CONTAINS_KEY, startTime);
+		}
 	}
 
 	/**
@@ -102,13 +294,101 @@ public class MemcacheMap<K, V> implements Map<K, V> {
 		throw new UnsupportedOperationException();
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public V get(Object key) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
 		try {
-			return (V) service.get(key);
-		} catch (ClassCastException e) {
-			return null;
+			V value = getFromMemcache(key);
+			if (value != null) {
+				statistics.recordHits(1);
+			} else {
+				statistics.recordMisses(1);
+			}
+
+			return value;
+		} finally {
+			statistics.end(Operation.GET, startTime);
+		}
+	}
+
+	/**
+	 * Returns the values to which the specified keys are mapped with a batch
+	 * get of Memcache.
+	 * 
+	 * @param keys
+	 *            the keys whose associated values are to be returned
+	 * @return a map which contains the mappings of the keys found in this map
+	 */
+	public Map<K, V> getAll(Collection<? extends K> keys) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Map<Object, K> memcacheKeys = createMemcacheKeys(keys);
+			Map<Object, Object> objects = service.getAll(memcacheKeys.keySet());
+
+			Map<K, V> values = new HashMap<K, V>();
+			for (Entry<Object, Object> entry : objects.entrySet()) {
+				values.put(memcacheKeys.get(entry.getKey()), createValue(entry
+						.getValue()));
+			}
+			statistics.recordHits(values.size());
+			statistics.recordMisses(memcacheKeys.size() - values.size());
+
+			return values;
+		} finally {
+			statistics.end(Operation.GET_ALL, startTime);
+		}
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped with the time
+	 * when it was stored and the time when it expires. Unlike
+	 * {@link MemcacheMap#get(Object)}, a mapping to <tt>null</tt> can be
+	 * distinguished from no mapping with one call if this map is timestamped.
+	 * 
+	 * @param key
+	 *            the key whose associated value is to be returned
+	 * @return the cached value, or <tt>null</tt> if this map contains no
+	 *         mapping for the key (or maps the key to <tt>null</tt> and is not
+	 *         timestamped)
+	 */
+	@SuppressWarnings("unchecked")
+	public CachedValue<V> getCachedValue(Object key) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Object memcacheValue = service.get(createMemcacheKey(key));
+			if (memcacheValue == null) {
+				return null;
+			}
+			if (memcacheValue instanceof CachedValue) {
+				return (CachedValue<V>) memcacheValue;
+			}
+
+			return new CachedValue<V>((V) memcacheValue, 0L, 0L);
+		} finally {
+			statistics.end(Operation.GET, startTime);
+		}
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped with an
+	 * identifier to be used by
+	 * {@link MemcacheMap#putIfUntouched(Object, IdentifiableValue, Object)}.
+	 * 
+	 * @param key
+	 *            the key whose associated value is to be returned
+	 * @return the identifiable value, or <tt>null</tt> if this map contains no
+	 *         mapping for the key
+	 */
+	public IdentifiableValue getIdentifiable(Object key) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return service.getIdentifiable(createMemcacheKey(key));
+		} finally {
+			statistics.end(Operation.GET, startTime);
 		}
 	}
 
@@ -117,6 +397,18 @@ public class MemcacheMap<K, V> implements Map<K, V> {
 		return size() == 0;
 	}
 
+	protected V getFromMemcache(Object key) {
+		return createValueOrNull(service.get(createMemcacheKey(key)));
+	}
+
+	private V createValueOrNull(Object memcacheValue) {
+		try {
+			return createValue(memcacheValue);
+		} catch (ClassCastException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Unsupported.
 	 * 
@@ -129,31 +421,282 @@ public class MemcacheMap<K, V> implements Map<K, V> {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Associates the specified value with the specified key and returns the
+	 * value which is replaced. Memcache cannot store a value and return the
+	 * old one at once, so this method costs two RPCs, a read and a write: the
+	 * old value is read with an identifier and the new value is stored only
+	 * if the mapping has not been modified since then. Only if another caller
+	 * wrote to the key in between, the value is stored once more
+	 * unconditionally, which makes three RPCs, and the value read before is
+	 * returned. Use {@link MemcacheMap#put(Object, Object, SetPolicy)} to
+	 * store a value with one RPC when the old value is not needed.
+	 * 
+	 * @param key
+	 *            key with which the specified value is to be associated
+	 * @param value
+	 *            value to be associated with the specified key
+	 * @return the previous value associated with the key, or <tt>null</tt> if
+	 *         there was no mapping for the key
+	 */
 	@Override
 	public V put(K key, V value) {
-		V oldValue = get(key);
-		service.put(key, value, expiration);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Object memcacheKey = createMemcacheKey(key);
+			Object memcacheValue = createMemcacheValue(value);
 
-		return oldValue;
+			IdentifiableValue oldValue = service.getIdentifiable(memcacheKey);
+			boolean stored;
+			if (oldValue == null) {
+				stored = service.put(memcacheKey, memcacheValue, expiration,
+						SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			} else {
+				stored = service.putIfUntouched(memcacheKey, oldValue,
+						memcacheValue, expiration);
+			}
+
+			if (!stored) {
+				service.put(memcacheKey, memcacheValue, expiration);
+			}
+
+			return oldValue != null ? createValueOrNull(oldValue.getValue())
+					: null;
+		} finally {
+			statistics.end(Operation.PUT, startTime);
+		}
+	}
+
+	/**
+	 * Associates the specified value with the specified key following the
+	 * given <tt>SetPolicy</tt>. Unlike
+	 * {@link MemcacheMap#put(Object, Object)}, this method does not read the
+	 * old value.
+	 * 
+	 * @param key
+	 *            key with which the specified value is to be associated
+	 * @param value
+	 *            value to be associated with the specified key
+	 * @param policy
+	 *            decides whether the value is stored when the key is present
+	 *            or not
+	 * @return <tt>true</tt> if the value is stored
+	 */
+	public boolean put(K key, V value, SetPolicy policy) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return service.put(createMemcacheKey(key),
+					createMemcacheValue(value), expiration, policy);
+		} finally {
+			statistics.end(Operation.PUT, startTime);
+		}
+	}
+
+	/**
+	 * Associates the specified value with the specified key only if the
+	 * mapping has not been modified since <tt>oldValue</tt> was obtained by
+	 * {@link MemcacheMap#getIdentifiable(Object)}.
+	 * 
+	 * @param key
+	 *            key with which the specified value is to be associated
+	 * @param oldValue
+	 *            the identifiable value obtained before
+	 * @param newValue
+	 *            value to be associated with the specified key
+	 * @return <tt>true</tt> if the value is stored
+	 */
+	public boolean putIfUntouched(K key, IdentifiableValue oldValue,
+			V newValue) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return service.putIfUntouched(createMemcacheKey(key), oldValue,
+					createMemcacheValue(newValue), expiration);
+		} finally {
+			statistics.end(Operation.COMPARE_AND_SET, startTime);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public void putAll(Map<? extends K, ? extends V> m) {
-		service.putAll((Map<Object, Object>) m, expiration);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			service.putAll(createMemcacheEntries(m), expiration);
+		} finally {
+			statistics.end(Operation.PUT_ALL, startTime);
+		}
 	}
 
+	/**
+	 * Copies all of the mappings from the specified map to this map following
+	 * the given <tt>SetPolicy</tt>.
+	 * 
+	 * @param m
+	 *            mappings to be stored in this map
+	 * @param policy
+	 *            decides whether each value is stored when its key is present
+	 *            or not
+	 * @return the keys whose values are stored
+	 */
+	public Set<K> putAll(Map<? extends K, ? extends V> m, SetPolicy policy) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Map<Object, K> memcacheKeys = createMemcacheKeys(m.keySet());
+			Set<Object> storedMemcacheKeys = service.putAll(
+					createMemcacheEntries(m), expiration, policy);
+
+			Set<K> storedKeys = new HashSet<K>();
+			for (Object memcacheKey : storedMemcacheKeys) {
+				storedKeys.add(memcacheKeys.get(memcacheKey));
+			}
+
+			return storedKeys;
+		} finally {
+			statistics.end(Operation.PUT_ALL, startTime);
+		}
+	}
+
+	protected Map<Object, Object> createMemcacheEntries(
+			Map<? extends K, ? extends V> m) {
+		Map<Object, Object> entries = new HashMap<Object, Object>();
+		for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+			entries.put(createMemcacheKey(entry.getKey()),
+					createMemcacheValue(entry.getValue()));
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Removes the mapping for the specified key and returns the value which
+	 * was mapped. Memcache cannot delete a value and return it at once, so
+	 * this method costs two RPCs, a read and a delete, and the delete is
+	 * skipped if there is no mapping for the key. Use
+	 * {@link MemcacheMap#delete(Object)} to remove a mapping with one RPC when
+	 * the old value is not needed.
+	 * 
+	 * @param key
+	 *            key whose mapping is to be removed
+	 * @return the previous value associated with the key, or <tt>null</tt> if
+	 *         there was no mapping for the key
+	 */
 	@Override
 	public V remove(Object key) {
-		V value = get(key);
-		service.delete(key);
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Object memcacheKey = createMemcacheKey(key);
+			IdentifiableValue value = service.getIdentifiable(memcacheKey);
+			if (value == null) {
+				return null;
+			}
+			service.delete(memcacheKey);
+
+			return createValueOrNull(value.getValue());
+		} finally {
+			statistics.end(Operation.REMOVE, startTime);
+		}
+	}
+
+	/**
+	 * Removes the mapping for the specified key. Unlike
+	 * {@link MemcacheMap#remove(Object)}, this method does not read the old
+	 * value.
+	 * 
+	 * @param key
+	 *            key whose mapping is to be removed
+	 * @return <tt>true</tt> if the mapping was removed
+	 */
+	public boolean delete(Object key) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return service.delete(createMemcacheKey(key));
+		} finally {
+			statistics.end(Operation.REMOVE, startTime);
+		}
+	}
 
-		return value;
+	/**
+	 * Removes the mappings for the specified keys with a batch delete of
+	 * Memcache. Unlike {@link MemcacheMap#remove(Object)}, this method does
+	 * not read the old values.
+	 * 
+	 * @param keys
+	 *            the keys whose mappings are to be removed
+	 * @return the keys whose mappings were removed
+	 */
+	public Set<Object> removeAll(Collection<?> keys) {
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			Map<Object, Object> memcacheKeys = new HashMap<Object, Object>();
+			for (Object key : keys) {
+				memcacheKeys.put(createMemcacheKey(key), key);
+			}
+
+			Set<Object> removedMemcacheKeys = service.deleteAll(memcacheKeys
+					.keySet());
+
+			Set<Object> removedKeys = new HashSet<Object>();
+			for (Object memcacheKey : removedMemcacheKeys) {
+				removedKeys.add(memcacheKeys.get(memcacheKey));
+			}
+
+			return removedKeys;
+		} finally {
+			statistics.end(Operation.REMOVE, startTime);
+		}
 	}
 
+	/**
+	 * Stores a marker for the key which expires in the given time only if no
+	 * marker is stored for it. Only one of concurrent callers including ones
+	 * on other instances acquires the lease.
+	 * 
+	 * @param key
+	 *            the key to be leased
+	 * @param millis
+	 *            the duration of the lease in milliseconds
+	 * @return <tt>true</tt> if the lease is acquired
+	 */
+	protected boolean lease(Object key, long millis) {
+		return service.put(new LeaseKey(createMemcacheKey(key)), Boolean.TRUE,
+				Expiration.byDeltaMillis((int) Math.min(millis,
+						Integer.MAX_VALUE)), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+	}
+
+	/**
+	 * Removes the marker stored by {@link MemcacheMap#lease(Object, long)} so
+	 * that the key can be leased again before the lease expires.
+	 * 
+	 * @param key
+	 *            the key to be released
+	 */
+	protected void release(Object key) {
+		service.delete(new LeaseKey(createMemcacheKey(key)));
+	}
+
+	/**
+	 * Returns the number of items in the whole Memcache of the application,
+	 * which includes the items of other namespaces and, if this map is
+	 * generational, of old generations.
+	 * 
+	 * @return the number of items in Memcache
+	 */
 	@Override
 	public int size() {
-		return (int) service.getStatistics().getItemCount();
+		MapStatistics statistics = this.statistics;
+		long startTime = statistics.begin();
+		try {
+			return (int) service.getStatistics().getItemCount();
+		} finally {
+			statistics.end(Operation.SIZE, startTime);
+		}
 	}
 
 	/**
@@ -167,4 +710,62 @@ public class MemcacheMap<K, V> implements Map<K, V> {
 	public Collection<V> values() {
 		throw new UnsupportedOperationException();
 	}
+
+	protected static class GenerationalKey implements Serializable {
+		private static final long serialVersionUID = 4728164013307756203L;
+
+		private long generation;
+		private Object key;
+
+		public GenerationalKey(long generation, Object key) {
+			this.generation = generation;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GenerationalKey)) {
+				return false;
+			}
+
+			GenerationalKey anotherKey = (GenerationalKey) obj;
+
+			return generation == anotherKey.generation
+					&& (key == null ? anotherKey.key == null : key
+							.equals(anotherKey.key));
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (generation ^ (generation >>> 32))
+					+ (key != null ? key.hashCode() : 0);
+		}
+	}
+
+	protected static class LeaseKey implements Serializable {
+		private static final long serialVersionUID = -1175508921563072630L;
+
+		private Object key;
+
+		public LeaseKey(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof LeaseKey)) {
+				return false;
+			}
+
+			LeaseKey anotherKey = (LeaseKey) obj;
+
+			return key == null ? anotherKey.key == null : key
+					.equals(anotherKey.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return key != null ? key.hashCode() : 0;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * A scope in which request-scoped maps memoize values they read and write,
+ * so that reading the same key again in a request costs no RPC.
+ * 
+ * <p>
+ * By default the scope is the current request: it is kept in the attributes
+ * of <tt>ApiProxy.getCurrentEnvironment()</tt> and dropped together with
+ * them at the end of the request. A scope can also be opened explicitly on
+ * the current thread, for example in a task which is not a request or to
+ * narrow the scope:
+ * </p>
+ * 
+ * <pre>
+ * RequestScope scope = RequestScope.begin();
+ * try {
+ * 	...
+ * } finally {
+ * 	scope.end();
+ * }
+ * </pre>
+ * 
+ * <p>
+ * Memoized values are shared by all readers in the scope, so they must not be
+ * modified. Writes by other requests are not seen within the scope once a
+ * key is memoized.
+ * </p>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see DatastoreMap#setRequestScoped(boolean)
+ */
+public class RequestScope {
+	protected static final String ATTRIBUTE_NAME = RequestScope.class
+			.getName();
+
+	static final Object NULL_VALUE = new Object();
+
+	private static final ThreadLocal<RequestScope> explicitScopes =
+			new ThreadLocal<RequestScope>();
+
+	private ConcurrentMap<Key, Object> values;
+	private RequestScope previousScope;
+
+	public RequestScope() {
+		values = new ConcurrentHashMap<Key, Object>();
+	}
+
+	/**
+	 * Opens a new scope on the current thread, which is used instead of the
+	 * scope of the request until {@link RequestScope#end()} is called.
+	 * 
+	 * @return the new scope
+	 */
+	public static RequestScope begin() {
+		RequestScope scope = new RequestScope();
+		scope.previousScope = explicitScopes.get();
+		explicitScopes.set(scope);
+
+		return scope;
+	}
+
+	/**
+	 * Closes this scope opened by {@link RequestScope#begin()} and drops the
+	 * memoized values.
+	 */
+	public void end() {
+		if (previousScope != null) {
+			explicitScopes.set(previousScope);
+		} else {
+			explicitScopes.remove();
+		}
+		values.clear();
+	}
+
+	/**
+	 * Returns the scope opened on the current thread, or the scope of the
+	 * current request.
+	 * 
+	 * @return the current scope, or <tt>null</tt> if there is neither a
+	 *         scope opened on this thread nor a current request
+	 */
+	public static RequestScope getCurrent() {
+		RequestScope scope = explicitScopes.get();
+		if (scope != null) {
+			return scope;
+		}
+
+		ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		if (environment == null) {
+			return null;
+		}
+
+		Map<String, Object> attributes = environment.getAttributes();
+		if (attributes == null) {
+			return null;
+		}
+
+		synchronized (attributes) {
+			scope = (RequestScope) attributes.get(ATTRIBUTE_NAME);
+			if (scope == null) {
+				scope = new RequestScope();
+				attributes.put(ATTRIBUTE_NAME, scope);
+			}
+		}
+
+		return scope;
+	}
+
+	/**
+	 * @return the number of memoized keys
+	 */
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * Drops all memoized values.
+	 */
+	public void clear() {
+		values.clear();
+	}
+
+	/**
+	 * @return the memoized value, {@link RequestScope#NULL_VALUE} if
+	 *         <tt>null</tt> or absence is memoized, or <tt>null</tt> if
+	 *         nothing is memoized
+	 */
+	Object lookup(Key key) {
+		return values.get(key);
+	}
+
+	void memoize(Key key, Object value) {
+		values.put(key, value != null ? value : NULL_VALUE);
+	}
+
+	void forget(Key key) {
+		values.remove(key);
+	}
+
+	void forgetKind(String kind) {
+		for (Iterator<Key> i = values.keySet().iterator(); i.hasNext();) {
+			if (kind.equals(i.next().getKind())) {
+				i.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Options of scanning all values of a {@link DatastoreMap} in parallel for its
+ * aggregations like <tt>reduce()</tt>, <tt>count()</tt> and
+ * <tt>summarize()</tt>. Use {@link ScanOptions.Builder} to create an instance
+ * in the same way as <tt>FetchOptions</tt> of Datastore.
+ * 
+ * <pre>
+ * LongSummary summary = map.summarize(measurer, ScanOptions.Builder
+ * 		.withExecutor(executor).numberOfPartitions(16));
+ * </pre>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see DatastoreMap#splitKeyRanges(int)
+ */
+public final class ScanOptions {
+	public static final int DEFAULT_NUMBER_OF_PARTITIONS = 4;
+
+	private int numberOfPartitions;
+	private Executor executor;
+
+	private ScanOptions() {
+		numberOfPartitions = DEFAULT_NUMBER_OF_PARTITIONS;
+		executor = null;
+	}
+
+	/**
+	 * Sets the number of key ranges into which the kind is split. Each range
+	 * is read with its own query, and its values are decoded and aggregated
+	 * by the thread which reads it.
+	 * 
+	 * @param numberOfPartitions
+	 *            a positive number
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>numberOfPartitions</tt> is not positive
+	 * @see DatastoreMap#splitKeyRanges(int)
+	 */
+	public ScanOptions numberOfPartitions(int numberOfPartitions)
+			throws IllegalArgumentException {
+		if (numberOfPartitions <= 0) {
+			throw new IllegalArgumentException(
+					"\"numberOfPartitions\" must be positive.");
+		}
+
+		this.numberOfPartitions = numberOfPartitions;
+		return this;
+	}
+
+	/**
+	 * Sets the executor which scans the partitions in parallel.
+	 * 
+	 * @param executor
+	 *            an executor, or <tt>null</tt> to use the executor of the map
+	 *            given by <tt>DatastoreMap.setExecutor()</tt>, which runs the
+	 *            partitions on the calling thread while a transaction is
+	 *            active on it
+	 * @return this
+	 */
+	public ScanOptions executor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	public int getNumberOfPartitions() {
+		return numberOfPartitions;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public static final class Builder {
+		private Builder() {
+		}
+
+		public static ScanOptions withDefaults() {
+			return new ScanOptions();
+		}
+
+		public static ScanOptions withNumberOfPartitions(
+				int numberOfPartitions) {
+			return withDefaults().numberOfPartitions(numberOfPartitions);
+		}
+
+		public static ScanOptions withExecutor(Executor executor) {
+			return withDefaults().executor(executor);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.koherent.concurrent.Publisher;
+import org.koherent.concurrent.Subscriber;
+import org.koherent.concurrent.Subscription;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.QueryResultList;
+
+/**
+ * Publishes the entities of a key range of a <tt>DatastoreMap</tt>. Each
+ * subscription reads pages of at most the page size with cursors, only as
+ * many entities as have been requested and not yet delivered, so at most one
+ * page is held at a time. Pages are read and decoded by tasks on the executor
+ * of the map, and signals to a subscriber never overlap.
+ */
+abstract class ScanPublisher<K, V, E> implements Publisher<E> {
+	private DatastoreMap<K, V> map;
+	private KeyRange range;
+	private boolean keysOnly;
+	private int pageSize;
+
+	public ScanPublisher(DatastoreMap<K, V> map, KeyRange range,
+			boolean keysOnly, int pageSize) {
+		this.map = map;
+		this.range = range;
+		this.keysOnly = keysOnly;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Decodes an entity into an element to publish.
+	 * 
+	 * @param entity
+	 *            the entity
+	 * @return the element, or <tt>null</tt> to skip the entity
+	 */
+	protected abstract E create(Entity entity);
+
+	@Override
+	public void subscribe(Subscriber<? super E> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("\"subscriber\" cannot be null.");
+		}
+
+		subscriber.onSubscribe(new ScanSubscription(subscriber, map
+				.getExecutor()));
+	}
+
+	private class ScanSubscription implements Subscription, Runnable {
+		private Subscriber<? super E> subscriber;
+		private Executor executor;
+
+		private AtomicLong demand = new AtomicLong();
+		private AtomicInteger missed = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile IllegalArgumentException invalidRequest;
+
+		// accessed only by run(), which never runs concurrently
+		private Cursor cursor;
+		private Iterator<Entity> page;
+		private boolean exhausted;
+		private boolean terminated;
+
+		public ScanSubscription(Subscriber<? super E> subscriber,
+				Executor executor) {
+			this.subscriber = subscriber;
+			this.executor = executor;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0L) {
+				invalidRequest = new IllegalArgumentException(
+						"\"n\" must be positive.");
+			} else {
+				long current;
+				long next;
+				do {
+					current = demand.get();
+					next = current + n;
+					if (next < 0L) {
+						next = Long.MAX_VALUE;
+					}
+				} while (!demand.compareAndSet(current, next));
+			}
+
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (missed.getAndIncrement() == 0) {
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				if (!terminated) {
+					try {
+						emit();
+					} catch (RuntimeException e) {
+						// not signalled again if onError() or onComplete()
+						// threw the exception
+						if (!terminated) {
+							terminate();
+							subscriber.onError(e);
+						}
+					}
+				}
+
+				missed = this.missed.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void emit() {
+			if (cancelled) {
+				terminate();
+				return;
+			}
+			if (invalidRequest != null) {
+				terminate();
+				subscriber.onError(invalidRequest);
+				return;
+			}
+
+			while (demand.get() > 0L) {
+				if (cancelled) {
+					terminate();
+					return;
+				}
+
+				if (page == null || !page.hasNext()) {
+					if (exhausted) {
+						break;
+					}
+
+					fetch((int) Math.min(pageSize, demand.get()));
+					continue;
+				}
+
+				E element = create(page.next());
+				if (element == null) {
+					continue;
+				}
+
+				if (demand.get() != Long.MAX_VALUE) {
+					demand.decrementAndGet();
+				}
+				subscriber.onNext(element);
+			}
+
+			if (exhausted && (page == null || !page.hasNext())) {
+				terminate();
+				subscriber.onComplete();
+			}
+		}
+
+		private void fetch(int limit) {
+			FetchOptions options = FetchOptions.Builder.withLimit(limit)
+					.chunkSize(limit);
+			if (cursor != null) {
+				options = options.startCursor(cursor);
+			}
+
+			QueryResultList<Entity> entities = map.getPreparedQuery(range,
+					keysOnly).asQueryResultList(options);
+			cursor = entities.getCursor();
+			exhausted = entities.size() < limit;
+			page = entities.iterator();
+		}
+
+		private void terminate() {
+			terminated = true;
+			page = null;
+		}
+	}
+}
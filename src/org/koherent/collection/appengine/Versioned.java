@@ -0,0 +1,55 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+/**
+ * A value read by {@link DatastoreMap#getVersioned(Object)} with the version
+ * of the entity which holds it. The version is passed to
+ * {@link DatastoreMap#compareAndSet(Object, long, Object)} to write a new value
+ * only if the entity has not been written since it was read.
+ * 
+ * @param <V>
+ *            the type of the value
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see DatastoreMap#getVersioned(Object)
+ */
+public class Versioned<V> {
+	private V value;
+	private long version;
+
+	public Versioned(V value, long version) {
+		this.value = value;
+		this.version = version;
+	}
+
+	/**
+	 * @return the value, or <tt>null</tt> if there was no mapping for the key
+	 */
+	public V getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the version of the entity, or {@link DatastoreMap#NO_VERSION} if
+	 *         there was no mapping for the key
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+import java.util.concurrent.Executor;
+
+import com.google.appengine.api.datastore.Cursor;
+
+/**
+ * Options of warming up Memcache of {@link CachedDatastoreMap} and
+ * {@link FastCachedDatastoreMap}. Use {@link WarmUpOptions.Builder} to create
+ * an instance in the same way as <tt>FetchOptions</tt> of Datastore.
+ * 
+ * <pre>
+ * Cursor cursor = map.warmUp(WarmUpOptions.Builder.withLimit(1000)
+ * 		.maxEntitiesPerSecond(500));
+ * </pre>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see CachedDatastoreMap#warmUp(WarmUpOptions)
+ * @see FastCachedDatastoreMap#warmUp(WarmUpOptions)
+ */
+public final class WarmUpOptions {
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private int batchSize;
+	private int limit;
+	private int maxEntitiesPerSecond;
+	private Cursor startCursor;
+	private Executor executor;
+
+	private WarmUpOptions() {
+		batchSize = DEFAULT_BATCH_SIZE;
+		limit = 0;
+		maxEntitiesPerSecond = 0;
+		startCursor = null;
+		executor = null;
+	}
+
+	/**
+	 * Sets the number of entities which are read from Datastore and stored to
+	 * Memcache at once.
+	 * 
+	 * @param batchSize
+	 *            a positive number
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>batchSize</tt> is not positive
+	 */
+	public WarmUpOptions batchSize(int batchSize)
+			throws IllegalArgumentException {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException(
+					"\"batchSize\" must be positive.");
+		}
+
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of entities to be loaded by one call. A cursor
+	 * is returned to resume loading when the limit is reached.
+	 * 
+	 * @param limit
+	 *            a positive number, or 0 for no limit
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>limit</tt> is negative
+	 */
+	public WarmUpOptions limit(int limit) throws IllegalArgumentException {
+		if (limit < 0) {
+			throw new IllegalArgumentException(
+					"\"limit\" cannot be negative.");
+		}
+
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Sets the rate limit of loading.
+	 * 
+	 * @param maxEntitiesPerSecond
+	 *            a positive number, or 0 for no limit
+	 * @return this
+	 * @throws IllegalArgumentException
+	 *             if <tt>maxEntitiesPerSecond</tt> is negative
+	 */
+	public WarmUpOptions maxEntitiesPerSecond(int maxEntitiesPerSecond)
+			throws IllegalArgumentException {
+		if (maxEntitiesPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"\"maxEntitiesPerSecond\" cannot be negative.");
+		}
+
+		this.maxEntitiesPerSecond = maxEntitiesPerSecond;
+		return this;
+	}
+
+	/**
+	 * Sets the cursor returned by the previous call to resume loading.
+	 * 
+	 * @param startCursor
+	 *            a cursor, or <tt>null</tt> to start from the beginning
+	 * @return this
+	 */
+	public WarmUpOptions startCursor(Cursor startCursor) {
+		this.startCursor = startCursor;
+		return this;
+	}
+
+	/**
+	 * Sets the executor which decodes the values of loaded entities in
+	 * parallel.
+	 * 
+	 * @param executor
+	 *            an executor, or <tt>null</tt> to decode them on the calling
+	 *            thread
+	 * @return this
+	 */
+	public WarmUpOptions executor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getMaxEntitiesPerSecond() {
+		return maxEntitiesPerSecond;
+	}
+
+	public Cursor getStartCursor() {
+		return startCursor;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public static final class Builder {
+		private Builder() {
+		}
+
+		public static WarmUpOptions withDefaults() {
+			return new WarmUpOptions();
+		}
+
+		public static WarmUpOptions withBatchSize(int batchSize) {
+			return withDefaults().batchSize(batchSize);
+		}
+
+		public static WarmUpOptions withLimit(int limit) {
+			return withDefaults().limit(limit);
+		}
+
+		public static WarmUpOptions withMaxEntitiesPerSecond(
+				int maxEntitiesPerSecond) {
+			return withDefaults().maxEntitiesPerSecond(maxEntitiesPerSecond);
+		}
+
+		public static WarmUpOptions withStartCursor(Cursor startCursor) {
+			return withDefaults().startCursor(startCursor);
+		}
+
+		public static WarmUpOptions withExecutor(Executor executor) {
+			return withDefaults().executor(executor);
+		}
+	}
+}
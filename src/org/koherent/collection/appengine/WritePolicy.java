@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.collection.appengine;
+
+/**
+ * Policies which decide how {@link CachedDatastoreMap} and
+ * {@link FastCachedDatastoreMap} keep Memcache consistent with Datastore when
+ * values are written.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see CachedDatastoreMap
+ * @see FastCachedDatastoreMap
+ */
+public enum WritePolicy {
+	/**
+	 * Removes a cached value after it is written to Datastore. The next read
+	 * of the key always goes to Datastore.
+	 */
+	INVALIDATE,
+
+	/**
+	 * Stores a written value to Memcache after it is committed to Datastore.
+	 * The value is stored only if the cached entry has not been touched since
+	 * the write began, otherwise the entry is removed as <tt>INVALIDATE</tt>
+	 * does, so that a racing older write never overwrites a newer value.
+	 */
+	WRITE_THROUGH
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * An <tt>Executor</tt> which passes at most the given number of tasks at a
+ * time to another executor. A task submitted while the limit is reached runs
+ * on the calling thread, which slows down the caller instead of queueing
+ * tasks without bound and never deadlocks when a task submits tasks to the
+ * same executor.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public class BoundedExecutor implements Executor {
+	private Executor executor;
+	private int maxConcurrency;
+	private Semaphore permits;
+
+	/**
+	 * Constructs a bounded executor.
+	 * 
+	 * @param executor
+	 *            the executor to run tasks
+	 * @param maxConcurrency
+	 *            the maximum number of tasks passed to <tt>executor</tt> at
+	 *            a time
+	 * @throws IllegalArgumentException
+	 *             if <tt>executor</tt> is <tt>null</tt> or
+	 *             <tt>maxConcurrency</tt> is not positive
+	 */
+	public BoundedExecutor(Executor executor, int maxConcurrency)
+			throws IllegalArgumentException {
+		if (executor == null) {
+			throw new IllegalArgumentException("\"executor\" cannot be null.");
+		}
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException(
+					"\"maxConcurrency\" must be positive.");
+		}
+
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+		this.permits = new Semaphore(maxConcurrency);
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * Returns the number of tasks passed to the executor and not finished
+	 * yet, which does not include tasks running on calling threads.
+	 * 
+	 * @return the number of running tasks
+	 */
+	public int getActiveCount() {
+		return maxConcurrency - permits.availablePermits();
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		if (!permits.tryAcquire()) {
+			command.run();
+			return;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						command.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			command.run();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which spreads updates from different threads over separate cells
+ * to avoid contention, in the same way as <tt>LongAdder</tt> of Java 8.
+ * {@link StripedCounter#sum()} is not an atomic snapshot when updated
+ * concurrently.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public class StripedCounter {
+	private static final int NUMBER_OF_STRIPES = Integer.highestOneBit(Math
+			.min(Runtime.getRuntime().availableProcessors() * 2, 64));
+	private static final int CELL_INTERVAL = 8; // a cache line of 64 bytes
+
+	private AtomicLongArray cells;
+
+	public StripedCounter() {
+		cells = new AtomicLongArray(NUMBER_OF_STRIPES * CELL_INTERVAL);
+	}
+
+	public void increment() {
+		add(1L);
+	}
+
+	public void add(long x) {
+		cells.getAndAdd(getCellIndex(), x);
+	}
+
+	public long sum() {
+		long sum = 0L;
+		for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+			sum += cells.get(i * CELL_INTERVAL);
+		}
+
+		return sum;
+	}
+
+	public void reset() {
+		for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+			cells.set(i * CELL_INTERVAL, 0L);
+		}
+	}
+
+	public long sumThenReset() {
+		long sum = 0L;
+		for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+			sum += cells.getAndSet(i * CELL_INTERVAL, 0L);
+		}
+
+		return sum;
+	}
+
+	private static int getCellIndex() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+
+		return ((hash >>> 16) & (NUMBER_OF_STRIPES - 1)) * CELL_INTERVAL;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
@@ -17,14 +17,20 @@ package org.koherent.io.appengine;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import org.koherent.io.appengine.DatastoreStreamingIO.Metadata;
+import org.koherent.rpc.RpcExecutors;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 
 /**
@@ -40,8 +46,15 @@ import com.google.appengine.api.datastore.KeyFactory;
  * read by <code>DatastoreInputStream</code>.
  * </p>
  * 
+ * <p>
+ * While a page is read, the next page is fetched in advance on the executor
+ * given by {@link RpcExecutors#getDefaultExecutor()} or
+ * {@link DatastoreInputStream#setExecutor(Executor)}, unless the executor is
+ * {@link RpcExecutors#CALLER_RUNS}.
+ * </p>
+ * 
  * @author koher
- * @version 0.1
+ * @version 0.3
  * @since 0.1
  * @see DatastoreOutputStream
  * @see java.io.FileInputStream
@@ -56,9 +69,13 @@ public class DatastoreInputStream extends InputStream {
 	private int pointer;
 
 	private DatastoreService service;
+	private Executor executor;
 
 	private Metadata metadata;
 
+	private long prefetchedPage;
+	private FutureTask<Entity> prefetchedEntity;
+
 	public DatastoreInputStream(String kind) {
 		this.kind = kind;
 
@@ -66,9 +83,31 @@ public class DatastoreInputStream extends InputStream {
 		pointer = 0;
 
 		service = DatastoreServiceFactory.getDatastoreService();
+		executor = RpcExecutors.getDefaultExecutor();
 		metadata = DatastoreStreamingIO.readMetadata(this.kind, service);
 	}
 
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor which fetches the next page in advance.
+	 * 
+	 * @param executor
+	 *            the executor, or {@link RpcExecutors#CALLER_RUNS} not to
+	 *            fetch pages in advance
+	 * @throws IllegalArgumentException
+	 *             if <tt>executor</tt> is <tt>null</tt>
+	 */
+	public void setExecutor(Executor executor) throws IllegalArgumentException {
+		if (executor == null) {
+			throw new IllegalArgumentException("\"executor\" cannot be null.");
+		}
+
+		this.executor = executor;
+	}
+
 	@Override
 	public int available() throws IOException {
 		if (!readBuffer()) {
@@ -91,6 +130,10 @@ public class DatastoreInputStream extends InputStream {
 
 	@Override
 	public void close() throws IOException {
+		if (prefetchedEntity != null) {
+			prefetchedEntity.cancel(false);
+			prefetchedEntity = null;
+		}
 	}
 
 	@Override
@@ -182,8 +225,7 @@ public class DatastoreInputStream extends InputStream {
 
 		while (pointer == 0) {
 			try {
-				Entity entity = service.get(KeyFactory.createKey(kind, Long
-						.toHexString(page)));
+				Entity entity = getPage(page);
 				long version = (Long) entity
 						.getProperty(DatastoreStreamingIO.DATA__PROPERTY__VERSION);
 
@@ -217,4 +259,46 @@ public class DatastoreInputStream extends InputStream {
 
 		return true;
 	}
+
+	protected Entity getPage(long page) throws EntityNotFoundException {
+		FutureTask<Entity> task = prefetchedEntity;
+		prefetchedEntity = null;
+
+		Entity entity;
+		if (task != null && prefetchedPage == page) {
+			entity = RpcExecutors.getAll(Collections.singletonList(task))
+					.get(0);
+			if (entity == null) {
+				throw new EntityNotFoundException(createKey(page));
+			}
+		} else {
+			entity = service.get(createKey(page));
+		}
+
+		if (executor != RpcExecutors.CALLER_RUNS && page < metadata.page) {
+			prefetch(page + 1);
+		}
+
+		return entity;
+	}
+
+	private void prefetch(long page) {
+		final Key key = createKey(page);
+		prefetchedPage = page;
+		prefetchedEntity = new FutureTask<Entity>(new Callable<Entity>() {
+			@Override
+			public Entity call() {
+				try {
+					return service.get(key);
+				} catch (EntityNotFoundException e) {
+					return null;
+				}
+			}
+		});
+		executor.execute(prefetchedEntity);
+	}
+
+	private Key createKey(long page) {
+		return KeyFactory.createKey(kind, Long.toHexString(page));
+	}
 }
\ No newline at end of file
@@ -17,10 +17,15 @@ package org.koherent.io.appengine;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import org.koherent.io.appengine.DatastoreStreamingIO.Metadata;
 import org.koherent.math.Integers;
+import org.koherent.rpc.RpcExecutors;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
@@ -48,8 +53,16 @@ import com.google.appengine.api.datastore.Transaction;
  * <code>DatastoreInputStream</code>.
  * </p>
  * 
+ * <p>
+ * A page filled by <tt>write()</tt> is put on the executor given by
+ * {@link RpcExecutors#getDefaultExecutor()} or
+ * {@link DatastoreOutputStream#setExecutor(Executor)} while the next page is
+ * written, unless the executor is {@link RpcExecutors#CALLER_RUNS}.
+ * <tt>flush()</tt> and <tt>close()</tt> wait for the put.
+ * </p>
+ * 
  * @author koher
- * @version 0.1
+ * @version 0.3
  * @since 0.1
  * @see DatastoreInputStream
  * @see java.io.FileOutputStream
@@ -78,6 +91,8 @@ public class DatastoreOutputStream extends OutputStream {
 	private int lastFlushPointer;
 
 	private DatastoreService service;
+	private Executor executor;
+	private FutureTask<Void> pendingPut;
 
 	private Metadata metadata;
 
@@ -86,6 +101,7 @@ public class DatastoreOutputStream extends OutputStream {
 		this.kind = kind;
 
 		service = DatastoreServiceFactory.getDatastoreService();
+		executor = RpcExecutors.getDefaultExecutor();
 
 		while (true) {
 			Transaction transaction = service.beginTransaction();
@@ -155,8 +171,32 @@ public class DatastoreOutputStream extends OutputStream {
 		this(kind, false);
 	}
 
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor which puts filled pages while the next pages are
+	 * written.
+	 * 
+	 * @param executor
+	 *            the executor, or {@link RpcExecutors#CALLER_RUNS} to put
+	 *            each page before writing the next one
+	 * @throws IllegalArgumentException
+	 *             if <tt>executor</tt> is <tt>null</tt>
+	 */
+	public void setExecutor(Executor executor) throws IllegalArgumentException {
+		if (executor == null) {
+			throw new IllegalArgumentException("\"executor\" cannot be null.");
+		}
+
+		this.executor = executor;
+	}
+
 	@Override
 	public void close() throws IOException {
+		waitForPendingPut();
+
 		long currentTime = System.currentTimeMillis();
 
 		if (!isWriteLocked(currentTime)) {
@@ -173,6 +213,8 @@ public class DatastoreOutputStream extends OutputStream {
 
 	@Override
 	public void flush() throws IOException {
+		waitForPendingPut();
+
 		if (page == lastFlushPage && pointer == lastFlushPointer) {
 			// if nothing is written
 			return;
@@ -186,10 +228,7 @@ public class DatastoreOutputStream extends OutputStream {
 			System.arraycopy(buffer, 0, data, 0, pointer);
 		}
 
-		Entity entity = new Entity(kind, Long.toHexString(page));
-		entity.setProperty(DATA__PROPERTY__DATA, new Blob(data));
-		entity.setProperty(DATA__PROPERTY__VERSION, metadata.version);
-		service.put(entity);
+		service.put(createPage(data));
 
 		lastFlushPage = page;
 		lastFlushPointer = pointer;
@@ -200,6 +239,55 @@ public class DatastoreOutputStream extends OutputStream {
 		}
 	}
 
+	protected void flushFullPage() throws IOException {
+		if (executor == RpcExecutors.CALLER_RUNS) {
+			flush();
+			return;
+		}
+
+		waitForPendingPut();
+
+		final Entity entity = createPage(buffer);
+		pendingPut = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() {
+				service.put(entity);
+
+				return null;
+			}
+		});
+		executor.execute(pendingPut);
+
+		lastFlushPage = page;
+		lastFlushPointer = pointer;
+
+		page++;
+		pointer = 0;
+		buffer = new byte[BUFFER_SIZE];
+	}
+
+	protected void waitForPendingPut() throws IOException {
+		FutureTask<Void> task = pendingPut;
+		if (task == null) {
+			return;
+		}
+
+		pendingPut = null;
+		try {
+			RpcExecutors.getAll(Collections.singletonList(task));
+		} catch (RuntimeException e) {
+			throw new IOException(e);
+		}
+	}
+
+	protected Entity createPage(byte[] data) {
+		Entity entity = new Entity(kind, Long.toHexString(page));
+		entity.setProperty(DATA__PROPERTY__DATA, new Blob(data));
+		entity.setProperty(DATA__PROPERTY__VERSION, metadata.version);
+
+		return entity;
+	}
+
 	@Override
 	public void write(int b) throws IOException {
 		if (!isWriteLocked(System.currentTimeMillis())) {
@@ -210,7 +298,7 @@ public class DatastoreOutputStream extends OutputStream {
 			if (buffer.length < BUFFER_SIZE) {
 				allocateBuffer();
 			} else {
-				flush();
+				flushFullPage();
 			}
 		}
 
@@ -239,7 +327,7 @@ public class DatastoreOutputStream extends OutputStream {
 
 				System.arraycopy(b, off, buffer, pointer, vacancy);
 				pointer += vacancy;
-				flush();
+				flushFullPage();
 
 				len -= vacancy;
 				off += vacancy;
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.math;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative <tt>long</tt> values such as latencies in
+ * nanoseconds. Values are recorded into buckets whose widths grow
+ * exponentially with eight sub-buckets per power of two, so that any recorded
+ * value is reported with a relative error less than 12.5%. Recording is
+ * thread-safe and never allocates.
+ * 
+ * <p>
+ * Like {@link org.koherent.concurrent.StripedCounter}, the buckets and the
+ * maximum are striped over threads so that concurrent recording does not
+ * contend on shared cells. The count is the sum of the buckets. Reads are not
+ * atomic snapshots while values are recorded concurrently.
+ * </p>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int NUMBER_OF_BUCKETS = (63 - SUB_BUCKET_BITS + 1)
+			* SUB_BUCKET_COUNT;
+	private static final int NUMBER_OF_STRIPES = Integer.highestOneBit(Math
+			.min(Runtime.getRuntime().availableProcessors(), 8));
+	private static final int CELL_INTERVAL = 8; // a cache line of 64 bytes
+
+	private AtomicLongArray buckets; // [stripe][bucket]
+	private AtomicLongArray maxes; // a padded cell for each stripe
+
+	public Histogram() {
+		buckets = new AtomicLongArray(NUMBER_OF_STRIPES * NUMBER_OF_BUCKETS);
+		maxes = new AtomicLongArray(NUMBER_OF_STRIPES * CELL_INTERVAL);
+	}
+
+	public void record(long value) {
+		if (value < 0L) {
+			value = 0L;
+		}
+
+		int stripe = getStripe();
+		buckets.incrementAndGet(stripe * NUMBER_OF_BUCKETS
+				+ getBucketIndex(value));
+		updateMax(stripe * CELL_INTERVAL, value);
+	}
+
+	public long getCount() {
+		long count = 0L;
+		for (int i = 0; i < buckets.length(); i++) {
+			count += buckets.get(i);
+		}
+
+		return count;
+	}
+
+	public long getMax() {
+		long max = 0L;
+		for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+			max = Math.max(max, maxes.get(i * CELL_INTERVAL));
+		}
+
+		return max;
+	}
+
+	/**
+	 * Returns the value at the given percentile. The returned value is the
+	 * highest value equivalent to the recorded ones in its bucket.
+	 * 
+	 * @param percentile
+	 *            a percentile between 0 and 100
+	 * @return the value at the percentile, or 0 if no value is recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] counts = getBucketCounts();
+
+		long totalCount = 0L;
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			totalCount += counts[i];
+		}
+		if (totalCount == 0L) {
+			return 0L;
+		}
+
+		long targetCount = Math.max(1L, (long) Math.ceil(Math.min(percentile,
+				100.0) / 100.0 * totalCount));
+
+		long cumulativeCount = 0L;
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			cumulativeCount += counts[i];
+			if (cumulativeCount >= targetCount) {
+				return Math.min(getHighestValue(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * Adds all of the values recorded in the given histogram to this
+	 * histogram.
+	 * 
+	 * @param histogram
+	 *            the histogram to be added
+	 */
+	public void add(Histogram histogram) {
+		int stripe = getStripe();
+
+		long[] counts = histogram.getBucketCounts();
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			if (counts[i] > 0L) {
+				buckets.addAndGet(stripe * NUMBER_OF_BUCKETS + i, counts[i]);
+			}
+		}
+
+		updateMax(stripe * CELL_INTERVAL, histogram.getMax());
+	}
+
+	public Histogram copy() {
+		Histogram histogram = new Histogram();
+		histogram.add(this);
+
+		return histogram;
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0L);
+		}
+		for (int i = 0; i < NUMBER_OF_STRIPES; i++) {
+			maxes.set(i * CELL_INTERVAL, 0L);
+		}
+	}
+
+	private long[] getBucketCounts() {
+		long[] counts = new long[NUMBER_OF_BUCKETS];
+		for (int stripe = 0; stripe < NUMBER_OF_STRIPES; stripe++) {
+			for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+				counts[i] += buckets.get(stripe * NUMBER_OF_BUCKETS + i);
+			}
+		}
+
+		return counts;
+	}
+
+	private void updateMax(int cellIndex, long value) {
+		long currentMax;
+		while (value > (currentMax = maxes.get(cellIndex))) {
+			if (maxes.compareAndSet(cellIndex, currentMax, value)) {
+				break;
+			}
+		}
+	}
+
+	private static int getStripe() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+
+		return (hash >>> 16) & (NUMBER_OF_STRIPES - 1);
+	}
+
+	private static int getBucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKET_COUNT - 1);
+
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	private static long getLowestValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKET_COUNT;
+
+		return (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	private static long getHighestValue(int index) {
+		if (index + 1 == NUMBER_OF_BUCKETS) {
+			return Long.MAX_VALUE;
+		}
+
+		return getLowestValue(index + 1) - 1L;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.math;
+
+import java.io.Serializable;
+
+/**
+ * The count, the sum, the minimum and the maximum of <tt>long</tt> values. A
+ * <tt>LongSummary</tt> is immutable: {@link LongSummary#add(long)} and
+ * {@link LongSummary#merge(LongSummary)} return new summaries, so that
+ * {@link LongSummary#EMPTY} can be shared as the initial value of parallel
+ * reductions.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public final class LongSummary implements Serializable {
+	private static final long serialVersionUID = 2930586119174637254L;
+
+	public static final LongSummary EMPTY = new LongSummary(0L, 0L,
+			Long.MAX_VALUE, Long.MIN_VALUE);
+
+	private long count;
+	private long sum;
+	private long min;
+	private long max;
+
+	private LongSummary(long count, long sum, long min, long max) {
+		this.count = count;
+		this.sum = sum;
+		this.min = min;
+		this.max = max;
+	}
+
+	public LongSummary add(long value) {
+		return new LongSummary(count + 1, sum + value, Longs.min(min, value),
+				Longs.max(max, value));
+	}
+
+	public LongSummary merge(LongSummary summary) {
+		return new LongSummary(count + summary.count, sum + summary.sum, Longs
+				.min(min, summary.min), Longs.max(max, summary.max));
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return the minimum, or <tt>Long.MAX_VALUE</tt> if there are no values
+	 */
+	public long getMin() {
+		return min;
+	}
+
+	/**
+	 * @return the maximum, or <tt>Long.MIN_VALUE</tt> if there are no values
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the average, or 0 if there are no values
+	 */
+	public double getAverage() {
+		return count > 0L ? (double) sum / count : 0.0;
+	}
+
+	@Override
+	public String toString() {
+		return "count: " + count + ", sum: " + sum + ", min: " + min
+				+ ", max: " + max;
+	}
+}
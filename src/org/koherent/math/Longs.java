@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.math;
+
+public class Longs {
+	private Longs() {
+	}
+
+	public static long min(long a, long b) {
+		return a < b ? a : b;
+	}
+
+	public static long min(long... values) {
+		long min = Long.MAX_VALUE;
+
+		for (long value : values) {
+			if (value < min) {
+				min = value;
+			}
+		}
+
+		return min;
+	}
+
+	public static long max(long a, long b) {
+		return a > b ? a : b;
+	}
+
+	public static long max(long... values) {
+		long max = Long.MIN_VALUE;
+
+		for (long value : values) {
+			if (value > max) {
+				max = value;
+			}
+		}
+
+		return max;
+	}
+}
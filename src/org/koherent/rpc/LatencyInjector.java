@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.rpc;
+
+import java.util.Random;
+
+/**
+ * An {@link RpcInterceptor} which delays every call, used to simulate the
+ * latency of production services in benchmarks and tests.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public class LatencyInjector implements RpcInterceptor {
+	private long delayMillis;
+	private long jitterMillis;
+	private Random random;
+
+	public LatencyInjector(long delayMillis) throws IllegalArgumentException {
+		this(delayMillis, 0L);
+	}
+
+	/**
+	 * Constructs an interceptor which delays every call by
+	 * <tt>delayMillis</tt> plus a random time up to <tt>jitterMillis</tt>.
+	 * 
+	 * @param delayMillis
+	 *            the minimum delay in milliseconds
+	 * @param jitterMillis
+	 *            the maximum additional delay in milliseconds
+	 * @throws IllegalArgumentException
+	 *             if any of the arguments is negative
+	 */
+	public LatencyInjector(long delayMillis, long jitterMillis)
+			throws IllegalArgumentException {
+		if (delayMillis < 0L || jitterMillis < 0L) {
+			throw new IllegalArgumentException(
+					"\"delayMillis\" and \"jitterMillis\" cannot be negative.");
+		}
+
+		this.delayMillis = delayMillis;
+		this.jitterMillis = jitterMillis;
+		this.random = new Random();
+	}
+
+	@Override
+	public Object intercept(RpcInvocation invocation) throws Throwable {
+		long delay = delayMillis;
+		if (jitterMillis > 0L) {
+			delay += (long) (random.nextDouble() * (jitterMillis + 1));
+		}
+
+		if (delay > 0L) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		return invocation.proceed();
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.rpc;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Executors to fan out blocking calls of services like Datastore and Memcache.
+ * Bulk operations of maps and streams in this library run their RPCs on the
+ * executor given by {@link RpcExecutors#getDefaultExecutor()} unless another
+ * one is set to them.
+ * 
+ * <p>
+ * The default executor starts a virtual thread for each task when the JVM
+ * supports virtual threads, and otherwise runs tasks on the calling thread,
+ * because platform threads cannot be started freely on Google App Engine.
+ * Call {@link RpcExecutors#setDefaultExecutor(Executor)} at startup to plug in
+ * another executor, for example one of <tt>ThreadManager</tt>.
+ * </p>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public class RpcExecutors {
+	public static final int DEFAULT_MAX_CONCURRENT_RPCS = 10;
+
+	/**
+	 * An executor which runs tasks on the calling thread.
+	 */
+	public static final Executor CALLER_RUNS = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static final ThreadFactory virtualThreadFactory =
+			createVirtualThreadFactory();
+
+	private static volatile Executor defaultExecutor;
+
+	private RpcExecutors() {
+	}
+
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			// Thread.ofVirtual().factory() of Java 21 and later
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public static boolean isVirtualThreadSupported() {
+		return virtualThreadFactory != null;
+	}
+
+	/**
+	 * Returns an executor which starts a virtual thread for each task. The
+	 * tasks run with the App Engine environment of the threads which submit
+	 * them.
+	 * 
+	 * @return the executor
+	 * @throws UnsupportedOperationException
+	 *             if the JVM does not support virtual threads
+	 */
+	public static Executor newVirtualThreadExecutor()
+			throws UnsupportedOperationException {
+		if (virtualThreadFactory == null) {
+			throw new UnsupportedOperationException(
+					"Virtual threads are not supported.");
+		}
+
+		return withEnvironment(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				virtualThreadFactory.newThread(command).start();
+			}
+		});
+	}
+
+	/**
+	 * Returns the executor used by maps and streams created after this call
+	 * unless another one is set to them.
+	 * 
+	 * @return the default executor
+	 */
+	public static Executor getDefaultExecutor() {
+		Executor executor = defaultExecutor;
+		if (executor == null) {
+			executor = isVirtualThreadSupported() ? newVirtualThreadExecutor()
+					: CALLER_RUNS;
+			defaultExecutor = executor;
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Replaces the default executor.
+	 * 
+	 * @param executor
+	 *            the executor, or <tt>null</tt> to restore the initial one
+	 */
+	public static void setDefaultExecutor(Executor executor) {
+		defaultExecutor = executor;
+	}
+
+	/**
+	 * Wraps the executor so that each task runs with the App Engine
+	 * environment of the thread which submits it, which is needed to call
+	 * services from threads other than request threads.
+	 * 
+	 * @param executor
+	 *            the executor to run tasks
+	 * @return the wrapping executor
+	 */
+	public static Executor withEnvironment(final Executor executor) {
+		return new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				final ApiProxy.Environment environment = ApiProxy
+						.getCurrentEnvironment();
+				if (environment == null) {
+					executor.execute(command);
+					return;
+				}
+
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						ApiProxy.Environment previousEnvironment = ApiProxy
+								.getCurrentEnvironment();
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						try {
+							command.run();
+						} finally {
+							if (previousEnvironment != null) {
+								ApiProxy.setEnvironmentForCurrentThread(
+										previousEnvironment);
+							} else {
+								ApiProxy.clearEnvironmentForCurrentThread();
+							}
+						}
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Runs the tasks on the executor and waits for all of them.
+	 * 
+	 * @param executor
+	 *            the executor to run the tasks
+	 * @param tasks
+	 *            the tasks
+	 * @return the results of the tasks in the same order
+	 * @throws IllegalStateException
+	 *             if the calling thread is interrupted, or if a task throws a
+	 *             checked exception
+	 */
+	public static <T> List<T> invokeAll(Executor executor,
+			List<? extends Callable<T>> tasks) throws IllegalStateException {
+		List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks
+				.size());
+		for (Callable<T> task : tasks) {
+			FutureTask<T> future = new FutureTask<T>(task);
+			futures.add(future);
+			executor.execute(future);
+		}
+
+		return getAll(futures);
+	}
+
+	/**
+	 * Waits for all of the futures. Runtime exceptions and errors thrown by
+	 * the tasks are rethrown as they are. The remaining futures are cancelled
+	 * if the calling thread is interrupted.
+	 * 
+	 * @param futures
+	 *            the futures
+	 * @return the results of the futures in the same order
+	 * @throws IllegalStateException
+	 *             if the calling thread is interrupted, or if a task throws a
+	 *             checked exception
+	 */
+	public static <T> List<T> getAll(List<? extends Future<T>> futures)
+			throws IllegalStateException {
+		List<T> results = new ArrayList<T>(futures.size());
+		for (Future<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				for (Future<T> anotherFuture : futures) {
+					anotherFuture.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+
+				throw new IllegalStateException("Interrupted while waiting.");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+
+				throw new IllegalStateException(cause);
+			}
+		}
+
+		return results;
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.rpc;
+
+/**
+ * An interceptor of calls to an App Engine service such as
+ * <tt>DatastoreService</tt> or <tt>MemcacheService</tt>. It can observe a
+ * call, change its arguments or result, or replace the call entirely.
+ * 
+ * <p>
+ * An interceptor must call {@link RpcInvocation#proceed()} to pass the call on
+ * to the next interceptor, and finally to the service. Interceptors run in the
+ * order they were added; the first one added is the outermost.
+ * </p>
+ * 
+ * <pre>
+ * map.addInterceptor(new RpcInterceptor() {
+ * 	public Object intercept(RpcInvocation invocation) throws Throwable {
+ * 		long startTime = System.nanoTime();
+ * 		try {
+ * 			return invocation.proceed();
+ * 		} finally {
+ * 			trace(invocation.getName(), System.nanoTime() - startTime);
+ * 		}
+ * 	}
+ * });
+ * </pre>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see RpcInvocation
+ * @see RpcInterceptors
+ */
+public interface RpcInterceptor {
+	/**
+	 * Intercepts a call to a service.
+	 * 
+	 * @param invocation
+	 *            the intercepted call
+	 * @return the result of the call, or <tt>null</tt> for a <tt>void</tt>
+	 *         method
+	 * @throws Throwable
+	 *             thrown by the service or by this interceptor
+	 */
+	Object intercept(RpcInvocation invocation) throws Throwable;
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+/**
+ * Utility methods for {@link RpcInterceptor}.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public class RpcInterceptors {
+	private RpcInterceptors() {
+	}
+
+	/**
+	 * Returns a proxy of the service which passes every call through the
+	 * interceptors. The list is read on each call, so interceptors added to it
+	 * later take effect immediately if the list is thread-safe like
+	 * <tt>CopyOnWriteArrayList</tt>. Methods of <tt>Object</tt> are not
+	 * intercepted.
+	 * 
+	 * @param <T>
+	 *            the type of the service
+	 * @param serviceType
+	 *            the interface of the service
+	 * @param service
+	 *            the service to be intercepted
+	 * @param interceptors
+	 *            the interceptors
+	 * @return the intercepted service
+	 * @throws IllegalArgumentException
+	 *             if any of the arguments is <tt>null</tt> or
+	 *             <tt>serviceType</tt> is not an interface
+	 */
+	public static <T> T intercept(final Class<T> serviceType,
+			final T service, final List<RpcInterceptor> interceptors)
+			throws IllegalArgumentException {
+		if (serviceType == null || service == null || interceptors == null) {
+			throw new IllegalArgumentException(
+					"\"serviceType\", \"service\" and \"interceptors\" "
+							+ "cannot be null.");
+		}
+
+		return serviceType.cast(Proxy.newProxyInstance(serviceType
+				.getClassLoader(), new Class<?>[] { serviceType },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] arguments) throws Throwable {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(service, arguments);
+						}
+
+						return new RpcInvocation(serviceType, service, method,
+								arguments, interceptors, 0).proceed();
+					}
+				}));
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.rpc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * A call to a service passed through {@link RpcInterceptor}s.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ * @see RpcInterceptor
+ */
+public final class RpcInvocation {
+	private Class<?> serviceType;
+	private Object service;
+	private Method method;
+	private Object[] arguments;
+	private List<RpcInterceptor> interceptors;
+	private int index;
+
+	RpcInvocation(Class<?> serviceType, Object service, Method method,
+			Object[] arguments, List<RpcInterceptor> interceptors, int index) {
+		this.serviceType = serviceType;
+		this.service = service;
+		this.method = method;
+		this.arguments = arguments == null ? new Object[0] : arguments;
+		this.interceptors = interceptors;
+		this.index = index;
+	}
+
+	/**
+	 * Returns the interface of the service, like <tt>DatastoreService</tt>.
+	 * 
+	 * @return the interface of the service
+	 */
+	public Class<?> getServiceType() {
+		return serviceType;
+	}
+
+	/**
+	 * Returns the intercepted service, which interceptors may call to read
+	 * its local state such as the namespace of <tt>MemcacheService</tt>.
+	 * 
+	 * @return the intercepted service
+	 */
+	public Object getService() {
+		return service;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * Returns the name of the call in the form of
+	 * <tt>ServiceName.methodName</tt>, like <tt>DatastoreService.get</tt>.
+	 * 
+	 * @return the name of the call
+	 */
+	public String getName() {
+		return serviceType.getSimpleName() + "." + method.getName();
+	}
+
+	/**
+	 * Returns the arguments of the call. Interceptors may replace elements of
+	 * the returned array before calling {@link RpcInvocation#proceed()}.
+	 * 
+	 * @return the arguments, which is empty if the method takes no arguments
+	 */
+	public Object[] getArguments() {
+		return arguments;
+	}
+
+	/**
+	 * Passes the call on to the next interceptor, or to the service if this is
+	 * the last interceptor. It can be called more than once, for example to
+	 * retry the call.
+	 * 
+	 * @return the result of the call
+	 * @throws Throwable
+	 *             thrown by the following interceptors or by the service
+	 */
+	public Object proceed() throws Throwable {
+		if (index < interceptors.size()) {
+			return interceptors.get(index).intercept(
+					new RpcInvocation(serviceType, service, method, arguments,
+							interceptors, index + 1));
+		}
+
+		try {
+			return method.invoke(service, arguments);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.rpc;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.koherent.concurrent.StripedCounter;
+import org.koherent.math.Histogram;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * An {@link RpcInterceptor} which records the number, the failures, the
+ * latency and the payload size of calls for each method of services.
+ * 
+ * <p>
+ * Payload sizes are estimates. Values of properties of entities are counted
+ * and other objects are counted by the length of their serialized forms,
+ * which costs a serialization per call. Override
+ * {@link RpcRecorder#estimateSize(Object)} to change it.
+ * </p>
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public class RpcRecorder implements RpcInterceptor {
+	private ConcurrentMap<String, Record> records;
+	private boolean recordingPayloads;
+
+	public RpcRecorder() {
+		this(true);
+	}
+
+	/**
+	 * Constructs a recorder.
+	 * 
+	 * @param recordingPayloads
+	 *            <tt>false</tt> not to estimate payload sizes
+	 */
+	public RpcRecorder(boolean recordingPayloads) {
+		this.records = new ConcurrentHashMap<String, Record>();
+		this.recordingPayloads = recordingPayloads;
+	}
+
+	@Override
+	public Object intercept(RpcInvocation invocation) throws Throwable {
+		Record record = getRecord(invocation.getName());
+		if (recordingPayloads) {
+			record.bytesSent.add(estimateSize(invocation.getArguments()));
+		}
+
+		long startTime = System.nanoTime();
+		boolean succeeded = false;
+		try {
+			Object result = invocation.proceed();
+			succeeded = true;
+
+			if (recordingPayloads) {
+				record.bytesReceived.add(estimateSize(result));
+			}
+
+			return result;
+		} finally {
+			record.latencies.record(System.nanoTime() - startTime);
+			if (!succeeded) {
+				record.failures.increment();
+			}
+		}
+	}
+
+	/**
+	 * Returns the names of calls recorded so far, in the form of
+	 * <tt>ServiceName.methodName</tt>.
+	 * 
+	 * @return the names of recorded calls
+	 * @see RpcInvocation#getName()
+	 */
+	public Set<String> getNames() {
+		return records.keySet();
+	}
+
+	public long getCount(String name) {
+		Record record = records.get(name);
+		return record == null ? 0L : record.latencies.getCount();
+	}
+
+	public long getFailures(String name) {
+		Record record = records.get(name);
+		return record == null ? 0L : record.failures.sum();
+	}
+
+	/**
+	 * Returns a copy of the histogram of latencies in nanoseconds.
+	 * 
+	 * @param name
+	 *            the name of calls
+	 * @return the histogram of latencies, which is empty if no call is
+	 *         recorded
+	 */
+	public Histogram getLatencies(String name) {
+		Record record = records.get(name);
+		return record == null ? new Histogram() : record.latencies.copy();
+	}
+
+	public long getBytesSent(String name) {
+		Record record = records.get(name);
+		return record == null ? 0L : record.bytesSent.sum();
+	}
+
+	public long getBytesReceived(String name) {
+		Record record = records.get(name);
+		return record == null ? 0L : record.bytesReceived.sum();
+	}
+
+	public void reset() {
+		records.clear();
+	}
+
+	/**
+	 * Estimates the size of an argument or a result of a call in bytes.
+	 * 
+	 * @param object
+	 *            an argument or a result, which may be <tt>null</tt>
+	 * @return the estimated size in bytes
+	 */
+	protected long estimateSize(Object object) {
+		if (object == null) {
+			return 0L;
+		} else if (object instanceof byte[]) {
+			return ((byte[]) object).length;
+		} else if (object instanceof Blob) {
+			return ((Blob) object).getBytes().length;
+		} else if (object instanceof Entity) {
+			return estimateSize(((Entity) object).getProperties().values());
+		} else if (object instanceof Object[]) {
+			long size = 0L;
+			for (Object element : (Object[]) object) {
+				size += estimateSize(element);
+			}
+			return size;
+		} else if (object instanceof Collection) {
+			long size = 0L;
+			for (Object element : (Collection<?>) object) {
+				size += estimateSize(element);
+			}
+			return size;
+		} else if (object instanceof Map) {
+			return estimateSize(((Map<?, ?>) object).values());
+		} else if (object instanceof Serializable) {
+			CountingOutputStream out = new CountingOutputStream();
+			try {
+				ObjectOutputStream objectOut = new ObjectOutputStream(out);
+				objectOut.writeObject(object);
+				objectOut.close();
+			} catch (IOException e) {
+				// counts bytes written so far
+			}
+			return out.count;
+		}
+
+		return 0L;
+	}
+
+	private Record getRecord(String name) {
+		Record record = records.get(name);
+		if (record == null) {
+			record = new Record();
+			Record existingRecord = records.putIfAbsent(name, record);
+			if (existingRecord != null) {
+				record = existingRecord;
+			}
+		}
+
+		return record;
+	}
+
+	private static class Record {
+		private Histogram latencies = new Histogram();
+		private StripedCounter failures = new StripedCounter();
+		private StripedCounter bytesSent = new StripedCounter();
+		private StripedCounter bytesReceived = new StripedCounter();
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
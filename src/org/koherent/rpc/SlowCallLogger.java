@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.koherent.rpc;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link RpcInterceptor} which logs calls taking longer than a threshold.
+ * 
+ * @author koher
+ * @version 0.3
+ * @since 0.3
+ */
+public class SlowCallLogger implements RpcInterceptor {
+	private long thresholdNanos;
+	private Logger logger;
+	private Level level;
+
+	public SlowCallLogger(long thresholdMillis)
+			throws IllegalArgumentException {
+		this(thresholdMillis, Logger.getLogger(SlowCallLogger.class.getName()),
+				Level.WARNING);
+	}
+
+	public SlowCallLogger(long thresholdMillis, Logger logger, Level level)
+			throws IllegalArgumentException {
+		if (thresholdMillis < 0L) {
+			throw new IllegalArgumentException(
+					"\"thresholdMillis\" cannot be negative.");
+		}
+		if (logger == null || level == null) {
+			throw new IllegalArgumentException(
+					"\"logger\" and \"level\" cannot be null.");
+		}
+
+		this.thresholdNanos = thresholdMillis * 1000000L;
+		this.logger = logger;
+		this.level = level;
+	}
+
+	@Override
+	public Object intercept(RpcInvocation invocation) throws Throwable {
+		long startTime = System.nanoTime();
+		try {
+			return invocation.proceed();
+		} finally {
+			long elapsedTime = System.nanoTime() - startTime;
+			if (elapsedTime > thresholdNanos && logger.isLoggable(level)) {
+				logger.log(level, invocation.getName() + " took "
+						+ (elapsedTime / 1000000L) + " ms");
+			}
+		}
+	}
+}
@@ -0,0 +1,634 @@
+package base;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.koherent.rpc.RpcInvocation;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+
+/**
+ * An in-memory stand-in of <tt>DatastoreService</tt>.
+ * 
+ * <p>
+ * Transactions are optimistic like Datastore: an entity group is recorded
+ * when a transaction first touches it, writes are applied on commit, and the
+ * commit throws <tt>ConcurrentModificationException</tt> if another write has
+ * committed to any of the groups since. A transaction touches one entity
+ * group, or up to 25 with <tt>TransactionOptions.Builder.withXG(true)</tt>.
+ * Operations without a transaction argument use the current transaction of
+ * the thread.
+ * </p>
+ * 
+ * <p>
+ * Queries support kinds, keys-only queries, filters and sort orders, offsets
+ * and limits. Cursors are not supported: <tt>getCursor()</tt> returns
+ * <tt>null</tt>. Remote calls are named <tt>get</tt>, <tt>put</tt>,
+ * <tt>delete</tt>, <tt>beginTransaction</tt>, <tt>commit</tt>,
+ * <tt>rollback</tt> and <tt>runQuery</tt>.
+ * </p>
+ */
+public class InMemoryDatastoreService extends InMemoryService {
+	public static final int MAX_ENTITY_GROUPS_PER_XG_TRANSACTION = 25;
+
+	private final Object lock = new Object();
+	private TreeMap<Key, Entity> entities;
+	private Map<Key, Long> versions;
+	private ThreadLocal<LinkedList<InMemoryTransaction>> transactions;
+	private AtomicLong transactionIds;
+
+	public InMemoryDatastoreService() {
+		super(DatastoreService.class);
+
+		entities = new TreeMap<Key, Entity>();
+		versions = new HashMap<Key, Long>();
+		transactions = new ThreadLocal<LinkedList<InMemoryTransaction>>() {
+			@Override
+			protected LinkedList<InMemoryTransaction> initialValue() {
+				return new LinkedList<InMemoryTransaction>();
+			}
+		};
+		transactionIds = new AtomicLong();
+	}
+
+	/**
+	 * Makes commits fail with <tt>ConcurrentModificationException</tt> at the
+	 * probability as if other requests wrote to the same entity groups.
+	 * 
+	 * @param probability
+	 *            the probability between 0 and 1
+	 */
+	public void setContentionRate(double probability) {
+		injectFailure("commit", probability,
+				new ConcurrentModificationException("Injected contention."));
+	}
+
+	public int size() {
+		synchronized (lock) {
+			return entities.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (lock) {
+			entities.clear();
+			versions.clear();
+		}
+	}
+
+	@Override
+	protected Object invoke(RpcInvocation invocation) throws Throwable {
+		Method method = invocation.getMethod();
+		String name = method.getName();
+		Object[] arguments = invocation.getArguments();
+
+		if (name.equals("getCurrentTransaction")) {
+			InMemoryTransaction transaction = getCurrentTransaction();
+			if (transaction != null) {
+				return transaction.proxy;
+			} else if (arguments.length == 0) {
+				throw new NoSuchElementException("There is no transaction.");
+			}
+			return arguments[0];
+		} else if (name.equals("getActiveTransactions")) {
+			List<Transaction> activeTransactions = new ArrayList<Transaction>();
+			for (InMemoryTransaction transaction : transactions.get()) {
+				activeTransactions.add(transaction.proxy);
+			}
+			return activeTransactions;
+		} else if (name.equals("beginTransaction")) {
+			beginCall(name);
+
+			TransactionOptions options = arguments.length > 0
+					? (TransactionOptions) arguments[0] : null;
+			boolean crossGroup = options != null
+					&& Boolean.TRUE.equals(options
+							.allowsMultipleEntityGroups());
+			InMemoryTransaction transaction = new InMemoryTransaction(
+					crossGroup);
+			transactions.get().addFirst(transaction);
+
+			return transaction.proxy;
+		}
+
+		InMemoryTransaction transaction;
+		Object argument;
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		if (parameterTypes.length > 1
+				&& parameterTypes[0] == Transaction.class) {
+			transaction = getTransaction((Transaction) arguments[0]);
+			argument = arguments[1];
+		} else if (parameterTypes.length > 0) {
+			transaction = getCurrentTransaction();
+			argument = arguments[0];
+		} else {
+			throw new UnsupportedOperationException(name);
+		}
+
+		if (name.equals("prepare")) {
+			return createProxy(PreparedQuery.class, new QueryHandler(
+					(Query) argument));
+		}
+
+		beginCall(name);
+
+		if (name.equals("get")) {
+			if (argument instanceof Key) {
+				Entity entity = get(transaction, (Key) argument);
+				if (entity == null) {
+					throw new EntityNotFoundException((Key) argument);
+				}
+				return entity;
+			}
+
+			Map<Key, Entity> result = new HashMap<Key, Entity>();
+			for (Object key : (Iterable<?>) argument) {
+				Entity entity = get(transaction, (Key) key);
+				if (entity != null) {
+					result.put((Key) key, entity);
+				}
+			}
+			return result;
+		} else if (name.equals("put")) {
+			if (argument instanceof Entity) {
+				return put(transaction, (Entity) argument);
+			}
+
+			List<Key> keys = new ArrayList<Key>();
+			for (Object entity : (Iterable<?>) argument) {
+				keys.add(put(transaction, (Entity) entity));
+			}
+			return keys;
+		} else if (name.equals("delete")) {
+			Iterable<?> keys = argument instanceof Key[] ? Arrays
+					.asList((Key[]) argument) : (Iterable<?>) argument;
+			for (Object key : keys) {
+				delete(transaction, (Key) key);
+			}
+			return null;
+		}
+
+		throw new UnsupportedOperationException(name);
+	}
+
+	private InMemoryTransaction getCurrentTransaction() {
+		return transactions.get().peek();
+	}
+
+	private InMemoryTransaction getTransaction(Transaction transaction) {
+		if (transaction == null) {
+			return null;
+		}
+
+		InMemoryTransaction inMemoryTransaction = (InMemoryTransaction) Proxy
+				.getInvocationHandler(transaction);
+		if (!inMemoryTransaction.active) {
+			throw new IllegalStateException("The transaction is not active.");
+		}
+
+		return inMemoryTransaction;
+	}
+
+	private Entity get(InMemoryTransaction transaction, Key key) {
+		synchronized (lock) {
+			if (transaction != null) {
+				transaction.touch(key);
+			}
+
+			Entity entity = entities.get(key);
+			return entity != null ? entity.clone() : null;
+		}
+	}
+
+	private Key put(InMemoryTransaction transaction, Entity entity) {
+		Entity copy = entity.clone();
+		Key key = copy.getKey();
+
+		synchronized (lock) {
+			if (transaction != null) {
+				transaction.touch(key);
+				transaction.writes.put(key, copy);
+			} else {
+				entities.put(key, copy);
+				incrementVersion(key);
+			}
+		}
+
+		return key;
+	}
+
+	private void delete(InMemoryTransaction transaction, Key key) {
+		synchronized (lock) {
+			if (transaction != null) {
+				transaction.touch(key);
+				transaction.writes.put(key, null);
+			} else if (entities.remove(key) != null) {
+				incrementVersion(key);
+			}
+		}
+	}
+
+	private static Key getEntityGroup(Key key) {
+		while (key.getParent() != null) {
+			key = key.getParent();
+		}
+
+		return key;
+	}
+
+	private long getVersion(Key key) {
+		Long version = versions.get(getEntityGroup(key));
+		return version != null ? version : 0L;
+	}
+
+	private void incrementVersion(Key key) {
+		versions.put(getEntityGroup(key), getVersion(key) + 1L);
+	}
+
+	private List<Entity> runQuery(Query query, FetchOptions options) {
+		beginCall("runQuery");
+
+		if (options != null && options.getStartCursor() != null) {
+			throw new UnsupportedOperationException(
+					"Cursors are not supported.");
+		}
+
+		List<Entity> results = new ArrayList<Entity>();
+		synchronized (lock) {
+			for (Entity entity : entities.values()) {
+				if (matches(query, entity)) {
+					results.add(query.isKeysOnly() ? new Entity(entity
+							.getKey()) : entity.clone());
+				}
+			}
+		}
+
+		final List<Query.SortPredicate> sorts = query.getSortPredicates();
+		if (!sorts.isEmpty()) {
+			Collections.sort(results, new Comparator<Entity>() {
+				@Override
+				public int compare(Entity entity1, Entity entity2) {
+					for (Query.SortPredicate sort : sorts) {
+						int result = compareValues(getValue(entity1, sort
+								.getPropertyName()), getValue(entity2, sort
+								.getPropertyName()));
+						if (result != 0) {
+							return sort.getDirection()
+									== Query.SortDirection.DESCENDING
+									? -result : result;
+						}
+					}
+					return 0;
+				}
+			});
+		}
+
+		int offset = 0;
+		int limit = Integer.MAX_VALUE;
+		if (options != null) {
+			if (options.getOffset() != null) {
+				offset = Math.min(options.getOffset(), results.size());
+			}
+			if (options.getLimit() != null) {
+				limit = options.getLimit();
+			}
+		}
+
+		return new ArrayList<Entity>(results.subList(offset, (int) Math.min(
+				(long) offset + limit, results.size())));
+	}
+
+	private static boolean matches(Query query, Entity entity) {
+		if (query.getKind() != null
+				&& !query.getKind().equals(entity.getKind())) {
+			return false;
+		}
+
+		for (Query.FilterPredicate filter : query.getFilterPredicates()) {
+			String propertyName = filter.getPropertyName();
+			if (!Entity.KEY_RESERVED_PROPERTY.equals(propertyName)
+					&& !entity.hasProperty(propertyName)) {
+				return false;
+			}
+
+			Object value = getValue(entity, propertyName);
+			int result = compareValues(value, filter.getValue());
+			switch (filter.getOperator()) {
+			case LESS_THAN:
+				if (result >= 0) {
+					return false;
+				}
+				break;
+			case LESS_THAN_OR_EQUAL:
+				if (result > 0) {
+					return false;
+				}
+				break;
+			case GREATER_THAN:
+				if (result <= 0) {
+					return false;
+				}
+				break;
+			case GREATER_THAN_OR_EQUAL:
+				if (result < 0) {
+					return false;
+				}
+				break;
+			case EQUAL:
+				if (result != 0) {
+					return false;
+				}
+				break;
+			case NOT_EQUAL:
+				if (result == 0) {
+					return false;
+				}
+				break;
+			case IN:
+				boolean found = false;
+				for (Object element : (Collection<?>) filter.getValue()) {
+					if (compareValues(value, element) == 0) {
+						found = true;
+						break;
+					}
+				}
+				if (!found) {
+					return false;
+				}
+				break;
+			default:
+				throw new UnsupportedOperationException(filter.getOperator()
+						.toString());
+			}
+		}
+
+		return true;
+	}
+
+	private static Object getValue(Entity entity, String propertyName) {
+		if (Entity.KEY_RESERVED_PROPERTY.equals(propertyName)) {
+			return entity.getKey();
+		}
+
+		return entity.getProperty(propertyName);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareValues(Object value1, Object value2) {
+		if (value1 == null || value2 == null) {
+			return value1 == null ? (value2 == null ? 0 : -1) : 1;
+		}
+
+		if (value1 instanceof Number && value2 instanceof Number) {
+			if ((value1 instanceof Double || value1 instanceof Float)
+					|| (value2 instanceof Double || value2 instanceof Float)) {
+				return Double.compare(((Number) value1).doubleValue(),
+						((Number) value2).doubleValue());
+			}
+
+			long long1 = ((Number) value1).longValue();
+			long long2 = ((Number) value2).longValue();
+			return long1 < long2 ? -1 : (long1 == long2 ? 0 : 1);
+		}
+
+		if (value1 instanceof Comparable
+				&& value1.getClass() == value2.getClass()) {
+			return ((Comparable<Object>) value1).compareTo(value2);
+		}
+
+		return value1.getClass().getName().compareTo(
+				value2.getClass().getName());
+	}
+
+	private static <T> T createProxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	private static Object invokeObjectMethod(Object proxy, Method method,
+			Object[] arguments) {
+		String name = method.getName();
+		if (name.equals("equals")) {
+			return proxy == arguments[0];
+		} else if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		}
+
+		return proxy.getClass().getName() + "@"
+				+ Integer.toHexString(System.identityHashCode(proxy));
+	}
+
+	private class InMemoryTransaction implements InvocationHandler {
+		private long id;
+		private int maxEntityGroups;
+		private boolean active;
+		private Map<Key, Long> entityGroups;
+		private Map<Key, Entity> writes;
+		private Transaction proxy;
+
+		private InMemoryTransaction(boolean crossGroup) {
+			this.id = transactionIds.incrementAndGet();
+			this.maxEntityGroups = crossGroup
+					? MAX_ENTITY_GROUPS_PER_XG_TRANSACTION : 1;
+			this.active = true;
+			this.entityGroups = new HashMap<Key, Long>();
+			this.writes = new LinkedHashMap<Key, Entity>();
+			this.proxy = createProxy(Transaction.class, this);
+		}
+
+		// called in synchronized (lock)
+		private void touch(Key key) {
+			Key entityGroup = getEntityGroup(key);
+			if (entityGroups.containsKey(entityGroup)) {
+				return;
+			}
+
+			if (entityGroups.size() >= maxEntityGroups) {
+				throw new IllegalArgumentException(
+						"operating on too many entity groups in a single "
+								+ "transaction.");
+			}
+			entityGroups.put(entityGroup, getVersion(entityGroup));
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] arguments)
+				throws Throwable {
+			String name = method.getName();
+			if (method.getDeclaringClass() == Object.class) {
+				return invokeObjectMethod(proxy, method, arguments);
+			} else if (name.equals("commit")) {
+				commit();
+				return null;
+			} else if (name.equals("rollback")) {
+				rollback();
+				return null;
+			} else if (name.equals("isActive")) {
+				return active;
+			} else if (name.equals("getId")) {
+				return Long.toString(id);
+			} else if (name.equals("getApp")) {
+				return "in-memory";
+			}
+
+			throw new UnsupportedOperationException(name);
+		}
+
+		private void commit() {
+			ensureActive();
+			try {
+				beginCall("commit");
+
+				synchronized (lock) {
+					for (Map.Entry<Key, Long> entityGroup : entityGroups
+							.entrySet()) {
+						if (getVersion(entityGroup.getKey()) != entityGroup
+								.getValue()) {
+							throw new ConcurrentModificationException(
+									"too much contention on these datastore "
+											+ "entities. please try again.");
+						}
+					}
+
+					for (Map.Entry<Key, Entity> write : writes.entrySet()) {
+						if (write.getValue() != null) {
+							entities.put(write.getKey(), write.getValue());
+						} else {
+							entities.remove(write.getKey());
+						}
+					}
+					if (!writes.isEmpty()) {
+						for (Key entityGroup : entityGroups.keySet()) {
+							incrementVersion(entityGroup);
+						}
+					}
+				}
+			} finally {
+				end();
+			}
+		}
+
+		private void rollback() {
+			ensureActive();
+			try {
+				beginCall("rollback");
+			} finally {
+				end();
+			}
+		}
+
+		private void ensureActive() {
+			if (!active) {
+				throw new IllegalStateException(
+						"The transaction is not active.");
+			}
+		}
+
+		private void end() {
+			active = false;
+			transactions.get().remove(this);
+		}
+	}
+
+	private class QueryHandler implements InvocationHandler {
+		private Query query;
+
+		private QueryHandler(Query query) {
+			this.query = query;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] arguments)
+				throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return invokeObjectMethod(proxy, method, arguments);
+			}
+
+			String name = method.getName();
+			final FetchOptions options = arguments != null
+					&& arguments.length > 0 ? (FetchOptions) arguments[0]
+					: null;
+
+			if (name.equals("asList") || name.equals("asQueryResultList")) {
+				return createProxy(QueryResultList.class,
+						new DelegatingHandler(runQuery(query, options)));
+			} else if (name.equals("asIterator")
+					|| name.equals("asQueryResultIterator")) {
+				return createProxy(QueryResultIterator.class,
+						new DelegatingHandler(runQuery(query, options)
+								.iterator()));
+			} else if (name.equals("asIterable")
+					|| name.equals("asQueryResultIterable")) {
+				return createProxy(QueryResultIterable.class,
+						new DelegatingHandler(new Iterable<Entity>() {
+							@Override
+							public Iterator<Entity> iterator() {
+								return createProxy(QueryResultIterator.class,
+										new DelegatingHandler(runQuery(query,
+												options).iterator()));
+							}
+						}));
+			} else if (name.equals("countEntities")) {
+				return runQuery(query, options).size();
+			} else if (name.equals("asSingleEntity")) {
+				List<Entity> results = runQuery(query, null);
+				if (results.size() > 1) {
+					throw new IllegalStateException("Too many results.");
+				}
+				return results.isEmpty() ? null : results.get(0);
+			}
+
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	private static class DelegatingHandler implements InvocationHandler {
+		private Object delegate;
+
+		private DelegatingHandler(Object delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] arguments)
+				throws Throwable {
+			if (!method.getDeclaringClass().isInstance(delegate)) {
+				return null; // getCursor() and so on
+			}
+
+			try {
+				return method.invoke(delegate, arguments);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
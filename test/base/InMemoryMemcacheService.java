@@ -0,0 +1,329 @@
+package base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.koherent.rpc.RpcInvocation;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.Stats;
+
+/**
+ * An in-memory stand-in of <tt>MemcacheService</tt>. Keys and values are
+ * serialized like Memcache, so values read are copies and keys are compared
+ * by their serialized forms. Items are separated by the namespaces of the
+ * intercepted services and expire by their <tt>Expiration</tt>s. Items are
+ * never evicted unless {@link InMemoryMemcacheService#evictAll()} is called.
+ */
+public class InMemoryMemcacheService extends InMemoryService {
+	private final Object lock = new Object();
+	private Map<ItemKey, Item> items;
+	private long casIds;
+	private AtomicLong hits;
+	private AtomicLong misses;
+
+	public InMemoryMemcacheService() {
+		super(MemcacheService.class);
+
+		items = new HashMap<ItemKey, Item>();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+	}
+
+	/**
+	 * Removes all items as if Memcache evicted them.
+	 */
+	public void evictAll() {
+		synchronized (lock) {
+			items.clear();
+		}
+	}
+
+	@Override
+	protected Object invoke(RpcInvocation invocation) throws Throwable {
+		String name = invocation.getMethod().getName();
+		if (name.equals("getNamespace") || name.equals("setNamespace")
+				|| name.startsWith("getErrorHandler")
+				|| name.startsWith("setErrorHandler")) {
+			return invocation.proceed(); // local
+		}
+
+		String namespace = ((MemcacheService) invocation.getService())
+				.getNamespace();
+		Object[] arguments = invocation.getArguments();
+
+		beginCall(name);
+
+		synchronized (lock) {
+			if (name.equals("get")) {
+				Item item = getItem(namespace, arguments[0]);
+				return item != null ? deserialize(item.value) : null;
+			} else if (name.equals("getIdentifiable")) {
+				Item item = getItem(namespace, arguments[0]);
+				return item != null ? new InMemoryIdentifiableValue(
+						deserialize(item.value), item.casId) : null;
+			} else if (name.equals("contains")) {
+				return getItem(namespace, arguments[0]) != null;
+			} else if (name.equals("getAll")) {
+				Map<Object, Object> result = new HashMap<Object, Object>();
+				for (Object key : (Collection<?>) arguments[0]) {
+					Item item = getItem(namespace, key);
+					if (item != null) {
+						result.put(key, deserialize(item.value));
+					}
+				}
+				return result;
+			} else if (name.equals("put")) {
+				boolean stored = put(namespace, arguments[0], arguments[1],
+						getExpiration(arguments, 2),
+						getSetPolicy(arguments, 3));
+				return arguments.length > 3 ? stored : null;
+			} else if (name.equals("putAll")) {
+				Expiration expiration = getExpiration(arguments, 1);
+				SetPolicy policy = getSetPolicy(arguments, 2);
+				Set<Object> storedKeys = new HashSet<Object>();
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) arguments[0])
+						.entrySet()) {
+					if (put(namespace, entry.getKey(), entry.getValue(),
+							expiration, policy)) {
+						storedKeys.add(entry.getKey());
+					}
+				}
+				return arguments.length > 2 ? storedKeys : null;
+			} else if (name.equals("putIfUntouched")
+					&& arguments[1] instanceof IdentifiableValue) {
+				Item item = getItem(namespace, arguments[0]);
+				long casId = ((InMemoryIdentifiableValue) arguments[1]).casId;
+				if (item == null || item.casId != casId) {
+					return false;
+				}
+				return put(namespace, arguments[0], arguments[2],
+						getExpiration(arguments, 3), SetPolicy.SET_ALWAYS);
+			} else if (name.equals("delete")) {
+				ItemKey itemKey = new ItemKey(namespace, arguments[0]);
+				return items.remove(itemKey) != null;
+			} else if (name.equals("deleteAll")) {
+				Set<Object> deletedKeys = new HashSet<Object>();
+				for (Object key : (Collection<?>) arguments[0]) {
+					if (items.remove(new ItemKey(namespace, key)) != null) {
+						deletedKeys.add(key);
+					}
+				}
+				return deletedKeys;
+			} else if (name.equals("increment")) {
+				return increment(namespace, arguments[0], (Long) arguments[1],
+						arguments.length > 2 ? (Long) arguments[2] : null);
+			} else if (name.equals("clearAll")) {
+				items.clear();
+				return null;
+			} else if (name.equals("getStatistics")) {
+				return createStatistics();
+			}
+		}
+
+		throw new UnsupportedOperationException(name);
+	}
+
+	// called in synchronized (lock)
+	private Item getItem(String namespace, Object key) {
+		ItemKey itemKey = new ItemKey(namespace, key);
+		Item item = items.get(itemKey);
+		if (item != null && item.expirationTime != 0L
+				&& item.expirationTime <= System.currentTimeMillis()) {
+			items.remove(itemKey);
+			item = null;
+		}
+
+		if (item != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+
+		return item;
+	}
+
+	// called in synchronized (lock)
+	private boolean put(String namespace, Object key, Object value,
+			Expiration expiration, SetPolicy policy) {
+		boolean present = getItem(namespace, key) != null;
+		if ((policy == SetPolicy.ADD_ONLY_IF_NOT_PRESENT && present)
+				|| (policy == SetPolicy.REPLACE_ONLY_IF_PRESENT && !present)) {
+			return false;
+		}
+
+		Item item = new Item();
+		item.value = serialize(value);
+		item.expirationTime = expiration != null ? expiration
+				.getMillisecondsValue() : 0L;
+		item.casId = ++casIds;
+		items.put(new ItemKey(namespace, key), item);
+
+		return true;
+	}
+
+	// called in synchronized (lock)
+	private Long increment(String namespace, Object key, long delta,
+			Long initialValue) {
+		Item item = getItem(namespace, key);
+		long value;
+		if (item != null) {
+			Object object = deserialize(item.value);
+			if (!(object instanceof Number)) {
+				throw new IllegalArgumentException("Non-incrementable value.");
+			}
+			value = ((Number) object).longValue();
+		} else if (initialValue != null) {
+			value = initialValue;
+		} else {
+			return null;
+		}
+
+		value = Math.max(value + delta, 0L);
+
+		Item newItem = new Item();
+		newItem.value = serialize(value);
+		newItem.expirationTime = item != null ? item.expirationTime : 0L;
+		newItem.casId = ++casIds;
+		items.put(new ItemKey(namespace, key), newItem);
+
+		return value;
+	}
+
+	private Stats createStatistics() {
+		final long itemCount;
+		long totalItemBytes = 0L;
+		synchronized (lock) {
+			itemCount = items.size();
+			for (Iterator<Item> i = items.values().iterator(); i.hasNext();) {
+				totalItemBytes += i.next().value.length;
+			}
+		}
+		final long itemBytes = totalItemBytes;
+		final long hitCount = hits.get();
+		final long missCount = misses.get();
+
+		return (Stats) Proxy.newProxyInstance(Stats.class.getClassLoader(),
+				new Class<?>[] { Stats.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] arguments) {
+						String name = method.getName();
+						if (name.equals("getItemCount")) {
+							return itemCount;
+						} else if (name.equals("getTotalItemBytes")) {
+							return itemBytes;
+						} else if (name.equals("getHitCount")) {
+							return hitCount;
+						} else if (name.equals("getMissCount")) {
+							return missCount;
+						} else if (method.getReturnType() == int.class) {
+							return 0;
+						} else if (method.getReturnType() == long.class) {
+							return 0L;
+						}
+						return null;
+					}
+				});
+	}
+
+	private static Expiration getExpiration(Object[] arguments, int index) {
+		return arguments.length > index ? (Expiration) arguments[index]
+				: null;
+	}
+
+	private static SetPolicy getSetPolicy(Object[] arguments, int index) {
+		return arguments.length > index && arguments[index] != null
+				? (SetPolicy) arguments[index] : SetPolicy.SET_ALWAYS;
+	}
+
+	private static byte[] serialize(Object object) {
+		ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+		try {
+			ObjectOutputStream objectOut = new ObjectOutputStream(byteOut);
+			objectOut.writeObject(object);
+			objectOut.close();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot serialize " + object
+					+ ".", e);
+		}
+
+		return byteOut.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) {
+		try {
+			return new ObjectInputStream(new ByteArrayInputStream(bytes))
+					.readObject();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class ItemKey {
+		private String namespace;
+		private byte[] key;
+
+		private ItemKey(String namespace, Object key) {
+			this.namespace = namespace != null ? namespace : "";
+			this.key = serialize(key);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ItemKey)) {
+				return false;
+			}
+
+			ItemKey another = (ItemKey) obj;
+			return namespace.equals(another.namespace)
+					&& Arrays.equals(key, another.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return namespace.hashCode() * 31 + Arrays.hashCode(key);
+		}
+	}
+
+	private static class Item {
+		private byte[] value;
+		private long expirationTime;
+		private long casId;
+	}
+
+	private static class InMemoryIdentifiableValue implements
+			IdentifiableValue {
+		private Object value;
+		private long casId;
+
+		private InMemoryIdentifiableValue(Object value, long casId) {
+			this.value = value;
+			this.casId = casId;
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package base;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.koherent.rpc.RpcInterceptor;
+import org.koherent.rpc.RpcInvocation;
+
+/**
+ * A base class of in-memory stand-ins of App Engine services. A stand-in is
+ * an {@link RpcInterceptor} which answers calls itself instead of passing
+ * them on to the service, so it is installed with <tt>addInterceptor()</tt>
+ * of a map. Calls to other services are passed through, so stand-ins of
+ * Datastore and Memcache can both be added to a cached map.
+ * 
+ * <p>
+ * Each remote call is counted, delayed by the configured latency, and fails
+ * with an injected exception at the configured probability before it is
+ * answered. Latency and failures can be set for all calls or for a method
+ * name, like <tt>"get"</tt> or <tt>"commit"</tt>.
+ * </p>
+ */
+public abstract class InMemoryService implements RpcInterceptor {
+	private static final String ALL_METHODS = "*";
+
+	private Class<?> serviceType;
+	private Map<String, long[]> latencies;
+	private Map<String, Failure> failures;
+	private ConcurrentMap<String, AtomicLong> callCounts;
+	private Random random;
+
+	protected InMemoryService(Class<?> serviceType) {
+		this.serviceType = serviceType;
+		this.latencies = new ConcurrentHashMap<String, long[]>();
+		this.failures = new ConcurrentHashMap<String, Failure>();
+		this.callCounts = new ConcurrentHashMap<String, AtomicLong>();
+		this.random = new Random();
+	}
+
+	@Override
+	public Object intercept(RpcInvocation invocation) throws Throwable {
+		if (invocation.getServiceType() != serviceType) {
+			return invocation.proceed();
+		}
+
+		return invoke(invocation);
+	}
+
+	/**
+	 * Answers a call to the service.
+	 * 
+	 * @param invocation
+	 *            the call
+	 * @return the result
+	 * @throws Throwable
+	 *             thrown as the service would
+	 */
+	protected abstract Object invoke(RpcInvocation invocation)
+			throws Throwable;
+
+	/**
+	 * Counts a remote call, waits for its latency and throws an injected
+	 * failure if any. Subclasses call this at the beginning of every remote
+	 * call.
+	 * 
+	 * @param methodName
+	 *            the name of the called method
+	 */
+	protected void beginCall(String methodName) {
+		AtomicLong callCount = callCounts.get(methodName);
+		if (callCount == null) {
+			callCount = new AtomicLong();
+			AtomicLong existingCallCount = callCounts.putIfAbsent(methodName,
+					callCount);
+			if (existingCallCount != null) {
+				callCount = existingCallCount;
+			}
+		}
+		callCount.incrementAndGet();
+
+		long[] latency = latencies.get(methodName);
+		if (latency == null) {
+			latency = latencies.get(ALL_METHODS);
+		}
+		if (latency != null) {
+			long delay = latency[0];
+			if (latency[1] > 0L) {
+				delay += (long) (random.nextDouble() * (latency[1] + 1));
+			}
+			if (delay > 0L) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		Failure failure = failures.get(methodName);
+		if (failure == null) {
+			failure = failures.get(ALL_METHODS);
+		}
+		if (failure != null && random.nextDouble() < failure.probability) {
+			throw failure.exception;
+		}
+	}
+
+	public void setLatency(long delayMillis, long jitterMillis) {
+		setLatency(ALL_METHODS, delayMillis, jitterMillis);
+	}
+
+	/**
+	 * Sets the latency of calls of the method, which overrides the latency set
+	 * for all calls.
+	 * 
+	 * @param methodName
+	 *            the name of the method
+	 * @param delayMillis
+	 *            the minimum latency in milliseconds
+	 * @param jitterMillis
+	 *            the maximum additional latency in milliseconds
+	 */
+	public void setLatency(String methodName, long delayMillis,
+			long jitterMillis) {
+		latencies.put(methodName, new long[] { delayMillis, jitterMillis });
+	}
+
+	public void injectFailure(double probability, RuntimeException exception) {
+		injectFailure(ALL_METHODS, probability, exception);
+	}
+
+	/**
+	 * Makes calls of the method throw the exception at the probability.
+	 * 
+	 * @param methodName
+	 *            the name of the method
+	 * @param probability
+	 *            the probability between 0 and 1, or 0 to stop failures
+	 * @param exception
+	 *            the exception to be thrown
+	 */
+	public void injectFailure(String methodName, double probability,
+			RuntimeException exception) {
+		if (probability <= 0.0) {
+			failures.remove(methodName);
+		} else {
+			failures.put(methodName, new Failure(probability, exception));
+		}
+	}
+
+	/**
+	 * Removes all latencies and failures.
+	 */
+	public void clearInjections() {
+		latencies.clear();
+		failures.clear();
+	}
+
+	public long getCallCount(String methodName) {
+		AtomicLong callCount = callCounts.get(methodName);
+		return callCount == null ? 0L : callCount.get();
+	}
+
+	public long getTotalCallCount() {
+		long totalCallCount = 0L;
+		for (AtomicLong callCount : callCounts.values()) {
+			totalCallCount += callCount.get();
+		}
+
+		return totalCallCount;
+	}
+
+	public void resetCallCounts() {
+		callCounts.clear();
+	}
+
+	private static class Failure {
+		private double probability;
+		private RuntimeException exception;
+
+		private Failure(double probability, RuntimeException exception) {
+			this.probability = probability;
+			this.exception = exception;
+		}
+	}
+}
@@ -6,6 +6,8 @@ import java.util.Map;
 import com.google.apphosting.api.ApiProxy;
 
 class TestEnvironment implements ApiProxy.Environment {
+	private Map<String, Object> attributes = new HashMap<String, Object>();
+
 	@Override
 	public String getAppId() {
 		return "Unit Tests";
@@ -13,7 +15,7 @@ class TestEnvironment implements ApiProxy.Environment {
 
 	@Override
 	public Map<String, Object> getAttributes() {
-		return new HashMap<String, Object>();
+		return attributes;
 	}
 
 	@Override
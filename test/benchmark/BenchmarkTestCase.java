@@ -0,0 +1,241 @@
+package benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.koherent.math.Histogram;
+
+import base.LocalDatastoreTestCase;
+
+/**
+ * A base class of benchmarks run as JUnit tests against the local services.
+ * Each measurement runs warm-up iterations and then measured iterations of a
+ * task, and prints the throughput, latency percentiles, allocation and GC
+ * activity per operation to the standard output.
+ * 
+ * <p>
+ * The numbers of iterations and operations can be changed with the system
+ * properties <tt>benchmark.warmUpIterations</tt>,
+ * <tt>benchmark.iterations</tt> and <tt>benchmark.operations</tt>. Allocation
+ * is measured with <tt>com.sun.management.ThreadMXBean</tt> when available.
+ * </p>
+ */
+public abstract class BenchmarkTestCase extends LocalDatastoreTestCase {
+	protected static final int WARM_UP_ITERATIONS = Integer.getInteger(
+			"benchmark.warmUpIterations", 2);
+	protected static final int ITERATIONS = Integer.getInteger(
+			"benchmark.iterations", 5);
+	protected static final int OPERATIONS = Integer.getInteger(
+			"benchmark.operations", 200);
+
+	private static final Method ALLOCATED_BYTES_METHOD =
+			getAllocatedBytesMethod();
+
+	public interface Task {
+		void run(int index) throws Exception;
+	}
+
+	protected Result measure(String name, Task task) throws Exception {
+		return measure(name, OPERATIONS, 0L, task);
+	}
+
+	/**
+	 * Measures a task.
+	 * 
+	 * @param name
+	 *            the name printed with the result
+	 * @param operations
+	 *            the number of operations in an iteration
+	 * @param bytesPerOperation
+	 *            the number of bytes transferred by an operation, or 0 if
+	 *            throughput in bytes is not relevant
+	 * @param task
+	 *            the task, called with indices from 0 to
+	 *            <tt>operations - 1</tt> in each iteration
+	 * @return the result
+	 * @throws Exception
+	 *             thrown by the task
+	 */
+	protected Result measure(String name, int operations,
+			long bytesPerOperation, Task task) throws Exception {
+		for (int iteration = 0; iteration < WARM_UP_ITERATIONS; iteration++) {
+			for (int i = 0; i < operations; i++) {
+				task.run(i);
+			}
+		}
+
+		Result result = new Result(name, bytesPerOperation);
+		long allocatedBytes = getAllocatedBytes();
+		long gcCount = getGcCount();
+		long gcTime = getGcTime();
+		long startTime = System.nanoTime();
+
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			for (int i = 0; i < operations; i++) {
+				long operationStartTime = System.nanoTime();
+				task.run(i);
+				result.latencies.record(System.nanoTime() - operationStartTime);
+			}
+		}
+
+		result.elapsedTime = System.nanoTime() - startTime;
+		if (allocatedBytes >= 0L) {
+			result.allocatedBytes = getAllocatedBytes() - allocatedBytes;
+		}
+		result.gcCount = getGcCount() - gcCount;
+		result.gcTime = getGcTime() - gcTime;
+
+		System.out.println(result);
+
+		return result;
+	}
+
+	private static Method getAllocatedBytesMethod() {
+		try {
+			Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+			if (!type.isInstance(ManagementFactory.getThreadMXBean())) {
+				return null;
+			}
+
+			return type.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static long getAllocatedBytes() {
+		if (ALLOCATED_BYTES_METHOD == null) {
+			return -1L;
+		}
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			return (Long) ALLOCATED_BYTES_METHOD.invoke(bean, Thread
+					.currentThread().getId());
+		} catch (Exception e) {
+			return -1L;
+		}
+	}
+
+	private static long getGcCount() {
+		long count = 0L;
+		for (GarbageCollectorMXBean bean : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(bean.getCollectionCount(), 0L);
+		}
+
+		return count;
+	}
+
+	private static long getGcTime() {
+		long time = 0L;
+		for (GarbageCollectorMXBean bean : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			time += Math.max(bean.getCollectionTime(), 0L);
+		}
+
+		return time;
+	}
+
+	public static class Result {
+		private String name;
+		private long bytesPerOperation;
+		private Histogram latencies = new Histogram();
+		private long elapsedTime;
+		private long allocatedBytes = -1L;
+		private long gcCount;
+		private long gcTime;
+
+		private Result(String name, long bytesPerOperation) {
+			this.name = name;
+			this.bytesPerOperation = bytesPerOperation;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getOperations() {
+			return latencies.getCount();
+		}
+
+		public double getOperationsPerSecond() {
+			return elapsedTime == 0L ? 0.0 : getOperations() * 1e9
+					/ elapsedTime;
+		}
+
+		/**
+		 * @return the throughput in megabytes (2^20 bytes) per second
+		 */
+		public double getMegabytesPerSecond() {
+			return getOperationsPerSecond() * bytesPerOperation
+					/ (1024.0 * 1024.0);
+		}
+
+		/**
+		 * @return the latency in nanoseconds at the percentile
+		 */
+		public long getLatency(double percentile) {
+			return latencies.getValueAtPercentile(percentile);
+		}
+
+		/**
+		 * @return allocated bytes per operation, or -1 if not measured
+		 */
+		public double getAllocatedBytesPerOperation() {
+			if (allocatedBytes < 0L || getOperations() == 0L) {
+				return -1.0;
+			}
+
+			return (double) allocatedBytes / getOperations();
+		}
+
+		/**
+		 * @return allocated bytes per transferred byte, or -1 if not measured
+		 */
+		public double getAllocatedBytesPerByte() {
+			double allocatedBytesPerOperation = getAllocatedBytesPerOperation();
+			if (allocatedBytesPerOperation < 0.0 || bytesPerOperation == 0L) {
+				return -1.0;
+			}
+
+			return allocatedBytesPerOperation / bytesPerOperation;
+		}
+
+		public long getGcCount() {
+			return gcCount;
+		}
+
+		public long getGcTime() {
+			return gcTime;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("%-60s %10.1f ops/s", name,
+					getOperationsPerSecond()));
+			if (bytesPerOperation > 0L) {
+				builder.append(String.format(" %8.2f MB/s",
+						getMegabytesPerSecond()));
+			}
+			builder.append(String.format(" p50 %8.1f us p99 %8.1f us",
+					getLatency(50.0) / 1000.0, getLatency(99.0) / 1000.0));
+			if (allocatedBytes >= 0L) {
+				builder.append(String.format(" %10.0f B/op",
+						getAllocatedBytesPerOperation()));
+				if (bytesPerOperation > 0L) {
+					builder.append(String.format(" %6.2f B/B",
+							getAllocatedBytesPerByte()));
+				}
+			}
+			builder.append(String.format(" gc %d (%d ms)", gcCount, gcTime));
+
+			return builder.toString();
+		}
+	}
+}
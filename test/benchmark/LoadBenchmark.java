@@ -0,0 +1,159 @@
+package benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.koherent.collection.UpdatableMap;
+import org.koherent.collection.Updater;
+import org.koherent.collection.appengine.CachedDatastoreMap;
+import org.koherent.collection.appengine.DatastoreMap;
+import org.koherent.collection.appengine.MemcacheMap;
+import org.koherent.io.appengine.DatastoreInputStream;
+import org.koherent.io.appengine.DatastoreOutputStream;
+
+import base.InMemoryDatastoreService;
+import base.InMemoryMemcacheService;
+
+/**
+ * Runs {@link WorkloadProfile#production()} against the maps and the streams
+ * with {@link LoadGenerator} and prints throughput and latency percentiles.
+ * 
+ * <p>
+ * Maps run against the local services by default. Set the system properties
+ * <tt>benchmark.datastoreLatency</tt> and
+ * <tt>benchmark.memcacheLatency</tt> in milliseconds to run them against the
+ * in-memory stand-ins with production-like latencies instead.
+ * </p>
+ */
+public class LoadBenchmark extends BenchmarkTestCase {
+	private static final long DATASTORE_LATENCY = Long.getLong(
+			"benchmark.datastoreLatency", -1L);
+	private static final long MEMCACHE_LATENCY = Long.getLong(
+			"benchmark.memcacheLatency", -1L);
+	private static final int VALUE_SIZE = 1024;
+	private static final int FILE_SIZE = 64 * 1024;
+
+	public void testDatastoreMap() throws Exception {
+		DatastoreMap<Integer, byte[]> map = new DatastoreMap<Integer, byte[]>(
+				"LoadBenchmark_DatastoreMap");
+		install(map);
+		run(WorkloadProfile.production(), createWorkload(map));
+	}
+
+	public void testCachedDatastoreMap() throws Exception {
+		CachedDatastoreMap<Integer, byte[]> map =
+				new CachedDatastoreMap<Integer, byte[]>(
+						"LoadBenchmark_CachedDatastoreMap");
+		install(map);
+		run(WorkloadProfile.production(), createWorkload(map));
+	}
+
+	public void testMemcacheMap() throws Exception {
+		MemcacheMap<Integer, byte[]> map = new MemcacheMap<Integer, byte[]>(
+				"LoadBenchmark_MemcacheMap");
+		if (MEMCACHE_LATENCY >= 0L) {
+			map.addInterceptor(createMemcacheService());
+		}
+		run(WorkloadProfile.production(), createWorkload(map));
+	}
+
+	public void testStreams() throws Exception {
+		final byte[] data = new byte[FILE_SIZE];
+		final byte[] buffer = new byte[8 * 1024];
+
+		WorkloadProfile profile = WorkloadProfile.production().numberOfKeys(
+				100).targetRate(50.0);
+		run(profile, new LoadGenerator.Workload() {
+			@Override
+			public void read(int key) throws Exception {
+				InputStream in = new DatastoreInputStream(getFileName(key));
+				while (in.read(buffer) != -1) {
+				}
+				in.close();
+			}
+
+			@Override
+			public void write(int key) throws Exception {
+				OutputStream out = new DatastoreOutputStream(getFileName(key));
+				out.write(data);
+				out.flush();
+				out.close();
+			}
+
+			@Override
+			public void update(int key) throws Exception {
+				OutputStream out = new DatastoreOutputStream(getFileName(key),
+						true);
+				out.write(buffer);
+				out.flush();
+				out.close();
+			}
+
+			private String getFileName(int key) {
+				return "LoadBenchmark_file" + key;
+			}
+		});
+	}
+
+	private void run(WorkloadProfile profile, LoadGenerator.Workload workload)
+			throws Exception {
+		for (int key = 0; key < profile.getNumberOfKeys(); key++) {
+			workload.write(key);
+		}
+
+		System.out.println(new LoadGenerator(profile).run(workload));
+	}
+
+	private static LoadGenerator.Workload createWorkload(
+			final Map<Integer, byte[]> map) {
+		final byte[] value = new byte[VALUE_SIZE];
+		final Updater<byte[]> updater = new Updater<byte[]>() {
+			@Override
+			public byte[] update(byte[] object) {
+				byte[] newValue = object != null ? object.clone()
+						: new byte[VALUE_SIZE];
+				newValue[0]++;
+				return newValue;
+			}
+		};
+
+		return new LoadGenerator.Workload() {
+			@Override
+			public void read(int key) {
+				map.get(key);
+			}
+
+			@Override
+			public void write(int key) {
+				map.put(key, value);
+			}
+
+			@Override
+			public void update(int key) {
+				if (map instanceof UpdatableMap) {
+					((UpdatableMap<Integer, byte[]>) map).update(key, updater);
+				} else {
+					map.put(key, updater.update(map.get(key)));
+				}
+			}
+		};
+	}
+
+	private static void install(DatastoreMap<?, ?> map) {
+		if (DATASTORE_LATENCY >= 0L) {
+			InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+			datastore.setLatency(DATASTORE_LATENCY, DATASTORE_LATENCY / 2L);
+			map.addInterceptor(datastore);
+		}
+		if (MEMCACHE_LATENCY >= 0L) {
+			map.addInterceptor(createMemcacheService());
+		}
+	}
+
+	private static InMemoryMemcacheService createMemcacheService() {
+		InMemoryMemcacheService memcache = new InMemoryMemcacheService();
+		memcache.setLatency(MEMCACHE_LATENCY, MEMCACHE_LATENCY / 2L);
+		return memcache;
+	}
+}
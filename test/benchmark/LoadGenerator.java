@@ -0,0 +1,262 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.koherent.math.Histogram;
+
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * A multi-threaded generator of load shaped by a {@link WorkloadProfile}.
+ * Keys are drawn from a Zipfian distribution, operations are mixed by the
+ * ratios of the profile and issued at its target rate with bursts. Latencies
+ * are recorded into histograms from the times operations were scheduled to
+ * start, so a stall is reflected in all operations delayed by it.
+ */
+public class LoadGenerator {
+	public enum OperationType {
+		READ, WRITE, UPDATE
+	}
+
+	/**
+	 * Operations driven by the generator. Keys are integers from 0 to
+	 * <tt>numberOfKeys - 1</tt>, where smaller keys are more popular.
+	 */
+	public interface Workload {
+		void read(int key) throws Exception;
+
+		void write(int key) throws Exception;
+
+		void update(int key) throws Exception;
+	}
+
+	private WorkloadProfile profile;
+	private double[] cumulativeProbabilities;
+
+	public LoadGenerator(WorkloadProfile profile) {
+		this.profile = profile;
+
+		if (profile.getZipfExponent() > 0.0) {
+			int numberOfKeys = profile.getNumberOfKeys();
+			cumulativeProbabilities = new double[numberOfKeys];
+
+			double sum = 0.0;
+			for (int i = 0; i < numberOfKeys; i++) {
+				sum += 1.0 / Math.pow(i + 1, profile.getZipfExponent());
+				cumulativeProbabilities[i] = sum;
+			}
+			for (int i = 0; i < numberOfKeys; i++) {
+				cumulativeProbabilities[i] /= sum;
+			}
+		}
+	}
+
+	public int nextKey(Random random) {
+		if (cumulativeProbabilities == null) {
+			return random.nextInt(profile.getNumberOfKeys());
+		}
+
+		int index = Arrays.binarySearch(cumulativeProbabilities, random
+				.nextDouble());
+		if (index < 0) {
+			index = -index - 1;
+		}
+
+		return Math.min(index, cumulativeProbabilities.length - 1);
+	}
+
+	public OperationType nextOperationType(Random random) {
+		if (random.nextDouble() < profile.getReadRatio()) {
+			return OperationType.READ;
+		} else if (random.nextDouble() < profile.getUpdateRatio()) {
+			return OperationType.UPDATE;
+		}
+
+		return OperationType.WRITE;
+	}
+
+	/**
+	 * Runs the workload for the warm-up time and the duration of the profile
+	 * and returns latencies recorded after the warm-up. Worker threads share
+	 * the App Engine environment of the calling thread.
+	 * 
+	 * @param workload
+	 *            the workload
+	 * @return the report
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for workers
+	 */
+	public Report run(final Workload workload) throws InterruptedException {
+		final ApiProxy.Environment environment = ApiProxy
+				.getCurrentEnvironment();
+		final Report report = new Report(profile);
+		final int numberOfThreads = profile.getThreads();
+		final long startTime = System.nanoTime();
+		final long recordingStartTime = startTime + profile.getWarmUpMillis()
+				* 1000000L;
+		final long endTime = recordingStartTime + profile.getDurationMillis()
+				* 1000000L;
+
+		Thread[] threads = new Thread[numberOfThreads];
+		for (int i = 0; i < numberOfThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ApiProxy.setEnvironmentForCurrentThread(environment);
+					Random random = new Random();
+					long scheduledTime = startTime;
+
+					long currentTime;
+					while ((currentTime = System.nanoTime()) < endTime) {
+						double rate = profile.getTargetRate((currentTime
+								- startTime) / 1000000L)
+								/ numberOfThreads;
+
+						long intendedTime;
+						if (rate > 0.0) {
+							scheduledTime += (long) (random.nextDouble()
+									* 2.0e9 / rate); // jittered arrivals
+							if (scheduledTime >= endTime) {
+								break;
+							}
+							sleepUntil(scheduledTime);
+							intendedTime = scheduledTime;
+						} else {
+							intendedTime = currentTime;
+						}
+
+						OperationType type = nextOperationType(random);
+						int key = nextKey(random);
+						boolean succeeded = false;
+						try {
+							switch (type) {
+							case READ:
+								workload.read(key);
+								break;
+							case WRITE:
+								workload.write(key);
+								break;
+							case UPDATE:
+								workload.update(key);
+								break;
+							}
+							succeeded = true;
+						} catch (Exception e) {
+							// counted as an error
+						}
+
+						if (intendedTime >= recordingStartTime) {
+							report.record(type, System.nanoTime()
+									- intendedTime, succeeded);
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return report;
+	}
+
+	private static void sleepUntil(long time) {
+		long sleepTime;
+		while ((sleepTime = time - System.nanoTime()) > 0L) {
+			try {
+				Thread.sleep(sleepTime / 1000000L,
+						(int) (sleepTime % 1000000L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public static class Report {
+		private WorkloadProfile profile;
+		private Map<OperationType, Histogram> latencies;
+		private Map<OperationType, AtomicLong> errors;
+
+		private Report(WorkloadProfile profile) {
+			this.profile = profile;
+			this.latencies = new EnumMap<OperationType, Histogram>(
+					OperationType.class);
+			this.errors = new EnumMap<OperationType, AtomicLong>(
+					OperationType.class);
+			for (OperationType type : OperationType.values()) {
+				latencies.put(type, new Histogram());
+				errors.put(type, new AtomicLong());
+			}
+		}
+
+		private void record(OperationType type, long latency,
+				boolean succeeded) {
+			latencies.get(type).record(latency);
+			if (!succeeded) {
+				errors.get(type).incrementAndGet();
+			}
+		}
+
+		/**
+		 * @return a histogram of latencies of all operations in nanoseconds
+		 */
+		public Histogram getLatencies() {
+			Histogram histogram = new Histogram();
+			for (Histogram typeHistogram : latencies.values()) {
+				histogram.add(typeHistogram);
+			}
+
+			return histogram;
+		}
+
+		/**
+		 * @param type
+		 *            the type of operations
+		 * @return a histogram of latencies of the type in nanoseconds
+		 */
+		public Histogram getLatencies(OperationType type) {
+			return latencies.get(type).copy();
+		}
+
+		public long getErrors(OperationType type) {
+			return errors.get(type).get();
+		}
+
+		public double getThroughput() {
+			return getLatencies().getCount() * 1000.0
+					/ profile.getDurationMillis();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(profile).append(
+					String.format(": %.1f ops/s%n", getThroughput()));
+			append(builder, "all", getLatencies(), 0L);
+			for (OperationType type : OperationType.values()) {
+				append(builder, type.toString().toLowerCase(), latencies
+						.get(type), getErrors(type));
+			}
+
+			return builder.toString();
+		}
+
+		private static void append(StringBuilder builder, String name,
+				Histogram histogram, long errors) {
+			builder.append(String.format("  %-7s %8d ops p50 %8.2f ms "
+					+ "p99 %8.2f ms p999 %8.2f ms max %8.2f ms errors %d%n",
+					name, histogram.getCount(), histogram
+							.getValueAtPercentile(50.0) / 1e6, histogram
+							.getValueAtPercentile(99.0) / 1e6, histogram
+							.getValueAtPercentile(99.9) / 1e6, histogram
+							.getMax() / 1e6, errors));
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.koherent.collection.UpdatableMap;
+import org.koherent.collection.Updater;
+import org.koherent.collection.appengine.CachedDatastoreMap;
+import org.koherent.collection.appengine.DatastoreMap;
+import org.koherent.collection.appengine.FastCachedDatastoreMap;
+import org.koherent.collection.appengine.FastDatastoreMap;
+import org.koherent.collection.appengine.FastMemcacheMap;
+import org.koherent.collection.appengine.MemcacheMap;
+import org.koherent.object.LongParser;
+import org.koherent.object.Parser;
+import org.koherent.object.StringParser;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Benchmarks of get, put, update, putAll and iteration of every map with
+ * several key types and value sizes, and of serialization of values into
+ * entities.
+ */
+public class MapBenchmark extends BenchmarkTestCase {
+	private static final int[] VALUE_SIZES = { 16, 1024, 64 * 1024 };
+	private static final int BATCH_SIZE = 10;
+	private static final int ITERATION_OPERATIONS = 5;
+
+	private static final KeyType<String> STRING_KEYS = new KeyType<String>(
+			"String", StringParser.getInstance()) {
+		@Override
+		public String create(int index) {
+			return "key" + index;
+		}
+	};
+
+	private static final KeyType<Long> LONG_KEYS = new KeyType<Long>("Long",
+			LongParser.getInstance()) {
+		@Override
+		public Long create(int index) {
+			return (long) index;
+		}
+	};
+
+	public void testDatastoreMap() throws Exception {
+		benchmark("DatastoreMap", new MapFactory() {
+			@Override
+			public <K> Map<K, byte[]> create(String kind, Parser<K> keyParser) {
+				return new DatastoreMap<K, byte[]>(kind, keyParser);
+			}
+		});
+	}
+
+	public void testFastDatastoreMap() throws Exception {
+		benchmark("FastDatastoreMap", new MapFactory() {
+			@Override
+			public <K> Map<K, byte[]> create(String kind, Parser<K> keyParser) {
+				return new FastDatastoreMap<K, byte[]>(kind, keyParser);
+			}
+		});
+	}
+
+	public void testCachedDatastoreMap() throws Exception {
+		benchmark("CachedDatastoreMap", new MapFactory() {
+			@Override
+			public <K> Map<K, byte[]> create(String kind, Parser<K> keyParser) {
+				return new CachedDatastoreMap<K, byte[]>(kind, keyParser);
+			}
+		});
+	}
+
+	public void testFastCachedDatastoreMap() throws Exception {
+		benchmark("FastCachedDatastoreMap", new MapFactory() {
+			@Override
+			public <K> Map<K, byte[]> create(String kind, Parser<K> keyParser) {
+				return new FastCachedDatastoreMap<K, byte[]>(kind, keyParser);
+			}
+		});
+	}
+
+	public void testMemcacheMap() throws Exception {
+		benchmark("MemcacheMap", new MapFactory() {
+			@Override
+			public <K> Map<K, byte[]> create(String kind, Parser<K> keyParser) {
+				return new MemcacheMap<K, byte[]>(kind);
+			}
+		});
+	}
+
+	public void testFastMemcacheMap() throws Exception {
+		benchmark("FastMemcacheMap", new MapFactory() {
+			@Override
+			public <K> Map<K, byte[]> create(String kind, Parser<K> keyParser) {
+				return new FastMemcacheMap<K, byte[]>(kind);
+			}
+		});
+	}
+
+	public void testSerialization() throws Exception {
+		final SerializationProbe probe = new SerializationProbe();
+
+		for (int valueSize : VALUE_SIZES) {
+			final byte[] value = new byte[valueSize];
+			final Entity entity = probe.serialize("key", value);
+			String name = "serialization byte[" + valueSize + "] ";
+
+			measure(name + "createEntity", OPERATIONS, valueSize, new Task() {
+				@Override
+				public void run(int index) {
+					probe.serialize("key", value);
+				}
+			});
+
+			measure(name + "createValue", OPERATIONS, valueSize, new Task() {
+				@Override
+				public void run(int index) {
+					probe.deserialize(entity);
+				}
+			});
+		}
+	}
+
+	private void benchmark(String mapName, MapFactory factory)
+			throws Exception {
+		for (int valueSize : VALUE_SIZES) {
+			benchmark(mapName, factory, STRING_KEYS, valueSize);
+			benchmark(mapName, factory, LONG_KEYS, valueSize);
+		}
+	}
+
+	private <K> void benchmark(String mapName, MapFactory factory,
+			final KeyType<K> keyType, int valueSize) throws Exception {
+		String name = mapName + " " + keyType.name + "->byte[" + valueSize
+				+ "] ";
+		final Map<K, byte[]> map = factory.create(mapName + "_"
+				+ keyType.name + "_" + valueSize, keyType.parser);
+		map.clear();
+
+		final byte[] value = new byte[valueSize];
+
+		measure(name + "put", OPERATIONS, valueSize, new Task() {
+			@Override
+			public void run(int index) {
+				map.put(keyType.create(index), value);
+			}
+		});
+
+		measure(name + "get", OPERATIONS, valueSize, new Task() {
+			@Override
+			public void run(int index) {
+				map.get(keyType.create(index));
+			}
+		});
+
+		if (map instanceof UpdatableMap) {
+			final UpdatableMap<K, byte[]> updatableMap =
+					(UpdatableMap<K, byte[]>) map;
+			final Updater<byte[]> updater = new Updater<byte[]>() {
+				@Override
+				public byte[] update(byte[] object) {
+					return value;
+				}
+			};
+
+			measure(name + "update", OPERATIONS, valueSize, new Task() {
+				@Override
+				public void run(int index) {
+					updatableMap.update(keyType.create(index), updater);
+				}
+			});
+		}
+
+		measure(name + "putAll", OPERATIONS / BATCH_SIZE, valueSize
+				* BATCH_SIZE, new Task() {
+			@Override
+			public void run(int index) {
+				Map<K, byte[]> batch = new HashMap<K, byte[]>();
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					batch.put(keyType.create(index * BATCH_SIZE + i), value);
+				}
+				map.putAll(batch);
+			}
+		});
+
+		if (map instanceof DatastoreMap) {
+			measure(name + "iteration", ITERATION_OPERATIONS, valueSize
+					* OPERATIONS, new Task() {
+				@Override
+				public void run(int index) {
+					int count = 0;
+					for (Map.Entry<K, byte[]> entry : map.entrySet()) {
+						if (entry.getValue() != null) {
+							count++;
+						}
+					}
+					assertEquals(OPERATIONS, count);
+				}
+			});
+		}
+
+		map.clear();
+	}
+
+	private interface MapFactory {
+		<K> Map<K, byte[]> create(String kind, Parser<K> keyParser);
+	}
+
+	private static abstract class KeyType<K> {
+		private String name;
+		private Parser<K> parser;
+
+		public KeyType(String name, Parser<K> parser) {
+			this.name = name;
+			this.parser = parser;
+		}
+
+		public abstract K create(int index);
+	}
+
+	private static class SerializationProbe extends
+			DatastoreMap<String, byte[]> {
+		public SerializationProbe() {
+			super(SerializationProbe.class.getName());
+		}
+
+		public Entity serialize(String key, byte[] value) {
+			return createEntity(key, value);
+		}
+
+		public byte[] deserialize(Entity entity) {
+			return createValue(entity);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.koherent.io.appengine.DatastoreInputStream;
+import org.koherent.io.appengine.DatastoreOutputStream;
+import org.koherent.io.appengine.DatastoreReader;
+import org.koherent.io.appengine.DatastoreWriter;
+
+/**
+ * Benchmarks of throughput of <tt>DatastoreOutputStream</tt>,
+ * <tt>DatastoreInputStream</tt>, <tt>DatastoreWriter</tt> and
+ * <tt>DatastoreReader</tt>. An operation writes or reads a whole file, whose
+ * size can be changed with the system property <tt>benchmark.fileSize</tt>.
+ * 
+ * <p>
+ * Writes with small chunks grow the buffer of <tt>DatastoreOutputStream</tt>
+ * from <tt>INITIAL_BUFFER_SIZE</tt> by doubling up to <tt>BUFFER_SIZE</tt>,
+ * and each flush puts the current page, so the chunk sizes and the flush
+ * intervals below show their costs.
+ * </p>
+ */
+public class StreamBenchmark extends BenchmarkTestCase {
+	private static final int FILE_SIZE = Integer.getInteger(
+			"benchmark.fileSize", 4 * 1024 * 1024);
+	private static final int SMALL_FILE_SIZE = FILE_SIZE / 16;
+	private static final int FILE_OPERATIONS = 3;
+	private static final int[] CHUNK_SIZES = { 512, 8 * 1024, 64 * 1024,
+			DatastoreOutputStream.BUFFER_SIZE };
+	private static final int[] FLUSH_INTERVALS = { 1, 16, 0 };
+	private static final int APPEND_SIZE = 64 * 1024;
+	private static final String LINE = "Lorem ipsum dolor sit amet, "
+			+ "consectetur adipiscing elit, sed do eiusmod tempor.\n";
+
+	public void testSequentialWrite() throws Exception {
+		for (final int chunkSize : CHUNK_SIZES) {
+			final byte[] chunk = new byte[chunkSize];
+			measure("write chunk " + chunkSize, FILE_OPERATIONS, FILE_SIZE,
+					new Task() {
+						@Override
+						public void run(int index) throws IOException {
+							writeFile("write", chunk, 0);
+						}
+					});
+		}
+	}
+
+	public void testFlushInterval() throws Exception {
+		final byte[] chunk = new byte[8 * 1024];
+		for (final int flushInterval : FLUSH_INTERVALS) {
+			String name = flushInterval == 0 ? "write flush at close"
+					: "write flush every " + flushInterval + " chunks";
+			measure(name, FILE_OPERATIONS, FILE_SIZE, new Task() {
+				@Override
+				public void run(int index) throws IOException {
+					writeFile("flush", chunk, flushInterval);
+				}
+			});
+		}
+	}
+
+	public void testSingleByteWrite() throws Exception {
+		measure("write(int)", FILE_OPERATIONS, SMALL_FILE_SIZE, new Task() {
+			@Override
+			public void run(int index) throws IOException {
+				OutputStream out = new DatastoreOutputStream("singleByte");
+				for (int i = 0; i < SMALL_FILE_SIZE; i++) {
+					out.write(i);
+				}
+				out.flush();
+				out.close();
+			}
+		});
+	}
+
+	public void testLineWrite() throws Exception {
+		final int numberOfLines = SMALL_FILE_SIZE / LINE.length();
+		measure("DatastoreWriter lines", FILE_OPERATIONS, numberOfLines
+				* LINE.length(), new Task() {
+			@Override
+			public void run(int index) throws IOException {
+				Writer writer = new DatastoreWriter("lines", "UTF-8");
+				for (int i = 0; i < numberOfLines; i++) {
+					writer.write(LINE);
+				}
+				writer.flush();
+				writer.close();
+			}
+		});
+	}
+
+	public void testAppend() throws Exception {
+		writeFile("append", new byte[64 * 1024], 0);
+
+		final byte[] data = new byte[APPEND_SIZE];
+		measure("append reopen " + APPEND_SIZE, OPERATIONS / 10, APPEND_SIZE,
+				new Task() {
+					@Override
+					public void run(int index) throws IOException {
+						OutputStream out = new DatastoreOutputStream("append",
+								true);
+						out.write(data);
+						out.flush();
+						out.close();
+					}
+				});
+	}
+
+	public void testSequentialRead() throws Exception {
+		writeFile("read", new byte[64 * 1024], 0);
+
+		for (int chunkSize : CHUNK_SIZES) {
+			final byte[] chunk = new byte[chunkSize];
+			measure("read chunk " + chunkSize, FILE_OPERATIONS, FILE_SIZE,
+					new Task() {
+						@Override
+						public void run(int index) throws IOException {
+							InputStream in = new DatastoreInputStream("read");
+							long size = 0L;
+							int length;
+							while ((length = in.read(chunk)) != -1) {
+								size += length;
+							}
+							in.close();
+							assertEquals(FILE_SIZE, size);
+						}
+					});
+		}
+	}
+
+	public void testSkip() throws Exception {
+		writeFile("skip", new byte[64 * 1024], 0);
+
+		final byte[] chunk = new byte[1024];
+		measure("skip to end and read " + chunk.length, OPERATIONS / 10,
+				chunk.length, new Task() {
+					@Override
+					public void run(int index) throws IOException {
+						InputStream in = new DatastoreInputStream("skip");
+						long remaining = FILE_SIZE - chunk.length;
+						while (remaining > 0L) {
+							long skipped = in.skip(remaining);
+							if (skipped <= 0L) {
+								break;
+							}
+							remaining -= skipped;
+						}
+						in.read(chunk);
+						in.close();
+					}
+				});
+	}
+
+	public void testReader() throws Exception {
+		final int numberOfLines = FILE_SIZE / LINE.length();
+		Writer writer = new DatastoreWriter("reader", "UTF-8");
+		for (int i = 0; i < numberOfLines; i++) {
+			writer.write(LINE);
+		}
+		writer.flush();
+		writer.close();
+
+		final char[] chunk = new char[8 * 1024];
+		measure("DatastoreReader", FILE_OPERATIONS, numberOfLines
+				* LINE.length(), new Task() {
+			@Override
+			public void run(int index) throws IOException {
+				Reader reader = new DatastoreReader("reader", "UTF-8");
+				while (reader.read(chunk) != -1) {
+				}
+				reader.close();
+			}
+		});
+	}
+
+	private static void writeFile(String name, byte[] chunk, int flushInterval)
+			throws IOException {
+		Arrays.fill(chunk, (byte) 'x');
+
+		OutputStream out = new DatastoreOutputStream(name);
+		int chunks = 0;
+		for (int written = 0; written < FILE_SIZE; written += chunk.length) {
+			out.write(chunk, 0, Math.min(chunk.length, FILE_SIZE - written));
+
+			chunks++;
+			if (flushInterval > 0 && chunks % flushInterval == 0) {
+				out.flush();
+			}
+		}
+		out.flush();
+		out.close();
+	}
+}
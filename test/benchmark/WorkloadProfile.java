@@ -0,0 +1,198 @@
+package benchmark;
+
+/**
+ * A profile of load generated by {@link LoadGenerator}: the key popularity,
+ * the mix of operations, the concurrency, the rate and bursts.
+ * 
+ * <pre>
+ * WorkloadProfile profile = new WorkloadProfile(&quot;production&quot;)
+ * 		.numberOfKeys(10000).zipfExponent(0.99).readRatio(0.95)
+ * 		.updateRatio(0.2).threads(16).targetRate(500)
+ * 		.bursts(5000L, 1000L, 4.0);
+ * </pre>
+ */
+public class WorkloadProfile {
+	private String name;
+	private int numberOfKeys = 1000;
+	private double zipfExponent = 0.99;
+	private double readRatio = 0.95;
+	private double updateRatio = 0.0;
+	private int threads = 8;
+	private long durationMillis = 10000L;
+	private long warmUpMillis = 2000L;
+	private double targetRate = 0.0;
+	private long burstIntervalMillis = 0L;
+	private long burstDurationMillis = 0L;
+	private double burstFactor = 1.0;
+
+	public WorkloadProfile(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the profile of production traffic: Zipfian keys, 95% reads, a
+	 * fifth of writes are read-modify-write updates, and a four times burst
+	 * for a second in every ten seconds. The duration and the number of
+	 * threads can be changed with the system properties
+	 * <tt>benchmark.duration</tt> and <tt>benchmark.threads</tt>.
+	 * 
+	 * @return the profile of production traffic
+	 */
+	public static WorkloadProfile production() {
+		WorkloadProfile profile = new WorkloadProfile("production");
+		profile.numberOfKeys(1000).zipfExponent(0.99);
+		profile.readRatio(0.95).updateRatio(0.2);
+		profile.threads(Integer.getInteger("benchmark.threads", 8));
+		profile.duration(Long.getLong("benchmark.duration", 10000L));
+		profile.targetRate(200.0).bursts(10000L, 1000L, 4.0);
+
+		return profile;
+	}
+
+	public WorkloadProfile numberOfKeys(int numberOfKeys) {
+		this.numberOfKeys = numberOfKeys;
+		return this;
+	}
+
+	/**
+	 * @param zipfExponent
+	 *            the exponent of the Zipfian distribution of keys, or 0 for
+	 *            the uniform distribution
+	 * @return this profile
+	 */
+	public WorkloadProfile zipfExponent(double zipfExponent) {
+		this.zipfExponent = zipfExponent;
+		return this;
+	}
+
+	public WorkloadProfile readRatio(double readRatio) {
+		this.readRatio = readRatio;
+		return this;
+	}
+
+	/**
+	 * @param updateRatio
+	 *            the ratio of read-modify-write updates in writes, which
+	 *            contend on popular keys
+	 * @return this profile
+	 */
+	public WorkloadProfile updateRatio(double updateRatio) {
+		this.updateRatio = updateRatio;
+		return this;
+	}
+
+	public WorkloadProfile threads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	public WorkloadProfile duration(long durationMillis) {
+		this.durationMillis = durationMillis;
+		return this;
+	}
+
+	/**
+	 * @param warmUpMillis
+	 *            the time in milliseconds to run before recording
+	 * @return this profile
+	 */
+	public WorkloadProfile warmUp(long warmUpMillis) {
+		this.warmUpMillis = warmUpMillis;
+		return this;
+	}
+
+	/**
+	 * Sets the target rate of all threads. With a target rate, latencies are
+	 * measured from the time each operation was scheduled, so that stalls are
+	 * not hidden by operations which were not issued during them.
+	 * 
+	 * @param targetRate
+	 *            operations per second, or 0 to run as fast as possible
+	 * @return this profile
+	 */
+	public WorkloadProfile targetRate(double targetRate) {
+		this.targetRate = targetRate;
+		return this;
+	}
+
+	/**
+	 * Multiplies the target rate by <tt>burstFactor</tt> for
+	 * <tt>burstDurationMillis</tt> at the beginning of every
+	 * <tt>burstIntervalMillis</tt>.
+	 * 
+	 * @param burstIntervalMillis
+	 *            the interval of bursts in milliseconds, or 0 for no bursts
+	 * @param burstDurationMillis
+	 *            the duration of a burst in milliseconds
+	 * @param burstFactor
+	 *            the factor of the rate during bursts
+	 * @return this profile
+	 */
+	public WorkloadProfile bursts(long burstIntervalMillis,
+			long burstDurationMillis, double burstFactor) {
+		this.burstIntervalMillis = burstIntervalMillis;
+		this.burstDurationMillis = burstDurationMillis;
+		this.burstFactor = burstFactor;
+		return this;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getNumberOfKeys() {
+		return numberOfKeys;
+	}
+
+	public double getZipfExponent() {
+		return zipfExponent;
+	}
+
+	public double getReadRatio() {
+		return readRatio;
+	}
+
+	public double getUpdateRatio() {
+		return updateRatio;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public long getWarmUpMillis() {
+		return warmUpMillis;
+	}
+
+	public double getTargetRate() {
+		return targetRate;
+	}
+
+	/**
+	 * Returns the target rate at the elapsed time, taking bursts into
+	 * account.
+	 * 
+	 * @param elapsedMillis
+	 *            the time since the start in milliseconds
+	 * @return the rate in operations per second, or 0 if unlimited
+	 */
+	public double getTargetRate(long elapsedMillis) {
+		if (burstIntervalMillis > 0L
+				&& elapsedMillis % burstIntervalMillis < burstDurationMillis) {
+			return targetRate * burstFactor;
+		}
+
+		return targetRate;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (keys " + numberOfKeys + ", zipf " + zipfExponent
+				+ ", reads " + readRatio + ", updates " + updateRatio
+				+ ", threads " + threads + ", rate " + targetRate + ")";
+	}
+}
@@ -1,14 +1,30 @@
 package test;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
-import org.koherent.collection.UpdatableMap;
+import org.koherent.collection.Merger;
+import org.koherent.collection.Updater;
+import org.koherent.collection.appengine.CacheResult;
 import org.koherent.collection.appengine.CachedDatastoreMap;
+import org.koherent.collection.appengine.DatastoreMap;
+import org.koherent.collection.appengine.MapStatistics;
+import org.koherent.collection.appengine.MapStatistics.Operation;
+import org.koherent.collection.appengine.MemcacheMap;
+import org.koherent.collection.appengine.WarmUpOptions;
+import org.koherent.collection.appengine.WritePolicy;
 import org.koherent.object.StringParser;
+import org.koherent.rpc.RpcRecorder;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.memcache.Expiration;
 
 public class CachedDatastoreMapTestCase extends UpdatableMapTestCase {
 	@Override
-	public UpdatableMap<String, String> getStringToStringMap() {
+	public CachedDatastoreMap<String, String> getStringToStringMap() {
 		return new CachedDatastoreMap<String, String>(
 				CachedDatastoreMapTestCase.class.getSimpleName(), StringParser
 						.getInstance());
@@ -19,4 +35,200 @@ public class CachedDatastoreMapTestCase extends UpdatableMapTestCase {
 		return new CachedDatastoreMap<Integer, Long>(
 				CachedDatastoreMapTestCase.class.getSimpleName());
 	}
+
+	public void testWriteThrough() {
+		CachedDatastoreMap<String, String> map = getStringToStringMap();
+		map.setWritePolicy(WritePolicy.WRITE_THROUGH);
+		map.clear();
+
+		Map<String, String> cache = new MemcacheMap<String, String>(
+				CachedDatastoreMapTestCase.class.getSimpleName(), null, true);
+
+		map.put("abc", "111");
+
+		assertTrue(cache.containsKey("abc"));
+		assertEquals("111", cache.get("abc"));
+
+		map.put("abc", "222");
+
+		assertEquals("222", cache.get("abc"));
+		assertEquals("222", map.get("abc"));
+
+		map.update("abc", new Updater<String>() {
+			@Override
+			public String update(String object) {
+				return object + "999";
+			}
+		});
+
+		assertEquals("222999", cache.get("abc"));
+
+		map.remove("abc");
+
+		assertFalse(cache.containsKey("abc"));
+		assertEquals(null, map.get("abc"));
+	}
+
+	public void testMerge() {
+		CachedDatastoreMap<String, String> map = getStringToStringMap();
+		map.setWritePolicy(WritePolicy.WRITE_THROUGH);
+		map.clear();
+
+		Map<String, String> cache = new MemcacheMap<String, String>(
+				CachedDatastoreMapTestCase.class.getSimpleName(), null, true);
+
+		Merger<String> concatenator = new Merger<String>() {
+			@Override
+			public String merge(String oldValue, String value) {
+				return oldValue + value;
+			}
+		};
+
+		map.merge("abc", "111", concatenator);
+		map.merge("abc", "222", concatenator);
+
+		assertEquals("111222", cache.get("abc"));
+		assertEquals("111222", map.get("abc"));
+
+		assertTrue(map.remove("abc", "111222"));
+
+		assertFalse(cache.containsKey("abc"));
+		assertEquals(null, map.putIfAbsent("abc", "333"));
+		assertEquals("333", map.get("abc"));
+	}
+
+	public void testGetAll() {
+		CachedDatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+
+		map.put("abc", "111");
+		map.put("def", "222");
+		map.put("ghi", "333");
+
+		map.get("abc"); // cache
+
+		CacheResult<String, String> result = map.getAll(Arrays
+				.asList(new String[] { "abc", "def", "xyz", "def" }));
+
+		assertEquals(2, result.size());
+		assertEquals("111", result.get("abc"));
+		assertEquals("222", result.get("def"));
+		assertFalse(result.containsKey("xyz"));
+		assertEquals(1, result.getNumberOfHits());
+		assertEquals(2, result.getNumberOfMisses());
+
+		result = map.getAll(Arrays.asList(new String[] { "abc", "def" }));
+
+		assertEquals(2, result.size());
+		assertEquals(2, result.getNumberOfHits());
+		assertEquals(0, result.getNumberOfMisses());
+	}
+
+	public void testWarmUp() {
+		CachedDatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+
+		Map<String, String> inputMap = new HashMap<String, String>();
+		inputMap.put("abc", "123");
+		inputMap.put("def", "456");
+		inputMap.put("ghi", "789");
+		inputMap.put("jkl", "000");
+		inputMap.put("mno", "999");
+		map.putAll(inputMap);
+
+		Cursor cursor = map.warmUp(WarmUpOptions.Builder.withLimit(3)
+				.batchSize(2));
+
+		assertNotNull(cursor);
+		assertEquals(3, map.getAll(inputMap.keySet()).getNumberOfHits());
+
+		cursor = map.warmUp(WarmUpOptions.Builder.withStartCursor(cursor));
+
+		assertNull(cursor);
+		assertEquals(5, map.getAll(inputMap.keySet()).getNumberOfHits());
+
+		map.putAll(inputMap); // invalidate
+		map.warmUp(Arrays.asList(new String[] { "abc", "xyz" }),
+				WarmUpOptions.Builder.withDefaults());
+
+		CacheResult<String, String> result = map.getAll(Arrays
+				.asList(new String[] { "abc", "def" }));
+		assertEquals(1, result.getNumberOfHits());
+		assertEquals("123", result.get("abc"));
+	}
+
+	public void testRefreshAhead() {
+		String kind = CachedDatastoreMapTestCase.class.getName()
+				+ "#testRefreshAhead";
+		CachedDatastoreMap<String, String> map = new CachedDatastoreMap<String, String>(
+				kind, StringParser.getInstance(),
+				CachedDatastoreMap.DEFAULT_NUMBER_OF_RETRIES,
+				Expiration.byDeltaSeconds(60));
+		map.setRefreshAhead(60 * 1000, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		map.clear();
+
+		map.put("abc", "111");
+		assertEquals("111", map.get("abc")); // cache
+
+		new DatastoreMap<String, String>(kind).put("abc", "222");
+
+		assertEquals("111", map.get("abc")); // reload
+		assertEquals("222", map.get("abc"));
+	}
+
+	public void testStatistics() {
+		CachedDatastoreMap<String, String> map = getStringToStringMap();
+		MapStatistics statistics = new MapStatistics();
+		map.setStatistics(statistics);
+
+		map.clear();
+		map.put("abc", "111");
+		map.get("abc"); // miss
+		map.get("abc"); // hit
+
+		MapStatistics.Snapshot snapshot = statistics.snapshot();
+
+		assertEquals(1, snapshot.getCount(Operation.PUT));
+		assertEquals(2, snapshot.getCount(Operation.GET));
+		assertEquals(1, snapshot.getHits());
+		assertEquals(1, snapshot.getMisses());
+	}
+
+	public void testInterceptor() {
+		CachedDatastoreMap<String, String> map = getStringToStringMap();
+		RpcRecorder recorder = new RpcRecorder();
+		map.addInterceptor(recorder);
+
+		map.clear();
+		map.put("abc", "111");
+		assertEquals("111", map.get("abc"));
+
+		assertEquals(1, recorder.getCount("DatastoreService.put"));
+		assertTrue(recorder.getCount("MemcacheService.get") > 0);
+		assertTrue(recorder.getCount("MemcacheService.put") > 0);
+	}
+
+	public void testGetLater() throws Exception {
+		CachedDatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		map.put("abc", "111");
+		map.put("def", "222");
+		map.get("abc"); // cached
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+
+		Future<String> abc = map.getLater("abc");
+		Future<String> def = map.getLater("def");
+
+		assertEquals("111", abc.get());
+		assertEquals("222", def.get());
+		assertEquals(1, recorder.getCount("MemcacheService.getAll"));
+		assertEquals(1, recorder.getCount("DatastoreService.get"));
+	}
 }
@@ -3,10 +3,12 @@ package test;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 
 import org.koherent.io.appengine.DatastoreInputStream;
 import org.koherent.io.appengine.DatastoreOutputStream;
 import org.koherent.io.appengine.WriteLockException;
+import org.koherent.rpc.RpcExecutors;
 
 public class DatastoreIOStreamTestCase extends IOStreamTestCase {
 	@Override
@@ -92,6 +94,48 @@ public class DatastoreIOStreamTestCase extends IOStreamTestCase {
 		}
 	}
 
+	public void testExecutor() {
+		Executor executor = RpcExecutors.withEnvironment(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command).start();
+			}
+		});
+
+		byte[] data = new byte[DatastoreOutputStream.BUFFER_SIZE * 3 + 100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+
+		try {
+			DatastoreOutputStream out = new DatastoreOutputStream(
+					getName("executor"));
+			out.setExecutor(executor);
+			out.write(data);
+			out.close();
+
+			DatastoreInputStream in = new DatastoreInputStream(
+					getName("executor"));
+			in.setExecutor(executor);
+			byte[] readData = new byte[data.length + 1];
+			int length = 0;
+			int readLength;
+			while ((readLength = in.read(readData, length, readData.length
+					- length)) > 0) {
+				length += readLength;
+			}
+			in.close();
+
+			assertEquals(data.length, length);
+			for (int i = 0; i < data.length; i++) {
+				assertEquals(data[i], readData[i]);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			assertTrue(e.toString(), false);
+		}
+	}
+
 	private String getName(String name) {
 		return getClass().getName() + "." + name;
 	}
@@ -1,14 +1,58 @@
 package test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
-import org.koherent.collection.UpdatableMap;
+import org.koherent.collection.Accumulator;
+import org.koherent.collection.Filter;
+import org.koherent.collection.Merger;
+import org.koherent.collection.Updater;
 import org.koherent.collection.appengine.DatastoreMap;
+import org.koherent.collection.appengine.DatastoreMapConfig;
+import org.koherent.collection.appengine.KeyRange;
+import org.koherent.collection.appengine.MapStatistics;
+import org.koherent.collection.appengine.MapStatistics.Operation;
+import org.koherent.collection.appengine.MassUpdateOptions;
+import org.koherent.collection.appengine.MassUpdateResult;
+import org.koherent.collection.appengine.RequestScope;
+import org.koherent.collection.appengine.ScanOptions;
+import org.koherent.collection.appengine.Versioned;
+import org.koherent.concurrent.Subscriber;
+import org.koherent.concurrent.Subscription;
+import org.koherent.math.LongSummary;
+import org.koherent.math.Measurer;
 import org.koherent.object.StringParser;
+import org.koherent.rpc.RpcExecutors;
+import org.koherent.rpc.RpcInterceptor;
+import org.koherent.rpc.RpcInterceptors;
+import org.koherent.rpc.RpcRecorder;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.apphosting.api.ApiProxy;
+
+import base.InMemoryDatastoreService;
 
 public class DatastoreMapTestCase extends UpdatableMapTestCase {
 	@Override
-	public UpdatableMap<String, String> getStringToStringMap() {
+	public DatastoreMap<String, String> getStringToStringMap() {
 		return new DatastoreMap<String, String>(DatastoreMapTestCase.class
 				.getSimpleName(), StringParser.getInstance());
 	}
@@ -18,4 +62,728 @@ public class DatastoreMapTestCase extends UpdatableMapTestCase {
 		return new DatastoreMap<Integer, Long>(DatastoreMapTestCase.class
 				.getSimpleName());
 	}
+
+	public void testStatistics() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		MapStatistics statistics = new MapStatistics();
+		map.setStatistics(statistics);
+
+		map.clear();
+		map.put("abc", "111");
+		map.get("abc");
+		map.get("def");
+
+		MapStatistics.Snapshot snapshot = statistics.snapshotAndReset();
+
+		assertEquals(1, snapshot.getCount(Operation.CLEAR));
+		assertEquals(1, snapshot.getCount(Operation.PUT));
+		assertEquals(2, snapshot.getCount(Operation.GET));
+		assertTrue(snapshot.getLatency(Operation.GET, 50.0) > 0);
+		assertTrue(snapshot.getBytesWritten() > 0);
+		assertTrue(snapshot.getBytesRead() > 0);
+
+		assertEquals(0, statistics.snapshot().getCount(Operation.GET));
+	}
+
+	public void testInterceptor() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		RpcRecorder recorder = new RpcRecorder();
+		map.addInterceptor(recorder);
+
+		map.put("abc", "111");
+		assertEquals("111", map.get("abc"));
+
+		assertEquals(1, recorder.getCount("DatastoreService.put"));
+		assertTrue(recorder.getBytesSent("DatastoreService.put") > 0);
+		assertTrue(recorder.getCount("DatastoreService.get") > 0);
+
+		assertTrue(map.removeInterceptor(recorder));
+		long count = recorder.getCount("DatastoreService.get");
+		map.get("abc");
+		assertEquals(count, recorder.getCount("DatastoreService.get"));
+	}
+
+	public void testGetLater() throws Exception {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		map.put("abc", "111");
+		map.put("def", "222");
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+
+		Future<String> abc = map.getLater("abc");
+		Future<String> def = map.getLater("def");
+		Future<String> abc2 = map.getLater("abc");
+		Future<String> ghi = map.getLater("ghi");
+
+		assertEquals("111", abc.get());
+		assertEquals("222", def.get());
+		assertEquals("111", abc2.get());
+		assertEquals(null, ghi.get());
+		assertEquals(1, recorder.getCount("DatastoreService.get"));
+
+		map.getLater("abc");
+		map.dispatch();
+
+		assertEquals(2, recorder.getCount("DatastoreService.get"));
+	}
+
+	public void testConcurrentMap() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+
+		assertEquals(null, map.putIfAbsent("abc", "111"));
+		assertEquals("111", map.putIfAbsent("abc", "222"));
+		assertEquals("111", map.get("abc"));
+
+		assertFalse(map.replace("abc", "222", "333"));
+		assertTrue(map.replace("abc", "111", "333"));
+		assertEquals("333", map.get("abc"));
+
+		assertEquals(null, map.replace("def", "444"));
+		assertFalse(map.containsKey("def"));
+		assertEquals("333", map.replace("abc", "444"));
+
+		assertFalse(map.remove("abc", "333"));
+		assertTrue(map.remove("abc", "444"));
+		assertFalse(map.containsKey("abc"));
+	}
+
+	public void testCompute() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+
+		Updater<String> appender = new Updater<String>() {
+			@Override
+			public String update(String object) {
+				return object == null ? "111" : object + "999";
+			}
+		};
+
+		assertEquals(null, map.computeIfPresent("abc", appender));
+		assertFalse(map.containsKey("abc"));
+		assertEquals("111", map.computeIfAbsent("abc", appender));
+		assertEquals("111", map.computeIfAbsent("abc", appender));
+		assertEquals("111999", map.computeIfPresent("abc", appender));
+		assertEquals("111999999", map.compute("abc", appender));
+		assertEquals("111", map.compute("def", appender));
+
+		assertEquals(null, map.compute("def", new Updater<String>() {
+			@Override
+			public String update(String object) {
+				return null;
+			}
+		}));
+		assertFalse(map.containsKey("def"));
+
+		Merger<String> concatenator = new Merger<String>() {
+			@Override
+			public String merge(String oldValue, String value) {
+				return oldValue + value;
+			}
+		};
+
+		assertEquals("222", map.merge("ghi", "222", concatenator));
+		assertEquals("222333", map.merge("ghi", "333", concatenator));
+		assertEquals("222333", map.get("ghi"));
+	}
+
+	public void testCompareAndSet() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+
+		Versioned<String> absent = map.getVersioned("abc");
+		assertEquals(null, absent.getValue());
+		assertEquals(DatastoreMap.NO_VERSION, absent.getVersion());
+
+		assertTrue(map.compareAndSet("abc", DatastoreMap.NO_VERSION, "111"));
+		assertFalse(map.compareAndSet("abc", DatastoreMap.NO_VERSION, "222"));
+
+		Versioned<String> versioned = map.getVersioned("abc");
+		assertEquals("111", versioned.getValue());
+		assertTrue(versioned.getVersion() != DatastoreMap.NO_VERSION);
+
+		// a write by another method changes the version
+		map.put("abc", "333");
+		assertFalse(map.compareAndSet("abc", versioned.getVersion(), "444"));
+		assertEquals("333", map.get("abc"));
+
+		versioned = map.getVersioned("abc");
+		assertTrue(map.compareAndSet("abc", versioned.getVersion(), "444"));
+		assertEquals("444", map.get("abc"));
+
+		assertEquals("444999", map.updateOptimistic("abc",
+				new Updater<String>() {
+					@Override
+					public String update(String object) {
+						return object + "999";
+					}
+				}));
+		assertEquals("444999", map.get("abc"));
+		assertEquals(null, map.updateOptimistic("def", new Updater<String>() {
+			@Override
+			public String update(String object) {
+				return object + "999";
+			}
+		}));
+
+		// a removal deletes the hint, so the next attempt does not fail
+		map.remove("abc");
+		assertTrue(map.compareAndSet("abc", DatastoreMap.NO_VERSION, "555"));
+		map.clear();
+		assertTrue(map.compareAndSet("abc", DatastoreMap.NO_VERSION, "666"));
+	}
+
+	public void testCompareAndSetOnUnversionedEntity() {
+		DatastoreMap<String, String> legacy = new DatastoreMap<String, String>(
+				DatastoreMapTestCase.class.getSimpleName(), StringParser
+						.getInstance()) {
+			@Override
+			protected Entity createEntity(Key datastoreKey, String value) {
+				Entity entity = super.createEntity(datastoreKey, value);
+				entity.removeProperty(VERSION_PROPERTY_NAME);
+
+				return entity;
+			}
+		};
+		legacy.clear();
+		legacy.put("abc", "111");
+
+		DatastoreMap<String, String> map = getStringToStringMap();
+		assertEquals(DatastoreMap.NO_VERSION, map.getVersioned("abc")
+				.getVersion());
+		assertFalse(map.compareAndSet("abc", DatastoreMap.NO_VERSION, "222"));
+		assertFalse(map.compareAndSet("abc", DatastoreMap.NO_VERSION, "222"));
+		assertEquals("111", map.get("abc"));
+	}
+
+	public void testUpdateAll() {
+		InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.addInterceptor(datastore);
+
+		map.put("abc", "100");
+		map.put("def", "20");
+
+		Map<String, String> values = map.updateAll(Arrays.asList("abc",
+				"def"), new Updater<Map<String, String>>() {
+			@Override
+			public Map<String, String> update(Map<String, String> object) {
+				int abc = Integer.parseInt(object.get("abc"));
+				int def = Integer.parseInt(object.get("def"));
+				object.put("abc", Integer.toString(abc - 30));
+				object.put("def", Integer.toString(def + 30));
+
+				return object;
+			}
+		});
+
+		assertEquals("70", values.get("abc"));
+		assertEquals("50", values.get("def"));
+		assertEquals("70", map.get("abc"));
+		assertEquals("50", map.get("def"));
+		assertEquals(3, datastore.getCallCount("commit"));
+
+		// more keys than a cross-group transaction can contain
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < DatastoreMap.MAX_KEYS_PER_TRANSACTION + 5; i++) {
+			keys.add("key" + i);
+		}
+		values = map.updateAll(keys, new Updater<Map<String, String>>() {
+			@Override
+			public Map<String, String> update(Map<String, String> object) {
+				for (Map.Entry<String, String> entry : object.entrySet()) {
+					entry.setValue(entry.getKey());
+				}
+
+				return object;
+			}
+		});
+
+		assertEquals(keys.size(), values.size());
+		assertEquals("key29", map.get("key29"));
+		assertEquals(5, datastore.getCallCount("commit"));
+	}
+
+	public void testRequestScope() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		map.put("abc", "111");
+		map.setRequestScoped(true);
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+
+		RequestScope scope = RequestScope.begin();
+		try {
+			assertEquals("111", map.get("abc"));
+			assertEquals("111", map.get("abc"));
+			assertEquals(null, map.get("def"));
+			assertEquals(null, map.get("def"));
+			assertEquals(2, recorder.getCount("DatastoreService.get"));
+
+			map.put("def", "222");
+			assertEquals("222", map.get("def"));
+			map.remove("abc");
+			assertEquals(null, map.get("abc"));
+			// only the reads of old values in put() and remove()
+			assertEquals(4, recorder.getCount("DatastoreService.get"));
+		} finally {
+			scope.end();
+		}
+
+		assertEquals("222", map.get("def"));
+	}
+
+	public void testCoalescing() throws Exception {
+		final DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		map.put("abc", "111");
+		map.put("def", "222");
+		map.put("ghi", "333");
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+		map.setCoalescing(1000L, 3);
+
+		final String[] keys = { "abc", "def", "ghi" };
+		final String[] values = new String[keys.length];
+		final ApiProxy.Environment environment = ApiProxy
+				.getCurrentEnvironment();
+
+		Thread[] threads = new Thread[keys.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					ApiProxy.setEnvironmentForCurrentThread(environment);
+					values[index] = map.get(keys[index]);
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals("111", values[0]);
+		assertEquals("222", values[1]);
+		assertEquals("333", values[2]);
+		assertEquals(1, recorder.getCount("DatastoreService.get"));
+
+		// a pending future does not hold up a coalesced get
+		Future<String> abc = map.getLater("abc");
+		map.setCoalescing(10L, 3);
+		assertEquals("222", map.get("def"));
+		assertEquals("111", abc.get());
+		assertEquals(3, recorder.getCount("DatastoreService.get"));
+	}
+
+	public void testGroupCommit() throws Exception {
+		InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+		final DatastoreMap<String, String> map = getStringToStringMap();
+		map.addInterceptor(datastore);
+		map.put("abc", "0");
+
+		datastore.setLatency("commit", 100L, 0L);
+		datastore.resetCallCounts();
+		map.setGroupCommit(true);
+
+		final Updater<String> incrementer = new Updater<String>() {
+			@Override
+			public String update(String object) {
+				return Integer.toString(Integer.parseInt(object) + 1);
+			}
+		};
+		final String[] values = new String[8];
+		final ApiProxy.Environment environment = ApiProxy
+				.getCurrentEnvironment();
+
+		Thread[] threads = new Thread[values.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					ApiProxy.setEnvironmentForCurrentThread(environment);
+					values[index] = map.update("abc", incrementer);
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(Integer.toString(values.length), map.get("abc"));
+
+		// every caller gets the value produced by its own updater
+		Arrays.sort(values);
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(Integer.toString(i + 1), values[i]);
+		}
+		assertTrue(datastore.getCallCount("commit") < values.length);
+	}
+
+	public void testMassUpdate() throws Exception {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		for (int i = 0; i < 50; i++) {
+			map.put("key" + i, Integer.toString(i));
+		}
+
+		Updater<String> updater = new Updater<String>() {
+			@Override
+			public String update(String object) {
+				return object + "!";
+			}
+		};
+
+		MassUpdateResult result = map.updateAll(updater,
+				MassUpdateOptions.Builder.withTimeLimit(1L).batchSize(7));
+		while (!result.isCompleted()) {
+			// as if the checkpoint were passed to the next task
+			ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+			ObjectOutputStream objectOut = new ObjectOutputStream(byteOut);
+			objectOut.writeObject(result);
+			objectOut.close();
+			result = (MassUpdateResult) new ObjectInputStream(
+					new ByteArrayInputStream(byteOut.toByteArray()))
+					.readObject();
+
+			result = map.updateAll(updater, MassUpdateOptions.Builder
+					.withTimeLimit(1L).batchSize(7).resumeFrom(result));
+		}
+
+		assertEquals(50, result.getNumberOfUpdatedEntities());
+		assertEquals(0, result.getNumberOfFailures());
+		for (int i = 0; i < 50; i++) {
+			assertEquals(i + "!", map.get("key" + i));
+		}
+	}
+
+	public void testKeyRanges() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		for (int i = 0; i < 20; i++) {
+			map.put("key" + (char) ('a' + i), Integer.toString(i));
+		}
+
+		List<KeyRange> ranges = map.splitKeyRanges(4);
+		assertTrue(ranges.size() >= 1 && ranges.size() <= 4);
+
+		Set<String> keys = new HashSet<String>();
+		int numberOfValues = 0;
+		for (KeyRange range : ranges) {
+			for (String key : map.keys(range)) {
+				assertTrue(keys.add(key));
+			}
+			for (Map.Entry<String, String> entry : map.entries(range)) {
+				assertEquals(map.get(entry.getKey()), entry.getValue());
+			}
+			for (String value : map.values(range)) {
+				assertNotNull(value);
+				numberOfValues++;
+			}
+		}
+		assertEquals(20, keys.size());
+		assertEquals(20, numberOfValues);
+
+		String kind = DatastoreMapTestCase.class.getSimpleName();
+		KeyRange range = new KeyRange(KeyFactory.createKey(kind, "keyc"),
+				KeyFactory.createKey(kind, "keyf"));
+		List<String> rangeKeys = new ArrayList<String>();
+		for (String key : map.keys(range)) {
+			rangeKeys.add(key);
+		}
+		assertEquals(Arrays.asList("keyc", "keyd", "keye"), rangeKeys);
+
+		Iterator<Map.Entry<String, String>> iterator = map.entries(range)
+				.iterator();
+		iterator.next().setValue("999");
+		iterator.next();
+		iterator.remove();
+		assertEquals("999", map.get("keyc"));
+		assertFalse(map.containsKey("keyd"));
+	}
+
+	public void testAggregation() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		for (int i = 1; i <= 20; i++) {
+			map.put("key" + i, Integer.toString(i));
+		}
+
+		final ApiProxy.Environment environment = ApiProxy
+				.getCurrentEnvironment();
+		Executor executor = new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				new Thread() {
+					@Override
+					public void run() {
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						command.run();
+					}
+				}.start();
+			}
+		};
+		ScanOptions options = ScanOptions.Builder.withExecutor(executor)
+				.numberOfPartitions(3);
+
+		Measurer<String> parser = new Measurer<String>() {
+			@Override
+			public long measure(String object) {
+				return Long.parseLong(object);
+			}
+		};
+
+		LongSummary summary = map.summarize(parser, options);
+		assertEquals(20, summary.getCount());
+		assertEquals(210, summary.getSum());
+		assertEquals(1, summary.getMin());
+		assertEquals(20, summary.getMax());
+		assertEquals(210, map.sum(parser, options));
+		assertEquals(Long.valueOf(20), map.max(parser, options));
+
+		assertEquals(10, map.count(new Filter<String>() {
+			@Override
+			public boolean accept(String object) {
+				return Integer.parseInt(object) % 2 == 0;
+			}
+		}, options));
+
+		String longest = map.reduce("", new Accumulator<String, String>() {
+			@Override
+			public String accumulate(String result, String object) {
+				return object.length() > result.length() ? object : result;
+			}
+		}, new Merger<String>() {
+			@Override
+			public String merge(String oldValue, String value) {
+				return value.length() > oldValue.length() ? value : oldValue;
+			}
+		}, ScanOptions.Builder.withDefaults());
+		assertEquals(2, longest.length());
+
+		map.clear();
+		assertEquals(null, map.min(parser, options));
+	}
+
+	public void testBulkOperations() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 30; i++) {
+			map.put("key" + i, Integer.toString(i % 3));
+			keys.add("key" + i);
+		}
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+
+		assertTrue(map.keySet().containsAll(keys.subList(0, 20)));
+		assertFalse(map.keySet().containsAll(Arrays.asList("key0", "xyz")));
+		assertEquals(2, recorder.getCount("DatastoreService.get"));
+
+		assertTrue(map.keySet().removeAll(keys.subList(0, 10)));
+		assertFalse(map.keySet().removeAll(keys.subList(0, 10)));
+		assertEquals(4, recorder.getCount("DatastoreService.get"));
+		assertEquals(1, recorder.getCount("DatastoreService.delete"));
+		assertEquals(20, map.size());
+
+		assertTrue(map.keySet().retainAll(keys.subList(0, 25)));
+		assertEquals(2, recorder.getCount("DatastoreService.delete"));
+		assertEquals(15, map.size());
+
+		assertTrue(map.values().containsAll(Arrays.asList("0", "1", "2")));
+		assertTrue(map.values().removeAll(Arrays.asList("0")));
+		assertEquals(3, recorder.getCount("DatastoreService.delete"));
+		assertFalse(map.values().contains("0"));
+		assertEquals(10, map.size());
+
+		Set<Map.Entry<String, String>> entrySet = map.entrySet();
+		assertTrue(entrySet.containsAll(Arrays.asList(
+				new SimpleEntry<String, String>("key10", "1"),
+				new SimpleEntry<String, String>("key11", "2"))));
+		assertFalse(entrySet.containsAll(Arrays.asList(
+				new SimpleEntry<String, String>("key10", "2"))));
+		assertTrue(entrySet.removeAll(Arrays.asList(
+				new SimpleEntry<String, String>("key10", "1"),
+				new SimpleEntry<String, String>("key11", "1"))));
+		assertFalse(map.containsKey("key10"));
+		assertTrue(map.containsKey("key11"));
+
+		assertTrue(entrySet.retainAll(Arrays.asList(
+				new SimpleEntry<String, String>("key11", "2"),
+				new SimpleEntry<String, String>("key13", "2"))));
+		assertEquals(1, map.size());
+		assertEquals("2", map.get("key11"));
+	}
+
+	public void testExecutor() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		map.setExecutor(RpcExecutors.withEnvironment(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command).start();
+			}
+		}), 2);
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < 1200; i++) {
+			values.put("key" + i, Integer.toString(i));
+		}
+		map.putAll(values);
+		assertEquals(3, recorder.getCount("DatastoreService.put"));
+
+		assertEquals(values, map.getAll(values.keySet()));
+		assertEquals(2, recorder.getCount("DatastoreService.get"));
+
+		map.clear();
+		assertEquals(3, recorder.getCount("DatastoreService.delete"));
+		assertTrue(map.isEmpty());
+	}
+
+	public void testConfig() {
+		RpcRecorder readRecorder = new RpcRecorder(false);
+		List<RpcInterceptor> interceptors = new ArrayList<RpcInterceptor>();
+		interceptors.add(readRecorder);
+		DatastoreService readService = RpcInterceptors.intercept(
+				DatastoreService.class, DatastoreServiceFactory
+						.getDatastoreService(), interceptors);
+
+		DatastoreMap<String, String> map = new DatastoreMap<String, String>(
+				DatastoreMapTestCase.class.getSimpleName(), StringParser
+						.getInstance(), DatastoreMapConfig.Builder
+						.withReadService(readService).numberOfRetries(2)
+						.chunkSize(50).maxEntitiesPerPut(100));
+		map.clear();
+		readRecorder.reset();
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < 250; i++) {
+			values.put("key" + i, Integer.toString(i));
+		}
+		map.putAll(values);
+		assertEquals(3, recorder.getCount("DatastoreService.put"));
+		assertEquals(0, readRecorder.getCount("DatastoreService.get"));
+
+		assertEquals("10", map.get("key10"));
+		assertTrue(map.containsKey("key20"));
+		assertEquals(2, readRecorder.getCount("DatastoreService.get"));
+		assertEquals(250, map.size());
+
+		// reads in a transaction do not go to the read service
+		Transaction transaction = DatastoreServiceFactory.getDatastoreService()
+				.beginTransaction();
+		try {
+			assertEquals("10", map.get("key10"));
+		} finally {
+			transaction.rollback();
+		}
+		assertEquals(2, readRecorder.getCount("DatastoreService.get"));
+
+		InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+		map.addInterceptor(datastore);
+		datastore.setContentionRate(1.0);
+		try {
+			map.put("abc", "111");
+			fail();
+		} catch (ConcurrentModificationException e) {
+		}
+		assertEquals(3, datastore.getCallCount("commit"));
+	}
+
+	public void testPublisher() {
+		DatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+		// pages are emitted synchronously in request()
+		map.setExecutor(RpcExecutors.CALLER_RUNS, 1);
+		for (int i = 0; i < 25; i++) {
+			map.put("key" + (char) ('a' + i), Integer.toString(i));
+		}
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+
+		final List<String> values = new ArrayList<String>();
+		final Subscription[] subscription = new Subscription[1];
+		final boolean[] completed = new boolean[1];
+		map.valuePublisher(KeyRange.ALL, 10).subscribe(
+				new Subscriber<String>() {
+					@Override
+					public void onSubscribe(Subscription s) {
+						subscription[0] = s;
+					}
+
+					@Override
+					public void onNext(String item) {
+						values.add(item);
+					}
+
+					@Override
+					public void onError(Throwable throwable) {
+						fail(throwable.toString());
+					}
+
+					@Override
+					public void onComplete() {
+						completed[0] = true;
+					}
+				});
+		assertEquals(0, recorder.getCount("DatastoreService.prepare"));
+
+		subscription[0].request(3);
+		assertEquals(Arrays.asList("0", "1", "2"), values);
+		assertEquals(1, recorder.getCount("DatastoreService.prepare"));
+
+		subscription[0].request(Long.MAX_VALUE);
+		assertEquals(25, values.size());
+		assertEquals("24", values.get(24));
+		assertTrue(completed[0]);
+
+		final List<String> keys = new ArrayList<String>();
+		map.entryPublisher(KeyRange.ALL, 10).subscribe(
+				new Subscriber<Map.Entry<String, String>>() {
+					private Subscription subscription;
+
+					@Override
+					public void onSubscribe(Subscription s) {
+						subscription = s;
+						subscription.request(1);
+					}
+
+					@Override
+					public void onNext(Map.Entry<String, String> item) {
+						keys.add(item.getKey());
+						if (keys.size() < 5) {
+							subscription.request(1);
+						} else {
+							subscription.cancel();
+						}
+					}
+
+					@Override
+					public void onError(Throwable throwable) {
+						fail(throwable.toString());
+					}
+
+					@Override
+					public void onComplete() {
+						fail();
+					}
+				});
+		assertEquals(Arrays.asList("keya", "keyb", "keyc", "keyd", "keye"),
+				keys);
+	}
 }
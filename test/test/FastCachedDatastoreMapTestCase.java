@@ -1,14 +1,25 @@
 package test;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
-import org.koherent.collection.UpdatableMap;
+import org.koherent.collection.Updater;
+import org.koherent.collection.appengine.CacheResult;
 import org.koherent.collection.appengine.FastCachedDatastoreMap;
+import org.koherent.collection.appengine.DatastoreMap;
+import org.koherent.collection.appengine.MemcacheMap;
+import org.koherent.collection.appengine.WarmUpOptions;
+import org.koherent.collection.appengine.WritePolicy;
 import org.koherent.object.StringParser;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.memcache.Expiration;
+
 public class FastCachedDatastoreMapTestCase extends FastUpdatableMapTestCase {
 	@Override
-	public UpdatableMap<String, String> getStringToStringMap() {
+	public FastCachedDatastoreMap<String, String> getStringToStringMap() {
 		return new FastCachedDatastoreMap<String, String>(
 				FastCachedDatastoreMapTestCase.class.getName()
 						+ "#getStringToStringMap", StringParser.getInstance());
@@ -20,4 +31,122 @@ public class FastCachedDatastoreMapTestCase extends FastUpdatableMapTestCase {
 				FastCachedDatastoreMapTestCase.class.getName()
 						+ "#getIntegerToLongMap");
 	}
+
+	public void testWriteThrough() {
+		FastCachedDatastoreMap<String, String> map = getStringToStringMap();
+		map.setWritePolicy(WritePolicy.WRITE_THROUGH);
+		map.clear();
+
+		Map<String, String> cache = new MemcacheMap<String, String>(
+				FastCachedDatastoreMapTestCase.class.getName()
+						+ "#getStringToStringMap", null, true);
+
+		map.put("abc", "111");
+
+		assertTrue(cache.containsKey("abc"));
+		assertEquals("111", cache.get("abc"));
+
+		map.put("abc", "222");
+
+		assertEquals("222", cache.get("abc"));
+		assertEquals("222", map.get("abc"));
+
+		map.update("abc", new Updater<String>() {
+			@Override
+			public String update(String object) {
+				return object + "999";
+			}
+		});
+
+		assertEquals("222999", cache.get("abc"));
+
+		map.remove("abc");
+
+		assertFalse(cache.containsKey("abc"));
+		assertEquals(null, map.get("abc"));
+	}
+
+	public void testGetAll() {
+		FastCachedDatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+
+		map.put("abc", "111");
+		map.put("def", "222");
+		map.put("ghi", "333");
+
+		map.get("abc"); // cache
+
+		CacheResult<String, String> result = map.getAll(Arrays
+				.asList(new String[] { "abc", "def", "xyz", "def" }));
+
+		assertEquals(2, result.size());
+		assertEquals("111", result.get("abc"));
+		assertEquals("222", result.get("def"));
+		assertFalse(result.containsKey("xyz"));
+		assertEquals(1, result.getNumberOfHits());
+		assertEquals(2, result.getNumberOfMisses());
+
+		result = map.getAll(Arrays.asList(new String[] { "abc", "def" }));
+
+		assertEquals(2, result.size());
+		assertEquals(2, result.getNumberOfHits());
+		assertEquals(0, result.getNumberOfMisses());
+	}
+
+	public void testWarmUp() {
+		FastCachedDatastoreMap<String, String> map = getStringToStringMap();
+		map.clear();
+
+		Map<String, String> inputMap = new HashMap<String, String>();
+		inputMap.put("abc", "123");
+		inputMap.put("def", "456");
+		inputMap.put("ghi", "789");
+		inputMap.put("jkl", "000");
+		inputMap.put("mno", "999");
+		map.putAll(inputMap);
+
+		Cursor cursor = map.warmUp(WarmUpOptions.Builder.withLimit(3)
+				.batchSize(2));
+
+		assertNotNull(cursor);
+		assertEquals(3, map.getAll(inputMap.keySet()).getNumberOfHits());
+
+		cursor = map.warmUp(WarmUpOptions.Builder.withStartCursor(cursor));
+
+		assertNull(cursor);
+		assertEquals(5, map.getAll(inputMap.keySet()).getNumberOfHits());
+
+		map.putAll(inputMap); // invalidate
+		map.warmUp(Arrays.asList(new String[] { "abc", "xyz" }),
+				WarmUpOptions.Builder.withDefaults());
+
+		CacheResult<String, String> result = map.getAll(Arrays
+				.asList(new String[] { "abc", "def" }));
+		assertEquals(1, result.getNumberOfHits());
+		assertEquals("123", result.get("abc"));
+	}
+
+	public void testRefreshAhead() {
+		String kind = FastCachedDatastoreMapTestCase.class.getName()
+				+ "#testRefreshAhead";
+		FastCachedDatastoreMap<String, String> map = new FastCachedDatastoreMap<String, String>(
+				kind, StringParser.getInstance(),
+				FastCachedDatastoreMap.DEFAULT_NUMBER_OF_RETRIES,
+				Expiration.byDeltaSeconds(60));
+		map.setRefreshAhead(60 * 1000, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		map.clear();
+
+		map.put("abc", "111");
+		assertEquals("111", map.get("abc")); // cache
+
+		new DatastoreMap<String, String>(kind).put("abc", "222");
+
+		assertEquals("111", map.get("abc")); // reload
+		assertEquals("222", map.get("abc"));
+	}
 }
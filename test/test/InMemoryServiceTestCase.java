@@ -0,0 +1,118 @@
+package test;
+
+import java.util.ConcurrentModificationException;
+
+import org.koherent.collection.Updater;
+import org.koherent.collection.appengine.CachedDatastoreMap;
+import org.koherent.collection.appengine.DatastoreMap;
+import org.koherent.collection.appengine.MemcacheMap;
+import org.koherent.object.StringParser;
+
+import base.InMemoryDatastoreService;
+import base.InMemoryMemcacheService;
+import base.LocalServiceTestCase;
+
+public class InMemoryServiceTestCase extends LocalServiceTestCase {
+	public void testDatastore() {
+		InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+		DatastoreMap<String, String> map = new DatastoreMap<String, String>(
+				InMemoryServiceTestCase.class.getName(), StringParser
+						.getInstance());
+		map.addInterceptor(datastore);
+
+		assertEquals(null, map.put("abc", "111"));
+		assertEquals("111", map.put("abc", "123"));
+		map.put("def", "456");
+
+		assertEquals("123", map.get("abc"));
+		assertEquals(2, map.size());
+		assertEquals(2, map.entrySet().size());
+		assertEquals("456", map.remove("def"));
+		assertFalse(map.containsKey("def"));
+
+		assertEquals(1, datastore.size());
+		assertTrue(datastore.getCallCount("commit") > 0);
+
+		map.clear();
+
+		assertTrue(map.isEmpty());
+	}
+
+	public void testMemcache() {
+		InMemoryMemcacheService memcache = new InMemoryMemcacheService();
+		MemcacheMap<String, String> map = new MemcacheMap<String, String>(
+				InMemoryServiceTestCase.class.getSimpleName(), null, true);
+		map.addInterceptor(memcache);
+
+		map.put("abc", "111");
+
+		assertEquals("111", map.get("abc"));
+		assertEquals(null, map.get("def"));
+
+		map.clear();
+
+		assertEquals(null, map.get("abc"));
+		assertEquals(1, memcache.getCallCount("put"));
+		assertTrue(memcache.getCallCount("increment") > 0);
+	}
+
+	public void testCachedDatastoreMap() {
+		InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+		InMemoryMemcacheService memcache = new InMemoryMemcacheService();
+		CachedDatastoreMap<String, String> map =
+				new CachedDatastoreMap<String, String>(
+						InMemoryServiceTestCase.class.getSimpleName());
+		map.addInterceptor(datastore);
+		map.addInterceptor(memcache);
+
+		map.put("abc", "111");
+		map.get("abc");
+		datastore.resetCallCounts();
+
+		assertEquals("111", map.get("abc"));
+		assertEquals(0, datastore.getTotalCallCount());
+
+		memcache.evictAll();
+
+		assertEquals("111", map.get("abc"));
+		assertEquals(1, datastore.getCallCount("get"));
+	}
+
+	public void testInjection() {
+		InMemoryDatastoreService datastore = new InMemoryDatastoreService();
+		DatastoreMap<String, String> map = new DatastoreMap<String, String>(
+				InMemoryServiceTestCase.class.getName());
+		map.addInterceptor(datastore);
+
+		map.put("abc", "111");
+		datastore.resetCallCounts();
+
+		datastore.setContentionRate(1.0);
+		try {
+			map.update("abc", new Updater<String>() {
+				@Override
+				public String update(String object) {
+					return object + "222";
+				}
+			});
+			fail();
+		} catch (ConcurrentModificationException e) {
+		}
+		assertEquals(DatastoreMap.DEFAULT_NUMBER_OF_RETRIES + 1, datastore
+				.getCallCount("commit"));
+
+		datastore.clearInjections();
+		datastore.injectFailure("get", 1.0, new IllegalStateException());
+		try {
+			map.get("abc");
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		datastore.clearInjections();
+		datastore.setLatency("get", 20L, 0L);
+		long startTime = System.currentTimeMillis();
+		assertEquals("111", map.get("abc"));
+		assertTrue(System.currentTimeMillis() - startTime >= 20L);
+	}
+}
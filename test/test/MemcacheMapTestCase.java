@@ -1,8 +1,16 @@
 package test;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 
+import org.koherent.collection.appengine.MapStatistics;
+import org.koherent.collection.appengine.MapStatistics.Operation;
 import org.koherent.collection.appengine.MemcacheMap;
+import org.koherent.rpc.RpcRecorder;
+
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 
 public class MemcacheMapTestCase extends MapTestCase {
 	@Override
@@ -31,4 +39,98 @@ public class MemcacheMapTestCase extends MapTestCase {
 		assertEquals("123", map1b.get("abc"));
 		assertEquals("456", map2.get("abc"));
 	}
+
+	public void testGenerationalClear() {
+		Map<String, String> map1 = new MemcacheMap<String, String>("map1",
+				null, true);
+		Map<String, String> map2 = new MemcacheMap<String, String>("map2",
+				null, true);
+		Map<String, String> map3 = new MemcacheMap<String, String>("map3");
+
+		map1.put("abc", "123");
+		map2.put("abc", "456");
+		map3.put("abc", "789");
+
+		map1.clear();
+
+		assertFalse(map1.containsKey("abc"));
+		assertEquals(null, map1.get("abc"));
+		assertEquals("456", map2.get("abc"));
+		assertEquals("789", map3.get("abc"));
+
+		map1.put("abc", "321");
+
+		assertEquals("321", map1.get("abc"));
+	}
+
+	public void testBatchOperations() {
+		MemcacheMap<String, String> map = new MemcacheMap<String, String>(
+				MemcacheMapTestCase.class.getName() + "#testBatchOperations",
+				null, true);
+		map.clear();
+
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("abc", "123");
+		values.put("def", "456");
+		map.putAll(values);
+		assertEquals(values, map.getAll(Arrays.asList("abc", "def", "ghi")));
+
+		values.put("ghi", "789");
+		assertEquals(new HashSet<String>(Arrays.asList("ghi")), map.putAll(
+				values, SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+		values.put("jkl", "000");
+		assertEquals(new HashSet<String>(Arrays.asList("abc", "def", "ghi")),
+				map.putAll(values, SetPolicy.REPLACE_ONLY_IF_PRESENT));
+		assertFalse(map.containsKey("jkl"));
+
+		assertEquals(new HashSet<Object>(Arrays.asList("abc", "ghi")), map
+				.removeAll(Arrays.asList("abc", "ghi", "jkl")));
+		assertEquals(1, map.getAll(values.keySet()).size());
+	}
+
+	public void testWriteRpcs() {
+		MemcacheMap<String, String> map = new MemcacheMap<String, String>(
+				MemcacheMapTestCase.class.getName() + "#testWriteRpcs", null,
+				true);
+		map.clear();
+
+		RpcRecorder recorder = new RpcRecorder(false);
+		map.addInterceptor(recorder);
+
+		// a read with an identifier and a conditional write for each put
+		assertNull(map.put("abc", "123"));
+		assertEquals("123", map.put("abc", "456"));
+		assertEquals(2, recorder.getCount("MemcacheService.getIdentifiable"));
+		assertEquals(1, recorder.getCount("MemcacheService.put"));
+		assertEquals(1, recorder.getCount("MemcacheService.putIfUntouched"));
+		assertEquals(0, recorder.getCount("MemcacheService.get"));
+
+		// no delete for an absent key
+		assertNull(map.remove("def"));
+		assertEquals(3, recorder.getCount("MemcacheService.getIdentifiable"));
+		assertEquals(0, recorder.getCount("MemcacheService.delete"));
+		assertEquals("456", map.remove("abc"));
+		assertEquals(4, recorder.getCount("MemcacheService.getIdentifiable"));
+		assertEquals(1, recorder.getCount("MemcacheService.delete"));
+
+		// delete() does not read
+		map.put("abc", "789");
+		recorder.reset();
+		assertTrue(map.delete("abc"));
+		assertFalse(map.delete("abc"));
+		assertEquals(0, recorder.getCount("MemcacheService.getIdentifiable"));
+		assertEquals(2, recorder.getCount("MemcacheService.delete"));
+		assertNull(map.get("abc"));
+
+		MapStatistics statistics = new MapStatistics();
+		map.setStatistics(statistics);
+		map.put("abc", "000", SetPolicy.SET_ALWAYS);
+		assertTrue(map.putIfUntouched("abc", map.getIdentifiable("abc"),
+				"111"));
+		assertEquals("111", map.getCachedValue("abc").getValue());
+
+		MapStatistics.Snapshot snapshot = statistics.snapshot();
+		assertEquals(2, snapshot.getCount(Operation.GET));
+		assertEquals(1, snapshot.getCount(Operation.COMPARE_AND_SET));
+	}
 }